@@ -0,0 +1,322 @@
+import java.io.*;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking client library for services that embed the file system. Every
+ * operation returns a CompletableFuture at once, so a single application
+ * thread can keep hundreds of operations in flight.
+ *
+ * Creates and deletes issued close together are coalesced into the
+ * coordinator's batch calls: a batch goes out when it reaches
+ * dfs.client.batchSize items or dfs.client.lingerMillis after its first item.
+ * Reads look the file up on the coordinator and then fetch it straight from a
+ * replica over pooled, multiplexed node connections, checking the content
+ * against the indexed SHA-256 and falling back to the next replica. Files
+ * stored compressed are fetched compressed and inflated here.
+ *
+ * At most dfs.client.maxInFlight operations run at once; later ones wait in a
+ * queue without blocking the caller. Futures fail with a TimeoutException
+ * after dfs.client.timeoutMillis, counted from the call. Blocking RMI calls
+ * run on dfs.client.rpcThreads threads owned by the client.
+ */
+public class AsyncFileClient implements Closeable {
+    private final CoordinatorInterface coordinator;
+    private final String token;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private final int batchSize;
+    private final long lingerMillis;
+
+    private final ExecutorService rpcExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            daemonThreads("async-client-timer"));
+    private final NodeConnectionPool connectionPool;
+
+    private final Object admission = new Object();
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight;
+    private boolean closed; // guarded by admission
+
+    private final Batcher<FileData> creates;
+    private final Batcher<String> deletes;
+
+    public AsyncFileClient(CoordinatorInterface coordinator, String token, int maxInFlight, long timeoutMillis,
+                           int batchSize, long lingerMillis, int rpcThreads) {
+        this.coordinator = coordinator;
+        this.token = token;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = lingerMillis;
+        this.rpcExecutor = Executors.newFixedThreadPool(Math.max(1, rpcThreads), daemonThreads("async-client-rpc"));
+        this.connectionPool = new NodeConnectionPool(Integer.getInteger("dfs.client.nodeConnections", 2),
+                timeoutMillis);
+        this.creates = new Batcher<>((department, files) -> coordinator.createFiles(token, files));
+        this.deletes = new Batcher<>((department, filenames) -> coordinator.deleteFiles(token, filenames, department));
+    }
+
+    public static AsyncFileClient fromSystemProperties(CoordinatorInterface coordinator, String token) {
+        return new AsyncFileClient(coordinator, token,
+                Integer.getInteger("dfs.client.maxInFlight", 512),
+                Long.getLong("dfs.client.timeoutMillis", 30_000),
+                Integer.getInteger("dfs.client.batchSize", 128),
+                Long.getLong("dfs.client.lingerMillis", 2),
+                Integer.getInteger("dfs.client.rpcThreads", 16));
+    }
+
+    public CompletableFuture<Boolean> createFile(FileData file) {
+        return admit(() -> creates.add(file.getDepartment(), file).thenApply(result -> true));
+    }
+
+    public CompletableFuture<Boolean> deleteFile(String filename, String department) {
+        return admit(() -> deletes.add(department, filename).thenApply(result -> true));
+    }
+
+    public CompletableFuture<Boolean> updateFile(FileData file) {
+        return admit(() -> rpc(() -> coordinator.updateFile(token, file)));
+    }
+
+    public CompletableFuture<FileMetadata> searchFile(String filename, String department) {
+        return admit(() -> rpc(() -> coordinator.searchFile(token, filename, department)));
+    }
+
+    public CompletableFuture<byte[]> readFile(String filename, String department) {
+        return admit(() -> rpc(() -> coordinator.searchFile(token, filename, department))
+                .thenCompose(metadata -> {
+                    if (metadata == null) {
+                        return CompletableFuture.failedFuture(new RemoteException("File not found"));
+                    }
+                    return readReplica(metadata, metadata.getReplicas(), 0, null);
+                }));
+    }
+
+    /** Sends any partly filled batches now. */
+    public void flush() {
+        creates.flush();
+        deletes.flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        // Queued operations would never start once the executor is gone; each one is started here, as if
+        // it had been given a slot, and fails its future instead of running
+        List<Runnable> queued;
+        synchronized (admission) {
+            closed = true;
+            queued = new ArrayList<>(waiting);
+            waiting.clear();
+            inFlight += queued.size();
+        }
+        for (Runnable start : queued) {
+            start.run();
+        }
+        rpcExecutor.shutdown();
+        scheduler.shutdown();
+        connectionPool.close();
+    }
+
+    // Tries the replicas in the coordinator's read order until one returns the indexed version
+    private CompletableFuture<byte[]> readReplica(FileMetadata metadata, List<NodeInfo> replicas, int index,
+                                                  Throwable lastFailure) {
+        if (index >= replicas.size()) {
+            return CompletableFuture.failedFuture(lastFailure != null ? lastFailure
+                    : new IOException("No replicas available"));
+        }
+        NodeInfo node = replicas.get(index);
+        return connectionPool.send(node, NodeProtocol.DOWNLOAD, null, metadata.getDepartment(),
+                        metadata.getFilename(), Compression.DEFLATE)
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .handle((response, error) -> {
+                    if (error != null) {
+                        return readReplica(metadata, replicas, index + 1, error);
+                    }
+                    if (!response.isOk()) {
+                        return readReplica(metadata, replicas, index + 1,
+                                new IOException(node.getNodeId() + ": " + response.getMessage()));
+                    }
+                    byte[] content;
+                    try {
+                        content = Compression.DEFLATE.equals(response.field(0))
+                                ? Compression.decode(response.getPayload()) : response.getPayload();
+                    } catch (IOException e) {
+                        return readReplica(metadata, replicas, index + 1, e);
+                    }
+                    if (metadata.getDigest() != null && !metadata.getDigest().equals(Digests.sha256(content))) {
+                        return readReplica(metadata, replicas, index + 1,
+                                new IOException(node.getNodeId() + ": stale replica"));
+                    }
+                    return CompletableFuture.completedFuture(content);
+                })
+                .thenCompose(next -> next);
+    }
+
+    private interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+
+    private <T> CompletableFuture<T> rpc(RemoteCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        rpcExecutor.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /*
+     * Concurrency limit. An operation starts when fewer than maxInFlight are running, otherwise it
+     * queues; each completion starts the next queued one. The caller's future carries the timeout, and
+     * a queued operation whose future has timed out by the time its turn comes is skipped.
+     */
+    private <T> CompletableFuture<T> admit(Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> {
+            boolean closing;
+            synchronized (admission) {
+                closing = closed;
+            }
+            if (closing) {
+                result.completeExceptionally(new IOException("Client closed"));
+            }
+            if (result.isDone()) {
+                release();
+                return;
+            }
+            CompletableFuture<T> running;
+            try {
+                running = operation.get();
+            } catch (RuntimeException e) {
+                running = CompletableFuture.failedFuture(e);
+            }
+            running.whenComplete((value, error) -> {
+                release();
+                if (error != null) {
+                    result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+        boolean startNow;
+        synchronized (admission) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Client closed"));
+            }
+            startNow = inFlight < maxInFlight;
+            if (startNow) {
+                inFlight++;
+            } else {
+                waiting.add(start);
+            }
+        }
+        if (startNow) {
+            start.run();
+        }
+        return result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void release() {
+        Runnable next;
+        synchronized (admission) {
+            next = closed ? null : waiting.poll();
+            if (next == null) {
+                inFlight--;
+            }
+        }
+        if (next != null) {
+            // Off the completing thread, which may be a node connection's reader
+            try {
+                rpcExecutor.execute(next);
+            } catch (RejectedExecutionException e) {
+                next.run(); // closed since the poll: it only fails its future
+            }
+        }
+    }
+
+    private interface BatchCall<T> {
+        List<BatchResult> call(String department, List<T> items) throws RemoteException;
+    }
+
+    /** Collects single-file requests per department and sends them as one batch call. */
+    private class Batcher<T> {
+        private final BatchCall<T> call;
+        private final Map<String, List<T>> items = new HashMap<>();
+        private final Map<String, List<CompletableFuture<BatchResult>>> futures = new HashMap<>();
+        private boolean flushScheduled;
+
+        Batcher(BatchCall<T> call) {
+            this.call = call;
+        }
+
+        CompletableFuture<BatchResult> add(String department, T item) {
+            CompletableFuture<BatchResult> future = new CompletableFuture<>();
+            List<T> full = null;
+            List<CompletableFuture<BatchResult>> fullFutures = null;
+            synchronized (this) {
+                items.computeIfAbsent(department, d -> new ArrayList<>()).add(item);
+                futures.computeIfAbsent(department, d -> new ArrayList<>()).add(future);
+                if (items.get(department).size() >= batchSize) {
+                    full = items.remove(department);
+                    fullFutures = futures.remove(department);
+                } else if (!flushScheduled) {
+                    flushScheduled = true;
+                    scheduler.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (full != null) {
+                send(department, full, fullFutures);
+            }
+            return future;
+        }
+
+        void flush() {
+            Map<String, List<T>> pendingItems;
+            Map<String, List<CompletableFuture<BatchResult>>> pendingFutures;
+            synchronized (this) {
+                pendingItems = new HashMap<>(items);
+                pendingFutures = new HashMap<>(futures);
+                items.clear();
+                futures.clear();
+                flushScheduled = false;
+            }
+            for (Map.Entry<String, List<T>> entry : pendingItems.entrySet()) {
+                send(entry.getKey(), entry.getValue(), pendingFutures.get(entry.getKey()));
+            }
+        }
+
+        private void send(String department, List<T> batch, List<CompletableFuture<BatchResult>> results) {
+            rpcExecutor.execute(() -> {
+                try {
+                    List<BatchResult> answers = call.call(department, batch);
+                    for (int i = 0; i < results.size(); i++) {
+                        BatchResult answer = answers.get(i);
+                        if (answer.isSuccess()) {
+                            results.get(i).complete(answer);
+                        } else {
+                            results.get(i).completeExceptionally(new RemoteException(answer.getError()));
+                        }
+                    }
+                } catch (Exception e) {
+                    for (CompletableFuture<BatchResult> result : results) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.Serializable;
+
+/**
+ * Outcome of one file in a batch call. A failed item carries the message the
+ * single-file call would have thrown; the other items are unaffected.
+ */
+public class BatchResult implements Serializable {
+    private final String filename;
+    private final boolean success;
+    private final String error;
+    private final byte[] content; // set for successful reads only
+
+    private BatchResult(String filename, boolean success, String error, byte[] content) {
+        this.filename = filename;
+        this.success = success;
+        this.error = error;
+        this.content = content;
+    }
+
+    public static BatchResult ok(String filename) {
+        return new BatchResult(filename, true, null, null);
+    }
+
+    public static BatchResult ok(String filename, byte[] content) {
+        return new BatchResult(filename, true, null, content);
+    }
+
+    public static BatchResult failed(String filename, String error) {
+        return new BatchResult(filename, false, error, null);
+    }
+
+    public String getFilename() { return filename; }
+    public boolean isSuccess() { return success; }
+    public String getError() { return error; }
+    public byte[] getContent() { return content; }
+
+    @Override
+    public String toString() {
+        return filename + ": " + (success ? "OK" : error);
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of the coordinator content cache's counters.
+ */
+public class CacheStats implements Serializable {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long rejections;
+    private final long invalidations;
+    private final int entries;
+    private final long bytes;
+    private final long maxBytes;
+
+    public CacheStats(long hits, long misses, long evictions, long rejections, long invalidations,
+                      int entries, long bytes, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.invalidations = invalidations;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+    /** Entries the admission filter kept out because they were less popular than the victim. */
+    public long getRejections() { return rejections; }
+    public long getInvalidations() { return invalidations; }
+    public int getEntries() { return entries; }
+    public long getBytes() { return bytes; }
+    public long getMaxBytes() { return maxBytes; }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cache: %d entries, %d/%d bytes, hit rate %.1f%% (%d hits, %d misses), "
+                        + "%d evictions, %d rejected, %d invalidated",
+                entries, bytes, maxBytes, getHitRate() * 100, hits, misses, evictions, rejections, invalidations);
+    }
+}
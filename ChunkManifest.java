@@ -0,0 +1,124 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A file stored as content-defined chunks (see ContentDefinedChunker): the
+ * list of its chunks' SHA-256 hashes, stored in place of the file's content
+ *
+ *   int    MAGIC ("DFSM")
+ *   long   raw length
+ *   bytes  32-byte SHA-256 of the raw content
+ *   int    chunk count, then per chunk its 32-byte SHA-256 and int length
+ *
+ * Files of at least dfs.chunking.minFileBytes (64 KiB by default) are
+ * chunked; smaller ones are stored whole, where the manifest would cost more
+ * than deduplication saves.
+ */
+public final class ChunkManifest {
+    public static final int MAGIC = 0x4446534D; // "DFSM"
+    private static final int HASH_BYTES = 32;
+
+    private final long size;
+    private final String digest;
+    private final List<String> hashes;
+    private final List<Integer> lengths;
+
+    public interface ChunkSink {
+        void accept(String hash, byte[] chunk) throws IOException;
+    }
+
+    public ChunkManifest(long size, String digest, List<String> hashes, List<Integer> lengths) {
+        this.size = size;
+        this.digest = digest;
+        this.hashes = Collections.unmodifiableList(new ArrayList<>(hashes));
+        this.lengths = Collections.unmodifiableList(new ArrayList<>(lengths));
+    }
+
+    public static long chunkingThreshold() {
+        return Long.getLong("dfs.chunking.minFileBytes", 64 * 1024);
+    }
+
+    /** Chunks raw content, handing each chunk and its hash to the sink, and returns the manifest. */
+    public static ChunkManifest split(InputStream raw, ChunkSink sink) throws IOException {
+        MessageDigest whole = Digests.newSha256();
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        long[] size = new long[1];
+        ContentDefinedChunker.split(raw, chunk -> {
+            whole.update(chunk);
+            String hash = Digests.sha256(chunk);
+            hashes.add(hash);
+            lengths.add(chunk.length);
+            size[0] += chunk.length;
+            sink.accept(hash, chunk);
+        });
+        return new ChunkManifest(size[0], Digests.hex(whole.digest()), hashes, lengths);
+    }
+
+    public static boolean isManifest(byte[] data, int length) {
+        return length >= 12 && (data[0] & 0xff) == 0x44 && (data[1] & 0xff) == 0x46 && (data[2] & 0xff) == 0x53
+                && (data[3] & 0xff) == 0x4D;
+    }
+
+    public static ChunkManifest decode(byte[] stored) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a chunk manifest");
+        }
+        long size = in.readLong();
+        String digest = readHash(in);
+        int count = in.readInt();
+        if (count < 0 || count > stored.length / (HASH_BYTES + 4)) {
+            throw new IOException("Corrupt chunk manifest");
+        }
+        List<String> hashes = new ArrayList<>(count);
+        List<Integer> lengths = new ArrayList<>(count);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            hashes.add(readHash(in));
+            lengths.add(in.readInt());
+            total += lengths.get(i);
+        }
+        if (total != size) {
+            throw new IOException("Corrupt chunk manifest: chunks add up to " + total + " of " + size + " bytes");
+        }
+        return new ChunkManifest(size, digest, hashes, lengths);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(56 + hashes.size() * (HASH_BYTES + 4));
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeInt(MAGIC);
+            out.writeLong(size);
+            out.write(unhex(digest));
+            out.writeInt(hashes.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                out.write(unhex(hashes.get(i)));
+                out.writeInt(lengths.get(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+        }
+        return buffer.toByteArray();
+    }
+
+    public long getSize() { return size; }
+    public String getDigest() { return digest; }
+    public List<String> getHashes() { return hashes; }
+    public int getLength(int index) { return lengths.get(index); }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[HASH_BYTES];
+        in.readFully(hash);
+        return Digests.hex(hash);
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
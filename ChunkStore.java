@@ -0,0 +1,610 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Content-addressed storage on a node. Large files are kept as a ChunkManifest
+ * under their usual name, with each chunk stored once under
+ * .chunks/<first two hex digits>/<sha256> in its own stored form (see
+ * Compression). Identical or overlapping files, including sync's _conflict_
+ * copies, share chunks.
+ *
+ * Chunks are reference-counted by the manifests that use them. The counts
+ * live in memory and are rebuilt from the manifests at startup. A chunk whose
+ * count drops to zero is deleted after dfs.chunking.gcDelayMillis, unless
+ * something used it again meanwhile; the delay covers readers of a replaced
+ * file and senders whose chunks arrive before their manifest.
+ *
+ * With dfs.node.storage=segments, small files stored whole go into a
+ * SegmentStore instead of a file of their own each, so millions of them cost
+ * neither millions of inodes nor directory lookups to find. Large (chunked)
+ * files stay in their department directory, and a file moves between the two
+ * as it is rewritten.
+ *
+ * Every read and write of a department file on the node goes through here so
+ * whole, compressed, chunked and segment-stored files look the same to
+ * callers. That makes this the place that keeps the NodeReadCache current:
+ * whole-file reads fill it, and every replace or delete invalidates the file.
+ */
+public class ChunkStore {
+    static final String CHUNKS_DIR = ".chunks";
+    static final String SEGMENTS_DIR = ".segments";
+    private static final int WRITE_BLOCK_BYTES = 64 * 1024;
+
+    private final Path root;
+    private final Path chunksPath;
+    private final Path tempPath;
+    private final NodeReadCache readCache;
+    private final SegmentStore segments; // null unless dfs.node.storage=segments
+    private final long minFileBytes = ChunkManifest.chunkingThreshold();
+    private final long gcDelayMillis = Long.getLong("dfs.chunking.gcDelayMillis", 60_000);
+    private final Map<String, Integer> references = new HashMap<>(); // guarded by this
+    private final ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chunk-collector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ChunkStore(Path root, NodeReadCache readCache) {
+        this.root = root;
+        this.readCache = readCache;
+        this.chunksPath = root.resolve(CHUNKS_DIR);
+        this.tempPath = chunksPath.resolve("tmp");
+        this.segments = "segments".equalsIgnoreCase(System.getProperty("dfs.node.storage"))
+                ? SegmentStore.fromSystemProperties(root.resolve(SEGMENTS_DIR)) : null;
+    }
+
+    /**
+     * Counts the references of every manifest on disk and schedules unreferenced chunks for collection.
+     * A file found both in a segment and in its directory (a crash between writing one and removing the
+     * other) keeps whichever is newer.
+     */
+    public synchronized void load() throws IOException {
+        Files.createDirectories(tempPath);
+        if (segments != null) {
+            segments.load();
+        }
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempPath)) {
+            for (Path file : leftovers) {
+                Files.deleteIfExists(file);
+            }
+        }
+        try (DirectoryStream<Path> departments = Files.newDirectoryStream(root,
+                p -> Files.isDirectory(p) && !p.getFileName().toString().startsWith("."))) {
+            for (Path department : departments) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(department, Files::isRegularFile)) {
+                    for (Path file : files) {
+                        SegmentStore.Entry entry = segments == null ? null
+                                : segments.find(department.getFileName().toString(), file.getFileName().toString());
+                        if (entry != null) {
+                            if (Files.getLastModifiedTime(file).toMillis() <= entry.getTimestamp()) {
+                                Files.delete(file);
+                                continue;
+                            }
+                            segments.delete(department.getFileName().toString(), file.getFileName().toString());
+                        }
+                        ChunkManifest manifest = directoryManifest(file);
+                        if (manifest != null) {
+                            retain(manifest);
+                        }
+                    }
+                }
+            }
+        }
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(chunksPath,
+                p -> Files.isDirectory(p) && !p.equals(tempPath))) {
+            for (Path directory : fanout) {
+                try (DirectoryStream<Path> chunks = Files.newDirectoryStream(directory)) {
+                    for (Path chunk : chunks) {
+                        if (!references.containsKey(chunk.getFileName().toString())) {
+                            scheduleCollection(chunk.getFileName().toString());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean shouldChunk(long rawSize) {
+        return rawSize >= minFileBytes;
+    }
+
+    public static boolean isValidHash(String hash) {
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+
+    // Reading
+
+    public boolean exists(Path file) {
+        return segmentEntry(file) != null || Files.exists(file);
+    }
+
+    /** Departments with files on this node. */
+    public Set<String> departments() throws IOException {
+        Set<String> departments = new TreeSet<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root,
+                p -> Files.isDirectory(p) && !p.getFileName().toString().startsWith("."))) {
+            for (Path directory : directories) {
+                departments.add(directory.getFileName().toString());
+            }
+        }
+        if (segments != null) {
+            departments.addAll(segments.departments());
+        }
+        return departments;
+    }
+
+    public Set<String> filenames(String department) throws IOException {
+        Set<String> filenames = new TreeSet<>();
+        Path directory = root.resolve(department);
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+                for (Path file : files) {
+                    filenames.add(file.getFileName().toString());
+                }
+            }
+        }
+        if (segments != null) {
+            filenames.addAll(segments.filenames(department));
+        }
+        return filenames;
+    }
+
+    public long lastModified(Path file) throws IOException {
+        SegmentStore.Entry entry = segmentEntry(file);
+        return entry != null ? entry.getTimestamp() : Files.getLastModifiedTime(file).toMillis();
+    }
+
+    /** The file's manifest, or null if it is stored whole. */
+    public ChunkManifest manifestOf(Path file) throws IOException {
+        return segmentEntry(file) != null ? null : directoryManifest(file);
+    }
+
+    // The manifest of the file in the department directory, whatever segments hold
+    private ChunkManifest directoryManifest(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(12);
+            if (!ChunkManifest.isManifest(head, head.length)) {
+                return null;
+            }
+            ByteArrayOutputStream stored = new ByteArrayOutputStream();
+            stored.write(head);
+            in.transferTo(stored);
+            return ChunkManifest.decode(stored.toByteArray());
+        }
+    }
+
+    /** True if the file's bytes on disk are its raw content, so they can be sent as they are. */
+    public boolean isPlain(Path file) throws IOException {
+        if (segmentEntry(file) != null) {
+            return false; // there are no bytes on disk of its own to send
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(12);
+            return !ChunkManifest.isManifest(head, head.length) && !Compression.isEncoded(head);
+        }
+    }
+
+    public long rawSize(Path file) throws IOException {
+        SegmentStore.Entry entry = segmentEntry(file);
+        if (entry != null) {
+            return entry.getRawSize();
+        }
+        ChunkManifest manifest = directoryManifest(file);
+        return manifest != null ? manifest.getSize() : Compression.rawSize(file);
+    }
+
+    public InputStream openRaw(Path file) throws IOException {
+        return openRaw(file, 0);
+    }
+
+    /** Raw content from the given offset; chunked files skip whole chunks without reading them. */
+    public InputStream openRaw(Path file, long offset) throws IOException {
+        byte[] stored = readSegment(file);
+        if (stored != null) {
+            byte[] raw = Compression.decode(stored);
+            return new ByteArrayInputStream(raw, (int) Math.min(offset, raw.length), raw.length);
+        }
+        ChunkManifest manifest = directoryManifest(file);
+        if (manifest == null) {
+            InputStream in = Compression.openRaw(file);
+            in.skipNBytes(Math.min(offset, Compression.rawSize(file)));
+            return in;
+        }
+        int first = 0;
+        long skip = Math.min(offset, manifest.getSize());
+        while (first < manifest.getHashes().size() && skip >= manifest.getLength(first)) {
+            skip -= manifest.getLength(first++);
+        }
+        InputStream in = new ChunkSequence(manifest.getHashes().subList(first, manifest.getHashes().size()));
+        in.skipNBytes(skip);
+        return in;
+    }
+
+    /** The whole raw content; hot small files are also offered to the read cache. */
+    public byte[] readRaw(Path file) throws IOException {
+        long stamp = readCache.stamp();
+        byte[] content;
+        try (InputStream in = openRaw(file)) {
+            content = in.readAllBytes();
+        }
+        readCache.put(file, content, stamp);
+        return content;
+    }
+
+    // SHA-256 of the raw content; the segment index or a manifest carries it, other files are hashed
+    public String rawDigest(Path file) throws IOException {
+        SegmentStore.Entry entry = segmentEntry(file);
+        if (entry != null) {
+            return entry.getDigest();
+        }
+        ChunkManifest manifest = directoryManifest(file);
+        if (manifest != null) {
+            return manifest.getDigest();
+        }
+        try (InputStream in = Compression.openRaw(file)) {
+            return hash(in);
+        }
+    }
+
+    /** True if a whole (not chunked) file is stored compressed. */
+    public boolean isCompressed(Path file) throws IOException {
+        SegmentStore.Entry entry = segmentEntry(file);
+        return entry != null ? entry.isCompressed() : Compression.isEncoded(file);
+    }
+
+    /** The stored form of a file stored whole. */
+    public byte[] readStored(Path file) throws IOException {
+        byte[] stored = readSegment(file);
+        return stored != null ? stored : Files.readAllBytes(file);
+    }
+
+    public long storedSize(Path file) throws IOException {
+        SegmentStore.Entry entry = segmentEntry(file);
+        return entry != null ? entry.getStoredLength() : Files.size(file);
+    }
+
+    /** Up to length bytes of a whole file's stored form, from offset. */
+    public byte[] readStored(Path file, long offset, int length) throws IOException {
+        byte[] stored = readSegment(file);
+        if (stored != null) {
+            int from = (int) Math.min(offset, stored.length);
+            return Arrays.copyOfRange(stored, from, (int) Math.min(stored.length, from + (long) length));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int toRead = (int) Math.max(0, Math.min(length, channel.size() - offset));
+            ByteBuffer buffer = ByteBuffer.allocate(toRead);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    public boolean hasChunk(String hash) {
+        return Files.exists(chunkPath(hash));
+    }
+
+    /** A chunk in its stored form, as CHUNK_PUT takes it. */
+    public byte[] readChunk(String hash) throws IOException {
+        return Files.readAllBytes(chunkPath(hash));
+    }
+
+    // Writing
+
+    /**
+     * Stores content sent in stored form, chunked if it is large enough (each
+     * chunk compressed at level) and whole otherwise, and returns the SHA-256
+     * of the raw content.
+     */
+    public String write(Path file, byte[] payload, int level) throws IOException {
+        byte[] raw = Compression.decode(payload);
+        if (shouldChunk(raw.length)) {
+            return writeChunked(file, new ByteArrayInputStream(raw), level);
+        }
+        // Raw content that merely looks stored gets wrapped
+        String digest = Digests.sha256(raw);
+        writeWhole(file, Compression.isEncoded(payload) ? payload : Compression.encode(payload, Compression.NONE),
+                raw.length, digest);
+        return digest;
+    }
+
+    /** Stores raw content, chunked or compressed whole at level by the same rules as write. */
+    public String writeRaw(Path file, byte[] raw, int level) throws IOException {
+        if (shouldChunk(raw.length)) {
+            return writeChunked(file, new ByteArrayInputStream(raw), level);
+        }
+        String digest = Digests.sha256(raw);
+        writeWhole(file, Compression.encode(raw, level), raw.length, digest);
+        return digest;
+    }
+
+    private void writeWhole(Path file, byte[] stored, long rawSize, String digest) throws IOException {
+        if (segmentKey(file, stored.length) != null) {
+            putSegment(file, stored, rawSize, digest);
+            return;
+        }
+        Path temp = tempFile();
+        writeBlocks(temp, stored);
+        moveIntoPlace(temp, file);
+    }
+
+    /** Splits raw content into chunks, stores the new ones and commits the manifest; returns its SHA-256. */
+    public String writeChunked(Path file, InputStream raw, int level) throws IOException {
+        ChunkManifest manifest = ChunkManifest.split(raw, (hash, chunk) -> putChunk(hash,
+                Compression.encode(chunk, level)));
+        commit(file, manifest);
+        return manifest.getDigest();
+    }
+
+    /**
+     * Moves a finished file in stored form into place, releasing whatever the old one referenced. A small
+     * one goes into a segment instead, and the source is deleted.
+     */
+    public void replace(Path source, Path file) throws IOException {
+        if (segmentKey(file, Files.size(source)) != null) {
+            byte[] stored = Files.readAllBytes(source);
+            byte[] raw = Compression.decode(stored);
+            putSegment(file, stored, raw.length, Digests.sha256(raw));
+            Files.delete(source);
+            return;
+        }
+        moveIntoPlace(source, file);
+    }
+
+    // Puts the file in its directory, superseding any version of it in a segment
+    private void moveIntoPlace(Path source, Path file) throws IOException {
+        synchronized (this) {
+            ChunkManifest old = Files.exists(file) ? directoryManifest(file) : null;
+            Files.move(source, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            String[] key = segmentKey(file, 0);
+            if (key != null) {
+                segments.delete(key[0], key[1]);
+            }
+            readCache.invalidate(file);
+            if (old != null) {
+                release(old);
+            }
+        }
+    }
+
+    // Puts the file in a segment, superseding any version of it in its directory
+    private void putSegment(Path file, byte[] stored, long rawSize, String digest) throws IOException {
+        String[] key = segmentKey(file, stored.length);
+        synchronized (this) {
+            segments.put(key[0], key[1], stored, rawSize, digest);
+            readCache.invalidate(file);
+            ChunkManifest old;
+            try {
+                old = directoryManifest(file);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            Files.deleteIfExists(file);
+            if (old != null) {
+                release(old);
+            }
+        }
+    }
+
+    public void delete(Path file) throws IOException {
+        synchronized (this) {
+            String[] key = segmentKey(file, 0);
+            if (key != null && segments.delete(key[0], key[1])) {
+                readCache.invalidate(file);
+                return;
+            }
+            ChunkManifest old = directoryManifest(file);
+            Files.delete(file);
+            readCache.invalidate(file);
+            if (old != null) {
+                release(old);
+            }
+        }
+    }
+
+    /** Stores a chunk given in stored form if it isn't here yet; an existing one is kept from collection. */
+    public void putChunk(String hash, byte[] stored) throws IOException {
+        Path path = chunkPath(hash);
+        if (Files.exists(path)) {
+            try {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+                return;
+            } catch (NoSuchFileException e) {
+                // collected just now: write it again
+            }
+        }
+        Files.createDirectories(path.getParent());
+        Path temp = tempFile();
+        writeBlocks(temp, stored);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Chunks of the list not stored here. */
+    public List<String> missing(List<String> hashes) {
+        List<String> missing = new ArrayList<>();
+        for (String hash : hashes) {
+            if (!hasChunk(hash)) {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    /** Checks that the chunks a manifest from another node lists add up to the content it describes. */
+    public void verify(ChunkManifest manifest) throws IOException {
+        MessageDigest whole = Digests.newSha256();
+        long size = 0;
+        for (int i = 0; i < manifest.getHashes().size(); i++) {
+            byte[] chunk = Compression.decode(readChunk(manifest.getHashes().get(i)));
+            if (chunk.length != manifest.getLength(i)) {
+                throw new IOException("Chunk " + manifest.getHashes().get(i) + " has the wrong length");
+            }
+            whole.update(chunk);
+            size += chunk.length;
+        }
+        if (size != manifest.getSize() || !Digests.hex(whole.digest()).equals(manifest.getDigest())) {
+            throw new IOException("Chunks don't match the manifest's checksum");
+        }
+    }
+
+    /** Writes the manifest as the file, taking references on its chunks; fails if any chunk is missing. */
+    public void commit(Path file, ChunkManifest manifest) throws IOException {
+        Path temp = tempFile();
+        writeBlocks(temp, manifest.encode());
+        synchronized (this) {
+            List<String> missing = missing(manifest.getHashes());
+            if (!missing.isEmpty()) {
+                Files.deleteIfExists(temp);
+                throw new NoSuchFileException("Missing " + missing.size() + " chunks");
+            }
+            retain(manifest);
+            moveIntoPlace(temp, file);
+        }
+    }
+
+    // Reference counting; callers hold the lock
+
+    private void retain(ChunkManifest manifest) {
+        for (String hash : manifest.getHashes()) {
+            references.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    private void release(ChunkManifest manifest) {
+        for (String hash : manifest.getHashes()) {
+            if (references.merge(hash, -1, Integer::sum) <= 0) {
+                references.remove(hash);
+                scheduleCollection(hash);
+            }
+        }
+    }
+
+    private void scheduleCollection(String hash) {
+        collector.schedule(() -> collect(hash), gcDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Deletes the chunk if it is still unreferenced and nobody has stored it again since it was released
+    private synchronized void collect(String hash) {
+        if (references.containsKey(hash)) {
+            return;
+        }
+        Path path = chunkPath(hash);
+        try {
+            long idle = System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis();
+            if (idle >= gcDelayMillis) {
+                Files.delete(path);
+            } else {
+                collector.schedule(() -> collect(hash), gcDelayMillis - idle, TimeUnit.MILLISECONDS);
+            }
+        } catch (NoSuchFileException e) {
+            // already gone
+        } catch (IOException e) {
+            System.err.println("Could not collect chunk " + hash + ": " + e.getMessage());
+        }
+    }
+
+    /** The raw content of a run of chunks, opening each one as the previous is used up. */
+    private class ChunkSequence extends InputStream {
+        private final Iterator<String> hashes;
+        private InputStream current;
+
+        ChunkSequence(List<String> hashes) {
+            this.hashes = hashes.iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null) {
+                    if (!hashes.hasNext()) {
+                        return -1;
+                    }
+                    current = Compression.openRaw(chunkPath(hashes.next()));
+                }
+                int n = current.read(buffer, offset, length);
+                if (n > 0) {
+                    return n;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    // Department and filename of a department file that may be kept in a segment, or null
+    private String[] segmentKey(Path file, long storedLength) {
+        if (segments == null || !segments.accepts(storedLength) || !file.startsWith(root)
+                || file.getNameCount() != root.getNameCount() + 2) {
+            return null;
+        }
+        Path relative = root.relativize(file);
+        String department = relative.getName(0).toString();
+        return department.startsWith(".") ? null : new String[] { department, relative.getName(1).toString() };
+    }
+
+    private SegmentStore.Entry segmentEntry(Path file) {
+        String[] key = segmentKey(file, 0);
+        return key == null ? null : segments.find(key[0], key[1]);
+    }
+
+    private byte[] readSegment(Path file) throws IOException {
+        String[] key = segmentKey(file, 0);
+        return key == null ? null : segments.read(key[0], key[1]);
+    }
+
+    private Path chunkPath(String hash) {
+        return chunksPath.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path tempFile() {
+        return tempPath.resolve(UUID.randomUUID().toString());
+    }
+
+    private static void writeBlocks(Path file, byte[] content) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                buffer.limit(Math.min(content.length, buffer.position() + WRITE_BLOCK_BYTES));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.limit(content.length);
+            }
+        }
+    }
+
+    private static String hash(InputStream in) throws IOException {
+        MessageDigest digest = Digests.newSha256();
+        byte[] buffer = new byte[WRITE_BLOCK_BYTES];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+        }
+        return Digests.hex(digest.digest());
+    }
+}
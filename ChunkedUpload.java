@@ -0,0 +1,101 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes a large file to a node as content-defined chunks (see ChunkStore):
+ * CHUNK_HAVE asks which chunks the node lacks, CHUNK_PUT sends only those and
+ * MANIFEST_PUT commits the file. A file the node mostly holds already, such
+ * as a new version of one it stores, costs little more than its manifest.
+ *
+ * The content is split once, and each chunk compressed at most once, however
+ * many replicas the upload goes to.
+ */
+public class ChunkedUpload implements QuorumWrite.Transfer {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final NodeConnectionPool connectionPool;
+    private final String department;
+    private final String filename;
+    private final int level;
+    private final Map<String, byte[]> chunks = new HashMap<>();
+    private final Map<String, byte[]> storedChunks = new ConcurrentHashMap<>();
+    private final ChunkManifest manifest;
+    private final byte[] manifestBytes;
+
+    public ChunkedUpload(NodeConnectionPool connectionPool, String department, String filename, byte[] content,
+                         int level) {
+        this.connectionPool = connectionPool;
+        this.department = department;
+        this.filename = filename;
+        this.level = level;
+        try {
+            this.manifest = ChunkManifest.split(new ByteArrayInputStream(content), chunks::putIfAbsent);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayInputStream doesn't throw
+        }
+        this.manifestBytes = manifest.encode();
+    }
+
+    public String getDigest() {
+        return manifest.getDigest();
+    }
+
+    @Override
+    public CompletableFuture<NodeFrame> send(NodeInfo node) {
+        return attempt(node, 1);
+    }
+
+    // Chunks can be collected on the node between CHUNK_HAVE and MANIFEST_PUT; ask again if they were
+    private CompletableFuture<NodeFrame> attempt(NodeInfo node, int attempt) {
+        return missingOn(node)
+                .thenCompose(missing -> missing.isOk() ? putAll(node, missing.getFields())
+                        : CompletableFuture.completedFuture(missing))
+                .thenCompose(put -> put.isOk()
+                        ? connectionPool.send(node, NodeProtocol.MANIFEST_PUT, manifestBytes, department, filename)
+                        : CompletableFuture.completedFuture(put))
+                .thenCompose(reply -> reply.getStatus() == NodeProtocol.STATUS_MISMATCH
+                        && reply.getOpcode() == NodeProtocol.MANIFEST_PUT && attempt < MAX_ATTEMPTS
+                        ? attempt(node, attempt + 1) : CompletableFuture.completedFuture(reply));
+    }
+
+    // One CHUNK_HAVE per batch of hashes, combined into a reply listing every missing chunk (or the first refusal)
+    private CompletableFuture<NodeFrame> missingOn(NodeInfo node) {
+        List<String> distinct = new ArrayList<>(chunks.keySet());
+        List<CompletableFuture<NodeFrame>> batches = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i += NodeProtocol.CHUNK_HAVE_BATCH) {
+            List<String> batch = distinct.subList(i, Math.min(distinct.size(), i + NodeProtocol.CHUNK_HAVE_BATCH));
+            batches.add(connectionPool.send(node, NodeProtocol.CHUNK_HAVE, null, batch.toArray(new String[0])));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<String> missing = new ArrayList<>();
+            for (CompletableFuture<NodeFrame> batch : batches) {
+                NodeFrame reply = batch.join();
+                if (!reply.isOk()) {
+                    return reply;
+                }
+                missing.addAll(Arrays.asList(reply.getFields()));
+            }
+            return NodeFrame.request(NodeProtocol.CHUNK_HAVE, null, missing.toArray(new String[0]));
+        });
+    }
+
+    private CompletableFuture<NodeFrame> putAll(NodeInfo node, String[] missing) {
+        List<CompletableFuture<NodeFrame>> puts = new ArrayList<>();
+        for (String hash : missing) {
+            puts.add(connectionPool.send(node, NodeProtocol.CHUNK_PUT, stored(hash), hash));
+        }
+        return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            for (CompletableFuture<NodeFrame> put : puts) {
+                if (!put.join().isOk()) {
+                    return put.join();
+                }
+            }
+            return NodeFrame.request(NodeProtocol.CHUNK_PUT, null);
+        });
+    }
+
+    private byte[] stored(String hash) {
+        return storedChunks.computeIfAbsent(hash, h -> Compression.encode(chunks.get(h), level));
+    }
+}
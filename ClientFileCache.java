@@ -0,0 +1,109 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * FileClient's local copy of files it has read, each stored with its version
+ * (the SHA-256 the coordinator reports). A read sends the cached version and
+ * only gets content back if the file changed.
+ *
+ * Kept in memory, LRU-bounded by dfs.client.cacheMaxBytes, unless
+ * dfs.client.cacheDir is set, in which case entries live on disk and survive
+ * client restarts.
+ */
+public class ClientFileCache {
+    private final Path directory; // null for the in-memory cache
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    public static class Entry {
+        private final String digest;
+        private final byte[] content;
+
+        Entry(String digest, byte[] content) {
+            this.digest = digest;
+            this.content = content;
+        }
+
+        public String getDigest() { return digest; }
+        public byte[] getContent() { return content; }
+    }
+
+    public ClientFileCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public static ClientFileCache fromSystemProperties() {
+        String dir = System.getProperty("dfs.client.cacheDir");
+        return new ClientFileCache(dir == null ? null : Paths.get(dir),
+                Long.getLong("dfs.client.cacheMaxBytes", 32L * 1024 * 1024));
+    }
+
+    public synchronized Entry get(String department, String filename) {
+        String key = department + "/" + filename;
+        if (directory == null) {
+            return memory.get(key);
+        }
+        try {
+            Path etag = entryPath(key, ".etag");
+            Path data = entryPath(key, ".data");
+            if (!Files.exists(etag) || !Files.exists(data)) {
+                return null;
+            }
+            return new Entry(new String(Files.readAllBytes(etag), StandardCharsets.UTF_8), Files.readAllBytes(data));
+        } catch (IOException e) {
+            return null; // a broken entry is just a miss
+        }
+    }
+
+    public synchronized void put(String department, String filename, String digest, byte[] content) {
+        String key = department + "/" + filename;
+        if (directory == null) {
+            if (content.length > maxBytes) {
+                return;
+            }
+            Entry previous = memory.put(key, new Entry(digest, content));
+            memoryBytes += content.length - (previous == null ? 0 : previous.content.length);
+            Iterator<Entry> eldest = memory.values().iterator();
+            while (memoryBytes > maxBytes && eldest.hasNext()) {
+                memoryBytes -= eldest.next().content.length;
+                eldest.remove();
+            }
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            // Data first, etag last: a crash in between leaves an entry that reads as a miss
+            Files.deleteIfExists(entryPath(key, ".etag"));
+            Files.write(entryPath(key, ".data"), content);
+            Files.write(entryPath(key, ".etag"), digest.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Could not cache " + key + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void remove(String department, String filename) {
+        String key = department + "/" + filename;
+        if (directory == null) {
+            Entry removed = memory.remove(key);
+            if (removed != null) {
+                memoryBytes -= removed.content.length;
+            }
+            return;
+        }
+        try {
+            Files.deleteIfExists(entryPath(key, ".etag"));
+            Files.deleteIfExists(entryPath(key, ".data"));
+        } catch (IOException e) {
+            System.err.println("Could not drop cached " + key + ": " + e.getMessage());
+        }
+    }
+
+    // Hashed names, so any department or filename maps to a safe file name
+    private Path entryPath(String key, String suffix) {
+        return directory.resolve(Digests.sha256(key.getBytes(StandardCharsets.UTF_8)) + suffix);
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.zip.*;
+
+/**
+ * Stored form of file contents on the nodes: either the raw bytes, or a
+ * DEFLATE stream behind a small header
+ *
+ *   int    MAGIC ("DFSZ")
+ *   long   raw length
+ *   bytes  raw DEFLATE data
+ *
+ * Files are compressed once, by whoever ingests them (the coordinator, or the
+ * node when committing a streamed upload), and then stored and copied between
+ * nodes in that form. Readers that don't ask for the stored form get the raw
+ * bytes. Digests always describe the raw content, so compressed and raw
+ * replicas of a file compare equal.
+ *
+ * Large files are further split into chunks on the nodes (see ChunkStore);
+ * each chunk then has a stored form of its own.
+ *
+ * The level comes from dfs.compression.<department>, falling back to
+ * dfs.compression: "none" (the default), "fast" (Deflater.BEST_SPEED) or
+ * "max" (Deflater.BEST_COMPRESSION, for cold data).
+ */
+public final class Compression {
+    public static final int MAGIC = 0x4446535A; // "DFSZ"
+    public static final int HEADER_BYTES = 12;
+    public static final int NONE = -1;
+    // Value of the encoding reply field when a node returns the stored form
+    public static final String DEFLATE = "deflate";
+
+    private Compression() {
+    }
+
+    public static int levelFor(String department) {
+        return parseLevel(settingFor(department));
+    }
+
+    /** The configured level name for a department, as accepted by parseLevel. */
+    public static String settingFor(String department) {
+        return System.getProperty("dfs.compression." + department, System.getProperty("dfs.compression", "none"));
+    }
+
+    public static int parseLevel(String name) {
+        switch (name == null ? "none" : name.toLowerCase()) {
+            case "fast":
+                return Deflater.BEST_SPEED;
+            case "max":
+                return Deflater.BEST_COMPRESSION;
+            case "none":
+                return NONE;
+            default:
+                throw new IllegalArgumentException("Unknown compression level: " + name);
+        }
+    }
+
+    /**
+     * Stored form of raw content at the given level. Content that doesn't get
+     * smaller stays raw, unless it happens to start with MAGIC or a chunk
+     * manifest's magic: that is always wrapped, so stored bytes are never
+     * ambiguous.
+     */
+    public static byte[] encode(byte[] raw, int level) {
+        boolean mustWrap = looksStored(raw, raw.length);
+        if (level == NONE && !mustWrap) {
+            return raw;
+        }
+        Deflater deflater = new Deflater(level == NONE ? Deflater.NO_COMPRESSION : level, true);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_BYTES + raw.length / 2 + 64);
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeLong(raw.length);
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            byte[] encoded = out.toByteArray();
+            return encoded.length < raw.length || mustWrap ? encoded : raw;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static boolean isEncoded(byte[] stored) {
+        return startsWithMagic(stored, stored.length);
+    }
+
+    public static boolean isEncoded(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(HEADER_BYTES);
+            return startsWithMagic(head, head.length);
+        }
+    }
+
+    /** Raw content of stored bytes. */
+    public static byte[] decode(byte[] stored) throws IOException {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+        try (InputStream in = inflate(new ByteArrayInputStream(stored))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Size of the raw content of a stored file. */
+    public static long rawSize(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            byte[] head = in.readNBytes(HEADER_BYTES);
+            if (!startsWithMagic(head, head.length)) {
+                return Files.size(file);
+            }
+            return new DataInputStream(new ByteArrayInputStream(head, 4, 8)).readLong();
+        }
+    }
+
+    /** Stream of the raw content of a stored file. */
+    public static InputStream openRaw(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        in.mark(HEADER_BYTES);
+        byte[] head = in.readNBytes(HEADER_BYTES);
+        in.reset();
+        return startsWithMagic(head, head.length) ? inflate(in) : in;
+    }
+
+    public static byte[] readRaw(Path file) throws IOException {
+        try (InputStream in = openRaw(file)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Replaces a file of raw content with its stored form, streaming, by the same rules as encode. */
+    public static void encodeFile(Path file, int level) throws IOException {
+        boolean mustWrap; // raw content that merely looks compressed or chunked
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(HEADER_BYTES);
+            mustWrap = looksStored(head, head.length);
+        }
+        if (level == NONE && !mustWrap) {
+            return;
+        }
+        Path encoded = file.resolveSibling(file.getFileName() + ".z");
+        Deflater deflater = new Deflater(level == NONE ? Deflater.NO_COMPRESSION : level, true);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(encoded),
+                     64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeLong(Files.size(file));
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 64 * 1024);
+            in.transferTo(deflated);
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        if (Files.size(encoded) < Files.size(file) || mustWrap) {
+            Files.move(encoded, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.delete(encoded);
+        }
+    }
+
+    // Skips the header and inflates the rest; the caller has checked the magic
+    private static InputStream inflate(InputStream stored) throws IOException {
+        if (stored.readNBytes(HEADER_BYTES).length != HEADER_BYTES) {
+            throw new EOFException("Truncated compressed file header");
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(stored, inflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    private static boolean looksStored(byte[] data, int length) {
+        return startsWithMagic(data, length) || ChunkManifest.isManifest(data, length);
+    }
+
+    private static boolean startsWithMagic(byte[] data, int length) {
+        return length >= HEADER_BYTES && Arrays.equals(data, 0, 4, new byte[] {0x44, 0x46, 0x53, 0x5A}, 0, 4);
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.*;
+
+/**
+ * Places a file on the first active nodes clockwise from its key on the
+ * consistent-hash ring, so its location can be computed from the key alone
+ * and a membership change moves only the neighbouring key ranges.
+ */
+public class ConsistentHashPlacement implements PlacementStrategy {
+    private final ConsistentHashRing ring;
+
+    public ConsistentHashPlacement(ConsistentHashRing ring) {
+        this.ring = ring;
+    }
+
+    @Override
+    public List<NodeInfo> select(String department, String filename, List<NodeInfo> candidates, int count) {
+        Set<String> candidateIds = new HashSet<>();
+        for (NodeInfo node : candidates) {
+            candidateIds.add(node.getNodeId());
+        }
+        List<NodeInfo> selected = ring.nodesFor(department + "/" + filename, count,
+                node -> candidateIds.contains(node.getNodeId()));
+
+        // Candidates not on the ring yet only fill in when the ring runs short
+        for (int i = 0; selected.size() < count && i < candidates.size(); i++) {
+            if (!selected.contains(candidates.get(i))) {
+                selected.add(candidates.get(i));
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,91 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Consistent-hash ring mapping file keys (department + "/" + filename) to
+ * storage nodes.
+ *
+ * Each node owns virtualNodes points on the ring, so load spreads evenly and
+ * a node joining or leaving moves only about 1/N of the keys. A key's replicas
+ * are the first distinct nodes found walking clockwise from its hash.
+ *
+ * Lookups read an immutable snapshot; membership changes replace it.
+ */
+public class ConsistentHashRing {
+    private final int virtualNodes;
+    private volatile NavigableMap<Long, NodeInfo> ring = new TreeMap<>();
+    private volatile Set<String> members = new HashSet<>();
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    public synchronized void add(NodeInfo node) {
+        NavigableMap<Long, NodeInfo> next = new TreeMap<>(withoutNode(node.getNodeId()));
+        for (int i = 0; i < virtualNodes; i++) {
+            next.put(hash(node.getNodeId() + "#" + i), node);
+        }
+        Set<String> nextMembers = new HashSet<>(members);
+        nextMembers.add(node.getNodeId());
+        ring = next;
+        members = nextMembers;
+    }
+
+    public synchronized void remove(String nodeId) {
+        Set<String> nextMembers = new HashSet<>(members);
+        nextMembers.remove(nodeId);
+        ring = withoutNode(nodeId);
+        members = nextMembers;
+    }
+
+    public boolean contains(NodeInfo node) {
+        return members.contains(node.getNodeId());
+    }
+
+    /** First count distinct nodes clockwise from the key's position. */
+    public List<NodeInfo> nodesFor(String key, int count) {
+        return nodesFor(key, count, node -> true);
+    }
+
+    /** Like nodesFor, skipping nodes that are not eligible (e.g. inactive). */
+    public List<NodeInfo> nodesFor(String key, int count, Predicate<NodeInfo> eligible) {
+        NavigableMap<Long, NodeInfo> snapshot = ring;
+        List<NodeInfo> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        if (snapshot.isEmpty()) {
+            return result;
+        }
+
+        long position = hash(key);
+        List<Collection<NodeInfo>> clockwise = Arrays.asList(
+                snapshot.tailMap(position, true).values(), snapshot.headMap(position, false).values());
+        for (Collection<NodeInfo> part : clockwise) {
+            for (NodeInfo node : part) {
+                if (result.size() >= count) {
+                    return result;
+                }
+                if (seen.add(node.getNodeId()) && eligible.test(node)) {
+                    result.add(node);
+                }
+            }
+        }
+        return result;
+    }
+
+    private NavigableMap<Long, NodeInfo> withoutNode(String nodeId) {
+        NavigableMap<Long, NodeInfo> next = new TreeMap<>(ring);
+        next.values().removeIf(node -> node.getNodeId().equals(nodeId));
+        return next;
+    }
+
+    // First 8 bytes of SHA-256: well mixed, and stable across JVMs unlike String.hashCode
+    static long hash(String value) {
+        byte[] digest = Digests.newSha256().digest(value.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+}
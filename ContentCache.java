@@ -0,0 +1,180 @@
+import java.util.*;
+
+/**
+ * Byte-bounded cache of file contents on the coordinator, with W-TinyLFU
+ * eviction.
+ *
+ * New entries go into a small LRU window (1% of the budget). Entries pushed
+ * out of the window only enter the main area if the FrequencySketch says
+ * they are more popular than the main area's eviction victim, so a burst of
+ * one-off reads cannot flush the hot set. The main area is a segmented LRU:
+ * entries read again while on probation move to the protected segment (80%).
+ *
+ * Every entry carries the SHA-256 of its content and a lookup must name the
+ * digest it expects, so an entry left over from an older version is never
+ * served even if an invalidation raced with the read that filled it.
+ */
+public class ContentCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final FrequencySketch sketch;
+
+    // Access-ordered, so the first entry is always the least recently used
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long invalidations;
+
+    private static class Entry {
+        final String key;
+        final String digest;
+        final byte[] content;
+
+        Entry(String key, String digest, byte[] content) {
+            this.key = key;
+            this.digest = digest;
+            this.content = content;
+        }
+    }
+
+    public ContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 4096)));
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /** Cached content of key if it has the given digest, otherwise null. */
+    public synchronized byte[] get(String key, String digest) {
+        if (!isEnabled()) {
+            return null;
+        }
+        sketch.increment(key);
+
+        Entry entry = window.get(key);
+        if (entry == null) {
+            entry = protectedSegment.get(key);
+        }
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                // Second hit in the main area: promote, demoting protected LRU entries if needed
+                probationBytes -= entry.content.length;
+                protectedSegment.put(key, entry);
+                protectedBytes += entry.content.length;
+                demoteProtected();
+            }
+        }
+
+        if (entry == null || !entry.digest.equals(digest)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.content;
+    }
+
+    public synchronized void put(String key, String digest, byte[] content) {
+        if (!isEnabled() || content.length > maxEntryBytes) {
+            return;
+        }
+        remove(key);
+        window.put(key, new Entry(key, digest, content));
+        windowBytes += content.length;
+
+        while (windowBytes > windowMax && !window.isEmpty()) {
+            Entry candidate = removeFirst(window);
+            windowBytes -= candidate.content.length;
+            admit(candidate);
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        if (remove(key)) {
+            invalidations++;
+        }
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, rejections, invalidations,
+                window.size() + probation.size() + protectedSegment.size(),
+                windowBytes + probationBytes + protectedBytes, maxBytes);
+    }
+
+    // TinyLFU admission: the window's victim competes with the main area's victim
+    private void admit(Entry candidate) {
+        long mainMax = maxBytes - windowMax;
+        while (probationBytes + protectedBytes + candidate.content.length > mainMax) {
+            if (probation.isEmpty() && !protectedSegment.isEmpty()) {
+                Entry demoted = removeFirst(protectedSegment);
+                protectedBytes -= demoted.content.length;
+                probation.put(demoted.key, demoted);
+                probationBytes += demoted.content.length;
+            }
+            if (probation.isEmpty()) {
+                rejections++;
+                return;
+            }
+            Entry victim = probation.entrySet().iterator().next().getValue();
+            if (sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                rejections++;
+                return;
+            }
+            probation.remove(victim.key);
+            probationBytes -= victim.content.length;
+            evictions++;
+        }
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.content.length;
+    }
+
+    private void demoteProtected() {
+        while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+            Entry demoted = removeFirst(protectedSegment);
+            protectedBytes -= demoted.content.length;
+            probation.put(demoted.key, demoted);
+            probationBytes += demoted.content.length;
+        }
+    }
+
+    private boolean remove(String key) {
+        Entry entry = window.remove(key);
+        if (entry != null) {
+            windowBytes -= entry.content.length;
+            return true;
+        }
+        entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.content.length;
+            return true;
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.content.length;
+            return true;
+        }
+        return false;
+    }
+
+    private static Entry removeFirst(LinkedHashMap<String, Entry> segment) {
+        Iterator<Entry> iterator = segment.values().iterator();
+        Entry first = iterator.next();
+        iterator.remove();
+        return first;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a byte stream into content-defined chunks with a gear rolling hash
+ * (the FastCDC scheme), so an insertion or deletion only changes the chunks
+ * around it and the rest still deduplicate.
+ *
+ * Chunks are MIN_BYTES to MAX_BYTES long, about AVG_BYTES on average: no cut
+ * is considered before MIN_BYTES, a strict mask is used up to AVG_BYTES and a
+ * looser one after it, and MAX_BYTES always cuts.
+ */
+public final class ContentDefinedChunker {
+    public static final int MIN_BYTES = 2 * 1024;
+    public static final int AVG_BYTES = 8 * 1024;
+    public static final int MAX_BYTES = 64 * 1024;
+
+    // High bits of the gear hash depend on the last 64 bytes only
+    private static final long MASK_STRICT = ((1L << 15) - 1) << 49;
+    private static final long MASK_LOOSE = ((1L << 11) - 1) << 53;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: every node and the coordinator must cut identical content identically
+        Random random = new Random(0x4446534348554E4BL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public interface ChunkSink {
+        void accept(byte[] chunk) throws IOException;
+    }
+
+    private ContentDefinedChunker() {
+    }
+
+    /** Reads the stream to its end, passing each chunk to the sink in order. */
+    public static void split(InputStream in, ChunkSink sink) throws IOException {
+        byte[] buffer = new byte[MAX_BYTES];
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && filled < buffer.length) {
+                int n = in.read(buffer, filled, buffer.length - filled);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    filled += n;
+                }
+            }
+            if (filled == 0) {
+                return;
+            }
+            int cut = cutPoint(buffer, filled);
+            sink.accept(Arrays.copyOf(buffer, cut));
+            System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+            filled -= cut;
+        }
+    }
+
+    private static int cutPoint(byte[] data, int length) {
+        if (length <= MIN_BYTES) {
+            return length;
+        }
+        long hash = 0;
+        int i = MIN_BYTES;
+        int normal = Math.min(AVG_BYTES, length);
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_STRICT) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_LOOSE) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
@@ -1,28 +1,106 @@
 import java.io.*;
-import java.net.*;  // Add this import for Socket
+import java.net.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorInterface {
-    private Map<String, User> users = new HashMap<>();
-    private Map<String, User> tokenToUser = new HashMap<>();
-    private List<NodeInfo> nodes = new ArrayList<>();
+    // Metadata log record types, see persist() and applyRecord()
+    private static final byte RECORD_NODE = 1;            // nodeId, address, port
+    private static final byte RECORD_NODE_REMOVED = 2;    // nodeId
+    private static final byte RECORD_USER = 3;            // username, password, department, permissions
+    private static final byte RECORD_TOKEN = 4;           // token, username
+    private static final byte RECORD_FILE = 5;            // department, filename, sha256, replica nodeIds
+    private static final byte RECORD_FILE_REMOVED = 6;    // department, filename
+    private static final byte RECORD_REPLICATION = 7;     // department, factor
+    private static final byte RECORD_TOMBSTONE = 8;       // department, filename, nodeIds still to confirm
+
+    private static final int SYNC_JOB_HISTORY = 32;
+
+    private Map<String, User> users = new ConcurrentHashMap<>();
+    private Map<String, User> tokenToUser = new ConcurrentHashMap<>();
+    private List<NodeInfo> nodes = new CopyOnWriteArrayList<>();
     private AtomicInteger currentNodeIndex = new AtomicInteger(0);
-    private Map<String, List<FileMetadata>> fileIndex = new HashMap<>();
+    // Keyed by department + "/" + filename, see fileKey()
+    private final ConcurrentMap<String, FileMetadata> fileIndex = new ConcurrentHashMap<>();
     private String managerToken = "MANAGER_TOKEN"; // In real system, generate properly
+    private final long nodeTimeoutMillis = Long.getLong("dfs.node.timeoutMillis", 30_000);
+    private final NodeConnectionPool connectionPool = new NodeConnectionPool(
+            Integer.getInteger("dfs.node.connections", 2), nodeTimeoutMillis);
+    // Replicas per file, set by managers per department; falls back to dfs.replication.factor[.<department>]
+    private final Map<String, Integer> replicationFactors = new ConcurrentHashMap<>();
+    private final AtomicInteger readIndex = new AtomicInteger(0);
+    private final NodeLoadMonitor loadMonitor = new NodeLoadMonitor(nodes, connectionPool,
+            Long.getLong("dfs.placement.minFreeBytes", 256L * 1024 * 1024));
+    private final ConsistentHashRing ring = new ConsistentHashRing(Integer.getInteger("dfs.ring.virtualNodes", 128));
+    private final PlacementStrategy placement = PlacementStrategy.fromSystemProperties(loadMonitor, ring);
+    private final ContentCache contentCache = new ContentCache(
+            Long.getLong("dfs.cache.maxBytes", 64L * 1024 * 1024),
+            Long.getLong("dfs.cache.maxEntryBytes", 4L * 1024 * 1024));
+    private final NodeHealthMonitor healthMonitor = NodeHealthMonitor.fromSystemProperties(nodes, connectionPool);
+    private final FileWriteLocks writeLocks = new FileWriteLocks();
+    private final Rebalancer rebalancer = new Rebalancer(fileIndex, ring, connectionPool, writeLocks,
+            Long.getLong("dfs.rebalance.bandwidthBytesPerSecond", 10L * 1024 * 1024), this::replicationFactor,
+            metadata -> persistQuietly(metadata.getDepartment(), metadata.getFilename()));
+    private final IndexRebuilder indexRebuilder = new IndexRebuilder(connectionPool, nodeTimeoutMillis,
+            Integer.getInteger("dfs.rebuild.pipelineDepth", 16), this::mergeInventory);
+    // Modification time of each version the running rebuild put in the index, to pick the newest one
+    private final Map<String, Long> rebuiltVersions = new ConcurrentHashMap<>();
+    // Deleted while a rebuild runs; an inventory page read before the delete must not bring them back
+    private final Set<String> deletedDuringRebuild = ConcurrentHashMap.newKeySet();
+    // Deleted files some node may still hold, by file key; lookups and rebuilds must not bring them back
+    private final ConcurrentMap<String, Tombstone> tombstones = new ConcurrentHashMap<>();
+    private final MetadataStore metadataStore = new MetadataStore(
+            Paths.get(System.getProperty("dfs.coordinator.dataDir", "coordinator_data")),
+            Long.getLong("dfs.metadata.snapshotEveryRecords", 100_000));
+    private final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+    private final FileCopier uploadCopier = new FileCopier(connectionPool, null);
+    // Copies of streamed uploads to their other replicas; each one blocks on node calls for the whole file
+    private final ExecutorService uploadReplication = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "upload-replication");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long uploadReplicationTimeoutMillis = Long.getLong("dfs.upload.replicationTimeoutMillis",
+            10 * 60 * 1000);
+    private final LockManager lockManager =
+            new LockManager(Long.getLong("dfs.lock.leaseMillis", 5 * 60 * 1000));
+    private final Map<String, SyncJob> syncJobs = new ConcurrentHashMap<>();
+    private final long syncJobRetentionMillis = Long.getLong("dfs.sync.jobRetentionMillis", 24 * 60 * 60 * 1000);
 
     public CoordinatorImpl() throws RemoteException {
         super();
+        // Reload users, nodes and the file index written before the last shutdown
+        try {
+            metadataStore.recover(this::applyRecord, this::dumpState);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to recover coordinator metadata", e);
+        }
+
         // Initialize with manager user
-        User manager = new User("manager", "manager123", "management");
-        manager.addPermission("manage_users");
-        manager.addPermission("manage_nodes");
+        User manager = users.get("manager");
+        if (manager == null) {
+            manager = new User("manager", "manager123", "management");
+            manager.addPermission("manage_users");
+            manager.addPermission("manage_nodes");
+            users.put("manager", manager);
+            persistUser(manager);
+        }
         manager.setToken(managerToken);
-        users.put("manager", manager);
         tokenToUser.put(managerToken, manager);
+        loadMonitor.start(Long.getLong("dfs.placement.statsIntervalMillis", 1000));
+        // A node back from a blip may be owed the copies rebalancing skipped while it was down
+        healthMonitor.addReactivationListener(node -> {
+            if (placement instanceof ConsistentHashPlacement) {
+                rebalancer.trigger();
+            }
+        });
+        healthMonitor.start();
+        startTombstoneRetries(Long.getLong("dfs.delete.retryMillis", 30_000));
     }
 
     @Override
@@ -33,92 +111,252 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
             throw new RemoteException("Authentication failed: Invalid token");
         }
 
-        // 2. Validate department permissions
+        // 2-4. Validate department permissions, filename and content
+        validateNewFile(user, file);
+
+        // 5. Check for available nodes
+        if (nodes.isEmpty()) {
+            throw new RemoteException("System error: No storage nodes available");
+        }
+
+        // 6. Write to all replicas in parallel and record the nodes that acknowledged
+        storeReplicated(user, file);
+        return true;
+    }
+
+    private void validateNewFile(User user, FileData file) throws RemoteException {
         if (!user.getDepartment().equals(file.getDepartment())) {
             throw new RemoteException("Permission denied: You can only create files in your department (" +
                     user.getDepartment() + ")");
         }
-
-        // 3. Validate filename
         if (file.getFilename() == null || file.getFilename().trim().isEmpty()) {
             throw new RemoteException("Invalid filename: Filename cannot be empty");
         }
         if (file.getFilename().contains("/") || file.getFilename().contains("\\")) {
             throw new RemoteException("Invalid filename: Cannot contain path separators");
         }
-
-        // 4. Validate content
         if (file.getContent() == null) {
             throw new RemoteException("Invalid content: File content cannot be null");
         }
         if (file.getContent().length > 10 * 1024 * 1024) { // 10MB limit
-            throw new RemoteException("File too large: Maximum size is 10MB");
+            throw new RemoteException("File too large: Maximum size is 10MB, use beginUpload for larger files");
         }
+    }
 
-        // 5. Check for available nodes
-        if (nodes.isEmpty()) {
-            throw new RemoteException("System error: No storage nodes available");
+    /**
+     * Sends the file to replicationFactor nodes at once, chosen among active
+     * nodes by the placement strategy, and returns when the write quorum has
+     * acknowledged with the right checksum. Remaining active nodes stand in
+     * for targets that fail.
+     */
+    private void storeReplicated(User user, FileData file) throws RemoteException {
+        ReentrantLock writeLock = writeLocks.lockFor(fileKey(file.getDepartment(), file.getFilename()));
+        writeLock.lock();
+        try {
+            List<NodeInfo> candidates = activeNodesInRotation();
+            if (candidates.isEmpty()) {
+                throw new RemoteException("No responsive nodes available");
+            }
+            int factor = replicationFactor(file.getDepartment());
+            List<NodeInfo> targets = placement.select(file.getDepartment(), file.getFilename(), candidates, factor);
+            List<NodeInfo> spares = new ArrayList<>(candidates);
+            spares.removeAll(targets);
+
+            String digest = Digests.sha256(file.getContent());
+            FileMetadata metadata = new FileMetadata(file.getFilename(), file.getDepartment(),
+                    Collections.<NodeInfo>emptyList());
+            writeReplicas(metadata, targets, spares, writeQuorum(factor),
+                    contentTransfer(NodeProtocol.UPLOAD, file, user.getUsername()), digest);
+
+            fileIndex.put(fileKey(file.getDepartment(), file.getFilename()), metadata);
+            tombstones.remove(fileKey(file.getDepartment(), file.getFilename()));
+            contentCache.invalidate(fileKey(file.getDepartment(), file.getFilename()));
+            persistFile(file.getDepartment(), file.getFilename());
+        } finally {
+            writeLock.unlock();
         }
+    }
 
-        // 6. Select node using round-robin with retry logic
-        int attempts = 0;
-        int maxAttempts = nodes.size();
-        NodeInfo node = null;
+    private void writeReplicas(FileMetadata metadata, List<NodeInfo> targets, List<NodeInfo> spares, int quorum,
+                               byte opcode, byte[] content, String digest, String... fields) throws RemoteException {
+        writeReplicas(metadata, targets, spares, quorum, node -> connectionPool.send(node, opcode, content, fields),
+                digest);
+    }
 
-        while (attempts < maxAttempts) {
-            node = nodes.get(currentNodeIndex.getAndIncrement() % nodes.size());
+    private void writeReplicas(FileMetadata metadata, List<NodeInfo> targets, List<NodeInfo> spares, int quorum,
+                               QuorumWrite.Transfer transfer, String digest) throws RemoteException {
+        StagedReplicas staged = new StagedReplicas(metadata, digest);
+        try {
+            quorumWrite(staged, targets, spares, quorum).execute(transfer, digest, nodeTimeoutMillis);
+        } catch (IOException e) {
+            staged.rollback();
+            throw new RemoteException("Write failed: " + e.getMessage());
+        }
+        staged.commit();
+    }
 
-            if (node.isActive()) {
-                try {
-                    // 7. Connect to node and send file
-                    try (Socket socket = new Socket(node.getAddress(), node.getPort());
-                         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                         ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    /*
+     * How a file's content goes to each replica: files large enough to be chunked as only the chunks
+     * the node lacks (see ChunkedUpload), the rest in one request. Either way it is compressed once
+     * here, and the nodes store and copy it in that form.
+     */
+    private QuorumWrite.Transfer contentTransfer(byte opcode, FileData file, String owner) {
+        int level = Compression.levelFor(file.getDepartment());
+        if (file.getContent().length >= ChunkManifest.chunkingThreshold()) {
+            return new ChunkedUpload(connectionPool, file.getDepartment(), file.getFilename(), file.getContent(),
+                    level);
+        }
+        byte[] stored = Compression.encode(file.getContent(), level);
+        String[] fields = { file.getDepartment(), file.getFilename(), owner,
+                Compression.settingFor(file.getDepartment()) };
+        return node -> connectionPool.send(node, opcode, stored, fields);
+    }
 
-                        // Set timeout for node communication
-                        socket.setSoTimeout(5000); // 5 seconds timeout
+    private QuorumWrite quorumWrite(StagedReplicas staged, List<NodeInfo> targets, List<NodeInfo> spares,
+                                    int quorum) {
+        return new QuorumWrite(connectionPool, targets, spares, quorum, staged);
+    }
 
-                        out.writeObject("UPLOAD");
-                        out.writeObject(file);
+    /*
+     * The replica outcomes of one write, held back from the file's metadata until the write is settled.
+     * On success the new version is recorded with the nodes that acknowledged it, and nodes that missed
+     * it stop serving reads. On failure the metadata keeps the old version and its replicas, minus any
+     * node that did take the new content. Outcomes arriving after that are applied, and logged, straight away.
+     */
+    private final class StagedReplicas implements QuorumWrite.Listener {
+        private final FileMetadata metadata;
+        private final String digest; // the version being written
+        private final List<NodeInfo> acked = new ArrayList<>();
+        private final List<NodeInfo> failed = new ArrayList<>();
+        private Boolean committed; // null while the write is in flight
+
+        StagedReplicas(FileMetadata metadata, String digest) {
+            this.metadata = metadata;
+            this.digest = digest;
+        }
 
-                        // 8. Verify node response
-                        String response = (String) in.readObject();
-                        if (!"OK: File created".equals(response)) {
-                            throw new RemoteException("Node error: " + response);
-                        }
+        synchronized void commit() {
+            committed = true;
+            synchronized (metadata) {
+                metadata.setDigest(digest);
+                for (NodeInfo node : acked) {
+                    metadata.addReplica(node);
+                }
+                for (NodeInfo node : failed) {
+                    metadata.removeReplica(node);
+                }
+            }
+        }
 
-                        // 9. Verify file was actually created
-                        if (!verifyFileOnNode(node, file.getDepartment(), file.getFilename())) {
-                            throw new RemoteException("Verification failed: File not found on node");
-                        }
+        synchronized void rollback() {
+            committed = false;
+            for (NodeInfo node : acked) {
+                metadata.removeReplica(node);
+            }
+        }
 
-                        // 10. Update file index
-                        FileMetadata metadata = new FileMetadata(
-                                file.getFilename(),
-                                file.getDepartment(),
-                                node.getAddress(),
-                                node.getPort()
-                        );
-
-                        synchronized (fileIndex) {
-                            fileIndex.computeIfAbsent(file.getDepartment(), k -> new ArrayList<>())
-                                    .add(metadata);
-                        }
+        @Override
+        public void acked(NodeInfo node) {
+            synchronized (this) {
+                if (committed == null) {
+                    acked.add(node);
+                    return;
+                }
+                if (committed) {
+                    metadata.addReplica(node);
+                } else {
+                    metadata.removeReplica(node); // holds a version the index never took
+                }
+            }
+            persistLate();
+        }
 
-                        return true;
-                    }
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Timeout with node " + node.getNodeId() + ", trying next node");
-                    node.setActive(false); // Mark node as inactive
-                } catch (IOException | ClassNotFoundException e) {
-                    System.err.println("Error with node " + node.getNodeId() + ": " + e.getMessage());
-                    node.setActive(false); // Mark node as inactive
+        @Override
+        public void failed(NodeInfo node, String reason) {
+            System.err.println("Write to node " + node.getNodeId() + " failed: " + reason);
+            synchronized (this) {
+                if (committed == null) {
+                    failed.add(node);
+                    return;
                 }
+                if (!committed) {
+                    return;
+                }
+                metadata.removeReplica(node); // a replica that missed the write is stale
+            }
+            persistLate();
+        }
+
+        // The write's own record has been (or is about to be) logged; log the change on top of it
+        private void persistLate() {
+            if (fileIndex.get(fileKey(metadata.getDepartment(), metadata.getFilename())) == metadata) {
+                persistQuietly(metadata.getDepartment(), metadata.getFilename());
+            }
+        }
+    }
+
+    // Active nodes, starting at the next round-robin position so placement ties rotate
+    private List<NodeInfo> activeNodesInRotation() {
+        List<NodeInfo> snapshot = new ArrayList<>(nodes);
+        List<NodeInfo> active = new ArrayList<>();
+        if (snapshot.isEmpty()) {
+            return active;
+        }
+        int start = Math.floorMod(currentNodeIndex.getAndIncrement(), snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            NodeInfo node = snapshot.get((start + i) % snapshot.size());
+            if (node.isActive()) {
+                active.add(node);
             }
-            attempts++;
         }
+        return active;
+    }
+
+    private int replicationFactor(String department) {
+        Integer factor = replicationFactors.get(department);
+        if (factor == null) {
+            factor = Integer.getInteger("dfs.replication.factor." + department,
+                    Integer.getInteger("dfs.replication.factor", 3));
+        }
+        return Math.max(1, Math.min(factor, nodes.size()));
+    }
 
-        throw new RemoteException("Failed after " + maxAttempts + " attempts: No responsive nodes available");
+    // dfs.replication.quorum acknowledgements, a majority of the replicas by default
+    private int writeQuorum(int factor) {
+        int quorum = Integer.getInteger("dfs.replication.quorum", factor / 2 + 1);
+        return Math.max(1, Math.min(quorum, factor));
+    }
+
+    // Replicas in rotating order so reads spread across them; inactive nodes go last as a fallback
+    private List<NodeInfo> replicasInReadOrder(FileMetadata metadata) {
+        List<NodeInfo> replicas = metadata.getReplicas();
+        List<NodeInfo> ordered = new ArrayList<>();
+        List<NodeInfo> inactive = new ArrayList<>();
+        int start = replicas.isEmpty() ? 0 : Math.floorMod(readIndex.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            NodeInfo node = replicas.get((start + i) % replicas.size());
+            (node.isActive() ? ordered : inactive).add(node);
+        }
+        ordered.addAll(inactive);
+        return ordered;
+    }
+
+    // Calls the first replica that answers and has the file
+    private NodeFrame callReplica(FileMetadata metadata, byte opcode, String... fields) throws IOException {
+        IOException failure = new IOException("No replicas available");
+        for (NodeInfo node : replicasInReadOrder(metadata)) {
+            try {
+                NodeFrame response = connectionPool.call(node, opcode, null, fields);
+                if (response.getStatus() != NodeProtocol.STATUS_NOT_FOUND) {
+                    return response;
+                }
+                failure = new IOException(node.getNodeId() + ": " + response.getMessage());
+            } catch (IOException e) {
+                System.err.println("Read from node " + node.getNodeId() + " failed: " + e.getMessage());
+                failure = e;
+            }
+        }
+        throw failure;
     }
 
     @Override
@@ -130,13 +368,7 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
         }
 
         // Check if file is locked (and not by current user)
-        boolean isLocked = isFileLocked(token, filename, department);
-        if (isLocked) {
-            FileMetadata metadata = getFileMetadata(filename, department);
-            if (metadata != null && !metadata.getLockedBy().equals(user.getUsername())) {
-                throw new RemoteException("File is locked by another user");
-            }
-        }
+        ensureNotLockedByOther(user, filename, department);
 
 
         // 2. Check if user has access to this department
@@ -145,80 +377,146 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
         }*/
 
         // 3. Find the file in the index
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(department);
-            if (deptFiles != null) {
-                for (FileMetadata metadata : deptFiles) {
-                    if (metadata.getFilename().equals(filename)) {
-                        // 4. Retrieve file from node
-                        try (Socket socket = new Socket(metadata.getNodeAddress(), metadata.getNodePort());
-                             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-                            out.writeObject("DOWNLOAD");
-                            out.writeObject(department);
-                            out.writeObject(filename);
-
-                            Object response = in.readObject();
-                            if (response instanceof FileData) {
-                                return ((FileData) response).getContent();
-                            } else {
-                                throw new RemoteException("Node error: " + response);
-                            }
-                        } catch (Exception e) {
-                            throw new RemoteException("Failed to read file from node: " + e.getMessage());
-                        }
-                    }
+        FileMetadata metadata = getFileMetadata(filename, department);
+        if (metadata == null) {
+            throw new RemoteException("File not found");
+        }
+
+        // 4. Serve hot files from memory, as long as the cached copy is the current version
+        String key = fileKey(department, filename);
+        String digest = metadata.getDigest();
+        byte[] cached = contentCache.get(key, digest);
+        if (cached != null) {
+            return cached;
+        }
+
+        // 5. Retrieve file from one of its replicas
+        try {
+            NodeFrame response = callReplica(metadata, NodeProtocol.DOWNLOAD, department, filename,
+                    Compression.DEFLATE);
+            if (response.isOk()) {
+                byte[] content = rawContent(response);
+                // Only cache bytes proven to be the indexed version; a racing update may have replaced it
+                if (digest != null && contentCache.isEnabled() && digest.equals(Digests.sha256(content))) {
+                    contentCache.put(key, digest, content);
                 }
+                return content;
+            } else {
+                throw new RemoteException("Node error: " + response.getMessage());
             }
+        } catch (Exception e) {
+            throw new RemoteException("Failed to read file from node: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public VersionedContent readFileIfModified(String token, String filename, String department, String knownDigest)
+            throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
+        ensureNotLockedByOther(user, filename, department);
+
+        FileMetadata metadata = getFileMetadata(filename, department);
+        if (metadata == null) {
+            throw new RemoteException("File not found");
+        }
+        if (knownDigest != null && knownDigest.equals(metadata.getDigest())) {
+            return VersionedContent.notModified(knownDigest);
         }
 
-        throw new RemoteException("File not found");
+        // Version the bytes actually returned, so a racing update can't pair old content with a new version
+        byte[] content = readFile(token, filename, department);
+        return VersionedContent.modified(Digests.sha256(content), content);
+    }
+
+    // Content of a DOWNLOAD reply, inflated if the node sent the compressed stored form
+    private static byte[] rawContent(NodeFrame response) throws IOException {
+        return Compression.DEFLATE.equals(response.field(0)) ? Compression.decode(response.getPayload())
+                : response.getPayload();
+    }
+
+    private void ensureNotLockedByOther(User user, String filename, String department) throws RemoteException {
+        String lockedBy = lockManager.getOwner(fileKey(department, filename));
+        if (lockedBy != null && !lockedBy.equals(user.getUsername())) {
+            throw new RemoteException("File is locked by another user");
+        }
+    }
+
+    // Unambiguous because department names can't contain "/" (see requireDepartmentName)
+    private static String fileKey(String department, String filename) {
+        return department + "/" + filename;
+    }
+
+    private static void requireDepartmentName(String department) throws RemoteException {
+        if (department == null || department.isEmpty() || department.contains("/")) {
+            throw new RemoteException("Invalid department name: " + department);
+        }
     }
 
     private FileMetadata getFileMetadata(String filename, String department) {
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(department);
-            if (deptFiles != null) {
-                for (FileMetadata metadata : deptFiles) {
-                    if (metadata.getFilename().equals(filename)) {
-                        return metadata;
-                    }
+        FileMetadata metadata = fileIndex.get(fileKey(department, filename));
+        if (metadata == null && (placement instanceof ConsistentHashPlacement || indexRebuilder.isRunning())) {
+            metadata = locate(filename, department);
+        }
+        return metadata;
+    }
+
+    /*
+     * Index miss: the ring says where the file should live, so ask those nodes before giving up.
+     * While the index is still being rebuilt the file may be on any node, so ask them all.
+     */
+    private FileMetadata locate(String filename, String department) {
+        List<NodeInfo> candidates = indexRebuilder.isRunning() ? activeNodesInRotation()
+                : ring.nodesFor(fileKey(department, filename), replicationFactor(department), NodeInfo::isActive);
+        List<NodeInfo> replicas = new ArrayList<>();
+        for (NodeInfo node : candidates) {
+            try {
+                if (connectionPool.call(node, NodeProtocol.STAT, null, department, filename).isOk()) {
+                    replicas.add(node);
                 }
+            } catch (IOException e) {
+                // unreachable node, try the next one
             }
         }
-        return null;
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        // A deleted file's copies are only leftovers the DELETE retries have not reached yet
+        FileMetadata located = new FileMetadata(filename, department, replicas);
+        FileMetadata indexed = fileIndex.compute(fileKey(department, filename),
+                (key, existing) -> existing != null || tombstones.containsKey(key) ? existing : located);
+        if (indexed == located) {
+            persistQuietly(department, filename);
+        }
+        return indexed;
     }
 
 
     @Override
     public boolean lockFile(String token, String filename, String department) throws RemoteException {
+        return lockFile(token, filename, department, 0);
+    }
+
+    @Override
+    public boolean lockFile(String token, String filename, String department, long timeoutMillis)
+            throws RemoteException {
         User user = tokenToUser.get(token);
         if (user == null) {
             throw new RemoteException("Authentication failed: Invalid token");
         }
 
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(department);
-            if (deptFiles != null) {
-                for (FileMetadata metadata : deptFiles) {
-                    if (metadata.getFilename().equals(filename)) {
-                        // If file is already locked (and not by current user)
-                        if (metadata.isLocked() && !metadata.getLockedBy().equals(user.getUsername())) {
-                            if (metadata.isLockExpired()) {
-                                // Auto-unlock expired locks
-                                metadata.unlock();
-                            } else {
-                                return false; // File is locked by someone else
-                            }
-                        }
-                        metadata.lock(user.getUsername());
-                        return true;
-                    }
-                }
-            }
+        if (getFileMetadata(filename, department) == null) {
+            throw new RemoteException("File not found");
+        }
+
+        try {
+            return lockManager.lock(fileKey(department, filename), user.getUsername(), timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for lock");
         }
-        throw new RemoteException("File not found");
     }
 
     @Override
@@ -228,42 +526,22 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
             throw new RemoteException("Authentication failed: Invalid token");
         }
 
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(department);
-            if (deptFiles != null) {
-                for (FileMetadata metadata : deptFiles) {
-                    if (metadata.getFilename().equals(filename)) {
-                        // Only unlock if locked by the same user
-                        if (metadata.isLocked() && metadata.getLockedBy().equals(user.getUsername())) {
-                            metadata.unlock();
-                            return true;
-                        }
-                        return false;
-                    }
-                }
-            }
+        if (getFileMetadata(filename, department) == null) {
+            throw new RemoteException("File not found");
         }
-        throw new RemoteException("File not found");
+
+        // Only unlocks if locked by the same user
+        return lockManager.unlock(fileKey(department, filename), user.getUsername());
     }
 
     @Override
     public boolean isFileLocked(String token, String filename, String department) throws RemoteException {
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(department);
-            if (deptFiles != null) {
-                for (FileMetadata metadata : deptFiles) {
-                    if (metadata.getFilename().equals(filename)) {
-                        // Check if lock is expired
-                        if (metadata.isLockExpired()) {
-                            metadata.unlock();
-                            return false;
-                        }
-                        return metadata.isLocked();
-                    }
-                }
-            }
+        if (getFileMetadata(filename, department) == null) {
+            throw new RemoteException("File not found");
         }
-        throw new RemoteException("File not found");
+
+        // Expired leases are released by the lock manager's timer
+        return lockManager.getOwner(fileKey(department, filename)) != null;
     }
 
 
@@ -294,6 +572,7 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
             String token = UUID.randomUUID().toString();
             user.setToken(token);
             tokenToUser.put(token, user);
+            persist(() -> new MetadataStore.Record(RECORD_TOKEN, token, user.getUsername()));
             return token;
         }
         throw new RemoteException("Invalid credentials");
@@ -305,7 +584,9 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
         if (manager == null || !manager.hasPermission("manage_users")) {
             throw new RemoteException("Permission denied");
         }
+        requireDepartmentName(user.getDepartment());
         users.put(user.getUsername(), user);
+        persistUser(user);
         return true;
     }
 
@@ -316,26 +597,15 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
             throw new RemoteException("Invalid token");
         }
 
-        // Check if there are any nodes
-        if (nodes.isEmpty()) {
-            throw new RemoteException("No storage nodes available");
+        FileMetadata metadata = getFileMetadata(filename, department);
+        if (metadata == null) {
+            return null;
         }
 
-        // Load balancing: round-robin approach
-        int attempts = 0;
-        while (attempts < nodes.size()) {
-            int index = currentNodeIndex.getAndIncrement() % nodes.size();
-            NodeInfo node = nodes.get(index);
-            
-            if (node.isActive()) {
-                // In real system, would check if file exists on this node
-                // For simplicity, we'll just return the first active node
-                return new FileMetadata(filename, department, node.getAddress(), node.getPort());
-            }
-            attempts++;
-        }
-        
-        throw new RemoteException("No active nodes available");
+        // Replicas are listed in read order, so callers going direct to a node spread their load too
+        FileMetadata located = new FileMetadata(filename, department, replicasInReadOrder(metadata));
+        located.setDigest(metadata.getDigest());
+        return located;
     }
 
     @Override
@@ -347,159 +617,427 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
 
         if (nodes.isEmpty()) throw new RemoteException("No storage nodes available");
 
-        NodeInfo node = nodes.get(currentNodeIndex.getAndIncrement() % nodes.size());
-        
-        try (Socket socket = new Socket(node.getAddress(), node.getPort());
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            
-            out.writeObject("UPLOAD");
-            out.writeObject(file);
-            
-            String response = (String) in.readObject();
-            if (!"OK: File uploaded".equals(response)) {
-                throw new RemoteException("Node upload failed: " + response);
-            }
-
-            // Verify file actually exists on node
-            if (!verifyFileOnNode(node, file.getDepartment(), file.getFilename())) {
-                throw new RemoteException("File verification failed after upload");
-            }
-            
-            FileMetadata metadata = new FileMetadata(file.getFilename(), 
-                                                file.getDepartment(),
-                                                node.getAddress(), 
-                                                node.getPort());
-            fileIndex.computeIfAbsent(file.getDepartment(), k -> new ArrayList<>())
-                    .add(metadata);
+        try {
+            storeReplicated(user, file);
             return true;
-        } catch (Exception e) {
+        } catch (RemoteException e) {
             throw new RemoteException("Upload failed: " + e.getMessage());
         }
     }
 
-    private boolean verifyFileOnNode(NodeInfo node, String department, String filename) {
-        try (Socket socket = new Socket(node.getAddress(), node.getPort());
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            
-            out.writeObject("VERIFY");
-            out.writeObject(department);
-            out.writeObject(filename);
-            
-            return (boolean) in.readObject();
-        } catch (Exception e) {
-            return false;
+    @Override
+    public String beginUpload(String token, String filename, String department) throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
+        if (!user.getDepartment().equals(department)) {
+            throw new RemoteException("Permission denied: You can only create files in your department (" +
+                    user.getDepartment() + ")");
+        }
+        if (filename == null || filename.trim().isEmpty()) {
+            throw new RemoteException("Invalid filename: Filename cannot be empty");
+        }
+        if (filename.contains("/") || filename.contains("\\")) {
+            throw new RemoteException("Invalid filename: Cannot contain path separators");
+        }
+        if (nodes.isEmpty()) {
+            throw new RemoteException("System error: No storage nodes available");
+        }
+
+        String uploadId = UUID.randomUUID().toString();
+        List<NodeInfo> candidates = activeNodesInRotation();
+        List<NodeInfo> preferred = placement.select(department, filename, candidates, candidates.size());
+        for (NodeInfo node : preferred) {
+            try {
+                NodeFrame response = connectionPool.call(node, NodeProtocol.UPLOAD_BEGIN, null, uploadId);
+                if (!response.isOk()) {
+                    throw new IOException(response.getMessage());
+                }
+                uploadSessions.put(uploadId, new UploadSession(uploadId, user.getUsername(), filename,
+                        department, node, Long.parseLong(response.field(0))));
+                return uploadId;
+            } catch (IOException e) {
+                System.err.println("Error starting upload on node " + node.getNodeId() + ": " + e.getMessage());
+            }
         }
+        throw new RemoteException("No responsive nodes available for upload");
     }
 
     @Override
-    public boolean updateFile(String token, FileData file) throws RemoteException {
-        // 1. Validate user authentication
+    public long uploadChunk(String token, String uploadId, long offset, byte[] chunk) throws RemoteException {
+        UploadSession session = getUploadSession(token, uploadId);
+        if (chunk == null || chunk.length > NodeProtocol.MAX_CHUNK_BYTES) {
+            throw new RemoteException("Invalid chunk: at most " + NodeProtocol.MAX_CHUNK_BYTES + " bytes per call");
+        }
+
+        // One chunk per session at a time keeps the node-side file strictly sequential
+        synchronized (session) {
+            try {
+                NodeFrame response = connectionPool.call(session.getNode(), NodeProtocol.UPLOAD_CHUNK, chunk,
+                        uploadId, String.valueOf(offset));
+                if (response.isOk()) {
+                    session.setCommittedBytes(Long.parseLong(response.field(0)));
+                } else if (response.getStatus() == NodeProtocol.STATUS_MISMATCH) {
+                    // Caller is out of step (e.g. resending after a timeout); tell it where to resume
+                    session.setCommittedBytes(Long.parseLong(response.field(1)));
+                } else {
+                    throw new RemoteException("Node error: " + response.getMessage());
+                }
+                return session.getCommittedBytes();
+            } catch (IOException e) {
+                throw new RemoteException("Failed to upload chunk: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public long getUploadOffset(String token, String uploadId) throws RemoteException {
+        return getUploadSession(token, uploadId).getCommittedBytes();
+    }
+
+    @Override
+    public boolean completeUpload(String token, String uploadId) throws RemoteException {
+        UploadSession session = getUploadSession(token, uploadId);
+        synchronized (session) {
+            ReentrantLock writeLock = writeLocks.lockFor(fileKey(session.getDepartment(), session.getFilename()));
+            writeLock.lock();
+            try {
+                NodeFrame response;
+                try {
+                    response = connectionPool.call(session.getNode(), NodeProtocol.UPLOAD_COMMIT, null,
+                            uploadId, session.getDepartment(), session.getFilename(),
+                            Compression.settingFor(session.getDepartment()));
+                } catch (IOException e) {
+                    throw new RemoteException("Failed to complete upload: " + e.getMessage());
+                }
+                if (!response.isOk()) {
+                    throw new RemoteException("Node error: " + response.getMessage());
+                }
+                // The node has closed the session, so there is nothing to resume even if replication fails
+                uploadSessions.remove(uploadId);
+
+                FileMetadata metadata = new FileMetadata(session.getFilename(), session.getDepartment(),
+                        Collections.singletonList(session.getNode()));
+                replicateUpload(session, metadata, response.field(1));
+                fileIndex.put(fileKey(session.getDepartment(), session.getFilename()), metadata);
+                tombstones.remove(fileKey(session.getDepartment(), session.getFilename()));
+                contentCache.invalidate(fileKey(session.getDepartment(), session.getFilename()));
+                persistFile(session.getDepartment(), session.getFilename());
+                return true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /*
+     * A streamed upload lands on the session's node only. Copies it from there to replicationFactor - 1
+     * more nodes chosen by the placement strategy, and returns once the copies plus the original make a
+     * write quorum; the copying nodes that acknowledged join the metadata as replicas.
+     */
+    private void replicateUpload(UploadSession session, FileMetadata metadata, String digest)
+            throws RemoteException {
+        String department = session.getDepartment();
+        String filename = session.getFilename();
+        NodeInfo source = session.getNode();
+        int factor = replicationFactor(department);
+        List<NodeInfo> candidates = activeNodesInRotation();
+        candidates.removeIf(node -> node.getNodeId().equals(source.getNodeId()));
+        List<NodeInfo> targets = placement.select(department, filename, candidates,
+                Math.min(factor - 1, candidates.size()));
+        List<NodeInfo> spares = new ArrayList<>(candidates);
+        spares.removeAll(targets);
+
+        QuorumWrite.Transfer copy = node -> CompletableFuture.supplyAsync(() -> {
+            try {
+                String copied = uploadCopier.copy(source, node, department, filename, filename, null);
+                return NodeFrame.request(NodeProtocol.UPLOAD_COMMIT, null, copied);
+            } catch (IOException e) {
+                return new NodeFrame(NodeProtocol.UPLOAD_COMMIT, NodeProtocol.STATUS_ERROR, 0,
+                        new String[] { e.getMessage() }, null);
+            }
+        }, uploadReplication);
+
+        StagedReplicas staged = new StagedReplicas(metadata, digest);
+        try {
+            // The session's node already holds the file, so it counts towards the quorum
+            quorumWrite(staged, targets, spares, writeQuorum(factor) - 1)
+                    .execute(copy, digest, uploadReplicationTimeoutMillis);
+        } catch (IOException e) {
+            staged.rollback();
+            throw new RemoteException("Upload not replicated: " + e.getMessage());
+        }
+        staged.commit();
+    }
+
+    @Override
+    public boolean abortUpload(String token, String uploadId) throws RemoteException {
+        UploadSession session = getUploadSession(token, uploadId);
+        uploadSessions.remove(uploadId);
+        try {
+            return connectionPool.call(session.getNode(), NodeProtocol.UPLOAD_ABORT, null, uploadId).isOk();
+        } catch (IOException e) {
+            throw new RemoteException("Failed to abort upload: " + e.getMessage());
+        }
+    }
+
+    private UploadSession getUploadSession(String token, String uploadId) throws RemoteException {
         User user = tokenToUser.get(token);
         if (user == null) {
             throw new RemoteException("Authentication failed: Invalid token");
         }
+        UploadSession session = uploadSessions.get(uploadId);
+        if (session == null || !session.getUsername().equals(user.getUsername())) {
+            throw new RemoteException("Unknown upload session: " + uploadId);
+        }
+        return session;
+    }
 
-        // 2. Validate department permissions
-        if (!user.getDepartment().equals(file.getDepartment())) {
-            throw new RemoteException("Permission denied: You can only update files in your department (" +
-                    user.getDepartment() + ")");
+    @Override
+    public long getFileSize(String token, String filename, String department) throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
         }
 
-        // 3. Find the file in the index
-        FileMetadata metadata = null;
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(file.getDepartment());
-            if (deptFiles != null) {
-                for (FileMetadata m : deptFiles) {
-                    if (m.getFilename().equals(file.getFilename())) {
-                        metadata = m;
-                        break;
-                    }
-                }
+        FileMetadata metadata = getFileMetadata(filename, department);
+        if (metadata == null) {
+            throw new RemoteException("File not found");
+        }
+
+        try {
+            NodeFrame response = callReplica(metadata, NodeProtocol.STAT, department, filename);
+            if (!response.isOk()) {
+                throw new RemoteException("Node error: " + response.getMessage());
             }
+            return Long.parseLong(response.field(0));
+        } catch (IOException e) {
+            throw new RemoteException("Failed to stat file on node: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public byte[] readFileChunk(String token, String filename, String department, long offset, int length)
+            throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
         }
+        ensureNotLockedByOther(user, filename, department);
 
+        FileMetadata metadata = getFileMetadata(filename, department);
         if (metadata == null) {
-            throw new RemoteException("File not found in index");
+            throw new RemoteException("File not found");
         }
 
-        // 4. Connect to the node where the file is stored
-        try (Socket socket = new Socket(metadata.getNodeAddress(), metadata.getNodePort());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        try {
+            NodeFrame response = callReplica(metadata, NodeProtocol.READ_CHUNK, department, filename,
+                    String.valueOf(offset), String.valueOf(Math.min(length, NodeProtocol.MAX_CHUNK_BYTES)));
+            if (!response.isOk()) {
+                throw new RemoteException("Node error: " + response.getMessage());
+            }
+            return response.getPayload();
+        } catch (IOException e) {
+            throw new RemoteException("Failed to read file chunk from node: " + e.getMessage());
+        }
+    }
 
-            out.writeObject("UPDATE");
-            out.writeObject(file);
+    @Override
+    public boolean updateFile(String token, FileData file) throws RemoteException {
+        // 1. Validate user authentication
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
 
-            // 5. Verify node response
-            String response = (String) in.readObject();
-            if (!"OK: File updated".equals(response)) {
-                throw new RemoteException("Node error: " + response);
-            }
+        // 2. Validate department permissions
+        if (!user.getDepartment().equals(file.getDepartment())) {
+            throw new RemoteException("Permission denied: You can only update files in your department (" +
+                    user.getDepartment() + ")");
+        }
+
+        ReentrantLock writeLock = writeLocks.lockFor(fileKey(file.getDepartment(), file.getFilename()));
+        writeLock.lock();
+        try {
+            // 3. Find the file in the index
+            FileMetadata metadata = getFileMetadata(file.getFilename(), file.getDepartment());
 
-            // 6. Verify file was actually updated
-            if (!verifyFileOnNode(metadata, file.getContent())) {
-                throw new RemoteException("Verification failed: File not properly updated on node");
+            if (metadata == null) {
+                throw new RemoteException("File not found in index");
             }
 
+            // 4. Send the new content to every replica in parallel; replicas that miss it are dropped on success
+            List<NodeInfo> replicas = metadata.getReplicas();
+            String digest = Digests.sha256(file.getContent());
+            try {
+                writeReplicas(metadata, replicas, Collections.<NodeInfo>emptyList(), writeQuorum(replicas.size()),
+                        contentTransfer(NodeProtocol.UPDATE, file, user.getUsername()), digest);
+            } catch (RemoteException e) {
+                contentCache.invalidate(fileKey(file.getDepartment(), file.getFilename()));
+                throw new RemoteException("Failed to update file: " + e.getMessage());
+            }
+            contentCache.invalidate(fileKey(file.getDepartment(), file.getFilename()));
+            persistFile(file.getDepartment(), file.getFilename());
             return true;
-        } catch (Exception e) {
-            throw new RemoteException("Failed to update file: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
         }
     }
 
     @Override
-    public boolean syncAllNodes(String managerToken) throws RemoteException {
-        User manager = tokenToUser.get(managerToken);
-        if (manager == null || !manager.hasPermission("manage_nodes")) {
-            throw new RemoteException("Permission denied");
+    public FileSignature getFileSignature(String token, String filename, String department)
+            throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
+        if (!user.getDepartment().equals(department)) {
+            throw new RemoteException("Permission denied: You can only update files in your department (" +
+                    user.getDepartment() + ")");
+        }
+        FileMetadata metadata = getFileMetadata(filename, department);
+        if (metadata == null) {
+            throw new RemoteException("File not found in index");
         }
 
-        System.out.println("Starting full node synchronization...");
+        // Only the indexed version is any use as a base; a replica still applying the last write is skipped
+        String failure = "No replicas available";
+        for (NodeInfo node : replicasInReadOrder(metadata)) {
+            try {
+                NodeFrame response = connectionPool.call(node, NodeProtocol.SIGNATURE, null, department, filename);
+                if (!response.isOk()) {
+                    failure = node.getNodeId() + ": " + response.getMessage();
+                    continue;
+                }
+                FileSignature signature = FileSignature.decode(response.getPayload());
+                if (metadata.getDigest() == null || metadata.getDigest().equals(signature.getDigest())) {
+                    return signature;
+                }
+                failure = node.getNodeId() + ": stale replica";
+            } catch (IOException e) {
+                failure = node.getNodeId() + ": " + e.getMessage();
+            }
+        }
+        throw new RemoteException("Failed to read file signature: " + failure);
+    }
 
-        // Create sync clients for each node
-        Map<String, NodeSyncClient> syncClients = new HashMap<>();
-        for (NodeInfo node : nodes) {
-            syncClients.put(node.getNodeId(), new NodeSyncClient(node.getNodeId(), nodes));
+    /*
+     * Like updateFile, but the replicas rebuild the new version from the one they hold, so only the
+     * delta crosses the network. Fails if the file changed since the delta's base was signed; the
+     * caller then sends the whole content with updateFile.
+     */
+    @Override
+    public boolean updateFileDelta(String token, String filename, String department, FileDelta delta)
+            throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
+        if (!user.getDepartment().equals(department)) {
+            throw new RemoteException("Permission denied: You can only update files in your department (" +
+                    user.getDepartment() + ")");
         }
+        ReentrantLock writeLock = writeLocks.lockFor(fileKey(department, filename));
+        writeLock.lock();
+        try {
+            FileMetadata metadata = getFileMetadata(filename, department);
+            if (metadata == null) {
+                throw new RemoteException("File not found in index");
+            }
+            if (metadata.getDigest() != null && !metadata.getDigest().equals(delta.getBaseDigest())) {
+                throw new RemoteException("File has changed since its signature was read");
+            }
 
-        // Run sync for each node
-        for (NodeSyncClient syncClient : syncClients.values()) {
+            List<NodeInfo> replicas = metadata.getReplicas();
             try {
-                System.out.println("Syncing node " + syncClient.getNodeId() + "...");
-                syncClient.sync();
-                System.out.println("Sync completed for node " + syncClient.getNodeId());
-            } catch (Exception e) {
-                System.err.println("Error syncing node " + syncClient.getNodeId() + ": " + e.getMessage());
+                writeReplicas(metadata, replicas, Collections.<NodeInfo>emptyList(), writeQuorum(replicas.size()),
+                        NodeProtocol.DELTA_UPDATE, delta.encode(), delta.getDigest(), department, filename,
+                        user.getUsername(), Compression.settingFor(department));
+            } catch (RemoteException e) {
+                contentCache.invalidate(fileKey(department, filename));
+                throw new RemoteException("Failed to update file: " + e.getMessage());
             }
+            contentCache.invalidate(fileKey(department, filename));
+            persistFile(department, filename);
+            return true;
+        } finally {
+            writeLock.unlock();
         }
-
-        System.out.println("Full node synchronization completed");
-        return true;
     }
+
     @Override
-    public User getUserByToken(String token) throws RemoteException {
-        return tokenToUser.get(token);
+    public String syncAllNodes(String managerToken) throws RemoteException {
+        return syncAllNodes(managerToken,
+                Integer.getInteger("dfs.sync.concurrency", 4),
+                Long.getLong("dfs.sync.bandwidthBytesPerSecond", 0));
     }
 
+    @Override
+    public String syncAllNodes(String managerToken, int concurrency, long bandwidthBytesPerSecond)
+            throws RemoteException {
+        requireManager(managerToken);
+
+        synchronized (syncJobs) {
+            // Only one full sync at a time; a second request just gets the running job
+            for (SyncJob job : syncJobs.values()) {
+                if (job.isRunning()) {
+                    return job.getJobId();
+                }
+            }
+            pruneSyncJobs();
+
+            SyncJob job = new SyncJob(UUID.randomUUID().toString(), nodes, connectionPool,
+                    concurrency, bandwidthBytesPerSecond);
+            job.addChangeListener((department, filename) -> contentCache.invalidate(fileKey(department, filename)));
+            syncJobs.put(job.getJobId(), job);
+            Thread thread = new Thread(job, "sync-job-" + job.getJobId());
+            thread.setDaemon(true);
+            thread.start();
+            return job.getJobId();
+        }
+    }
 
-    private boolean verifyFileOnNode(FileMetadata metadata, byte[] expectedContent) {
-        try (Socket socket = new Socket(metadata.getNodeAddress(), metadata.getNodePort());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    /*
+     * Finished jobs stay queryable for dfs.sync.jobRetentionMillis (a day), and at most SYNC_JOB_HISTORY
+     * of them are kept. Called holding syncJobs, before a new job is added, which is the only way it grows.
+     */
+    private void pruneSyncJobs() {
+        long cutoff = System.currentTimeMillis() - syncJobRetentionMillis;
+        List<SyncJob> finished = new ArrayList<>();
+        for (SyncJob job : syncJobs.values()) {
+            if (!job.isRunning() && job.getFinishedAt() != 0) {
+                finished.add(job);
+            }
+        }
+        finished.sort(Comparator.comparingLong(SyncJob::getFinishedAt).reversed());
+        for (int i = 0; i < finished.size(); i++) {
+            if (i >= SYNC_JOB_HISTORY || finished.get(i).getFinishedAt() < cutoff) {
+                syncJobs.remove(finished.get(i).getJobId());
+            }
+        }
+    }
 
-            out.writeObject("VERIFY_CONTENT");
-            out.writeObject(metadata.getDepartment());
-            out.writeObject(metadata.getFilename());
-            out.writeObject(expectedContent);
+    @Override
+    public SyncStatus getSyncStatus(String managerToken, String jobId) throws RemoteException {
+        requireManager(managerToken);
+        SyncJob job = syncJobs.get(jobId);
+        if (job == null) {
+            throw new RemoteException("Sync job not found: " + jobId);
+        }
+        return job.getStatus();
+    }
 
-            return (boolean) in.readObject();
-        } catch (Exception e) {
-            return false;
+    private void requireManager(String managerToken) throws RemoteException {
+        User manager = tokenToUser.get(managerToken);
+        if (manager == null || !manager.hasPermission("manage_nodes")) {
+            throw new RemoteException("Permission denied");
         }
     }
+    @Override
+    public User getUserByToken(String token) throws RemoteException {
+        return tokenToUser.get(token);
+    }
 
 
 
@@ -520,7 +1058,61 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
         if (manager == null || !manager.hasPermission("manage_nodes")) {
             throw new RemoteException("Permission denied");
         }
+        for (NodeInfo existing : nodes) {
+            if (existing.getNodeId().equals(node.getNodeId())) {
+                if (existing.getAddress().equals(node.getAddress()) && existing.getPort() == node.getPort()) {
+                    return true; // already known, e.g. recovered from the metadata log
+                }
+                nodes.remove(existing);
+            }
+        }
         nodes.add(node);
+        ring.add(node);
+        persist(() -> nodeRecord(node));
+        if (placement instanceof ConsistentHashPlacement) {
+            rebalancer.trigger();
+        }
+        return true;
+    }
+
+    @Override
+    public CacheStats getCacheStats(String managerToken) throws RemoteException {
+        requireManager(managerToken);
+        return contentCache.getStats();
+    }
+
+    @Override
+    public List<NodeHealth> getNodeHealth(String managerToken) throws RemoteException {
+        requireManager(managerToken);
+        return healthMonitor.getHealth();
+    }
+
+    @Override
+    public boolean removeNode(String managerToken, String nodeId) throws RemoteException {
+        requireManager(managerToken);
+        boolean removed = nodes.removeIf(node -> node.getNodeId().equals(nodeId));
+        if (!removed) {
+            throw new RemoteException("Node not found: " + nodeId);
+        }
+        // Files with a replica on the departed node are re-replicated onto their new ring owners
+        ring.remove(nodeId);
+        persist(() -> new MetadataStore.Record(RECORD_NODE_REMOVED, nodeId));
+        if (placement instanceof ConsistentHashPlacement) {
+            rebalancer.trigger();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean setReplicationFactor(String managerToken, String department, int factor)
+            throws RemoteException {
+        requireManager(managerToken);
+        requireDepartmentName(department);
+        if (factor < 1) {
+            throw new RemoteException("Replication factor must be at least 1");
+        }
+        replicationFactors.put(department, factor);
+        persist(() -> new MetadataStore.Record(RECORD_REPLICATION, department, String.valueOf(factor)));
         return true;
     }
 
@@ -537,65 +1129,589 @@ public class CoordinatorImpl extends UnicastRemoteObject implements CoordinatorI
             throw new RemoteException("Permission denied: You can only delete files in your department");
         }
 
-        // 3. Find the file in the index
-        FileMetadata metadata = null;
-        synchronized (fileIndex) {
-            List<FileMetadata> deptFiles = fileIndex.get(department);
-            if (deptFiles != null) {
-                Iterator<FileMetadata> iterator = deptFiles.iterator();
-                while (iterator.hasNext()) {
-                    FileMetadata m = iterator.next();
-                    if (m.getFilename().equals(filename)) {
-                        metadata = m;
-                        iterator.remove();
-                        break;
-                    }
+        ReentrantLock writeLock = writeLocks.lockFor(fileKey(department, filename));
+        writeLock.lock();
+        try {
+            // 3. Replace the file in the index by a tombstone
+            Tombstone tombstone = tombstone(department, filename);
+            if (tombstone == null) {
+                throw new RemoteException("File not found in index");
+            }
+            lockManager.forget(fileKey(department, filename));
+            contentCache.invalidate(fileKey(department, filename));
+            if (indexRebuilder.isRunning()) {
+                deletedDuringRebuild.add(fileKey(department, filename));
+            }
+            persistFile(department, filename);
+
+            // 4. Ask every replica to delete it, in parallel; ones that don't confirm are retried later
+            try {
+                deleteReplicas(tombstone, nodes).await(System.currentTimeMillis() + nodeTimeoutMillis);
+            } catch (IOException e) {
+                System.err.println("Delete of " + filename + " not yet confirmed, will retry: " + e.getMessage());
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+     * Deletes are recorded as a tombstone listing the nodes that may hold the file: its replicas and
+     * its ring owners, in case a lookup or a late write left a copy there. The tombstone is logged, and
+     * lookups and index rebuilds skip its key, until every one of those nodes has confirmed the DELETE.
+     */
+    private static final class Tombstone {
+        final String department;
+        final String filename;
+        final Set<String> nodeIds = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean deleting = new AtomicBoolean();
+
+        Tombstone(String department, String filename, Collection<String> nodeIds) {
+            this.department = department;
+            this.filename = filename;
+            this.nodeIds.addAll(nodeIds);
+        }
+    }
+
+    // Swaps the indexed file for a tombstone; null if the file isn't indexed
+    private Tombstone tombstone(String department, String filename) {
+        Tombstone[] created = new Tombstone[1];
+        fileIndex.computeIfPresent(fileKey(department, filename), (key, metadata) -> {
+            Set<String> nodeIds = new LinkedHashSet<>();
+            for (NodeInfo node : metadata.getReplicas()) {
+                nodeIds.add(node.getNodeId());
+            }
+            for (NodeInfo node : ring.nodesFor(key, replicationFactor(department), node -> true)) {
+                nodeIds.add(node.getNodeId());
+            }
+            created[0] = new Tombstone(department, filename, nodeIds);
+            tombstones.put(key, created[0]);
+            return null;
+        });
+        return created[0];
+    }
+
+    /*
+     * Sends DELETE to the tombstone's nodes among the given ones. A node that deletes the file, or
+     * doesn't have it, is struck off; nodes no longer in the cluster are struck off too. The returned
+     * write reaches its quorum when every node sent to has confirmed.
+     */
+    private QuorumWrite deleteReplicas(Tombstone tombstone, List<NodeInfo> candidates) {
+        Set<String> members = new HashSet<>();
+        for (NodeInfo node : nodes) {
+            members.add(node.getNodeId());
+        }
+        tombstone.nodeIds.retainAll(members);
+        List<NodeInfo> targets = new ArrayList<>();
+        for (NodeInfo node : candidates) {
+            if (tombstone.nodeIds.contains(node.getNodeId())) {
+                targets.add(node);
+            }
+        }
+        clearIfConfirmed(tombstone);
+
+        QuorumWrite write = new QuorumWrite(connectionPool, targets, Collections.<NodeInfo>emptyList(),
+                targets.size(), new QuorumWrite.Listener() {
+            @Override
+            public void acked(NodeInfo node) {
+                tombstone.nodeIds.remove(node.getNodeId());
+                clearIfConfirmed(tombstone);
+            }
+
+            @Override
+            public void failed(NodeInfo node, String reason) {
+                System.err.println("Delete on node " + node.getNodeId() + " failed: " + reason);
+            }
+        });
+        write.start(node -> connectionPool.send(node, NodeProtocol.DELETE, null, tombstone.department,
+                tombstone.filename).thenApply(reply -> reply.getStatus() == NodeProtocol.STATUS_NOT_FOUND
+                ? NodeFrame.request(NodeProtocol.DELETE, null) : reply), null, nodeTimeoutMillis);
+        return write;
+    }
+
+    private void clearIfConfirmed(Tombstone tombstone) {
+        if (tombstone.nodeIds.isEmpty()
+                && tombstones.remove(fileKey(tombstone.department, tombstone.filename), tombstone)) {
+            persistQuietly(tombstone.department, tombstone.filename);
+        }
+    }
+
+    private void startTombstoneRetries(long intervalMillis) {
+        ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delete-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retrier.scheduleWithFixedDelay(this::retryDeletes, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // One more DELETE to each active node a tombstone still waits for
+    private void retryDeletes() {
+        List<NodeInfo> active = new ArrayList<>(nodes);
+        active.removeIf(node -> !node.isActive());
+        for (Tombstone tombstone : tombstones.values()) {
+            if (!tombstone.deleting.compareAndSet(false, true)) {
+                continue;
+            }
+            try {
+                deleteReplicas(tombstone, active).await(System.currentTimeMillis() + nodeTimeoutMillis);
+            } catch (IOException e) {
+                // still unconfirmed, try again next round
+            } finally {
+                tombstone.deleting.set(false);
+            }
+        }
+    }
+
+    /*
+     * Batch calls. Every item is sent before any reply is awaited, so all of a batch's requests to one
+     * node travel pipelined over that node's pooled connections, and the metadata records of the whole
+     * batch share one log flush. Items fail independently with the single-file call's error message.
+     */
+    @Override
+    public List<BatchResult> createFiles(String token, List<FileData> files) throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
+        if (nodes.isEmpty()) {
+            throw new RemoteException("System error: No storage nodes available");
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (FileData file : files) {
+            keys.add(fileKey(file.getDepartment(), file.getFilename()));
+        }
+        List<ReentrantLock> locked = writeLocks.lockAll(keys);
+        try {
+            return createAll(user, files);
+        } finally {
+            writeLocks.unlockAll(locked);
+        }
+    }
+
+    private List<BatchResult> createAll(User user, List<FileData> files) throws RemoteException {
+        BatchResult[] results = new BatchResult[files.size()];
+        FileMetadata[] written = new FileMetadata[files.size()];
+        StagedReplicas[] staged = new StagedReplicas[files.size()];
+        QuorumWrite[] writes = new QuorumWrite[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            FileData file = files.get(i);
+            try {
+                validateNewFile(user, file);
+                List<NodeInfo> candidates = activeNodesInRotation();
+                if (candidates.isEmpty()) {
+                    throw new RemoteException("No responsive nodes available");
                 }
+                int factor = replicationFactor(file.getDepartment());
+                List<NodeInfo> targets = placement.select(file.getDepartment(), file.getFilename(), candidates,
+                        factor);
+                List<NodeInfo> spares = new ArrayList<>(candidates);
+                spares.removeAll(targets);
+
+                String digest = Digests.sha256(file.getContent());
+                written[i] = new FileMetadata(file.getFilename(), file.getDepartment(),
+                        Collections.<NodeInfo>emptyList());
+                staged[i] = new StagedReplicas(written[i], digest);
+                writes[i] = quorumWrite(staged[i], targets, spares, writeQuorum(factor));
+                writes[i].start(contentTransfer(NodeProtocol.UPLOAD, file, user.getUsername()), digest,
+                        nodeTimeoutMillis);
+            } catch (RemoteException e) {
+                results[i] = BatchResult.failed(file.getFilename(), e.getMessage());
             }
         }
 
-        if (metadata == null) {
-            throw new RemoteException("File not found in index");
+        long deadline = System.currentTimeMillis() + nodeTimeoutMillis;
+        List<java.util.function.Supplier<MetadataStore.Record>> records = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (writes[i] == null) {
+                continue;
+            }
+            String department = written[i].getDepartment();
+            String filename = written[i].getFilename();
+            try {
+                writes[i].await(deadline);
+            } catch (IOException e) {
+                staged[i].rollback();
+                results[i] = BatchResult.failed(filename, "Write failed: " + e.getMessage());
+                continue;
+            }
+            staged[i].commit();
+            fileIndex.put(fileKey(department, filename), written[i]);
+            tombstones.remove(fileKey(department, filename));
+            contentCache.invalidate(fileKey(department, filename));
+            records.add(() -> fileRecord(department, filename));
+            results[i] = BatchResult.ok(filename);
         }
+        persistAll(records);
+        return Arrays.asList(results);
+    }
 
-        // 4. Connect to the node where the file is stored and delete it
-        try (Socket socket = new Socket(metadata.getNodeAddress(), metadata.getNodePort());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    @Override
+    public List<BatchResult> readFiles(String token, List<String> filenames, String department)
+            throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
 
-            out.writeObject("DELETE");
-            out.writeObject(department);
-            out.writeObject(filename);
+        BatchResult[] results = new BatchResult[filenames.size()];
+        FileMetadata[] located = new FileMetadata[filenames.size()];
+        Map<Integer, CompletableFuture<NodeFrame>> downloads = new HashMap<>();
+        for (int i = 0; i < filenames.size(); i++) {
+            String filename = filenames.get(i);
+            try {
+                ensureNotLockedByOther(user, filename, department);
+                located[i] = getFileMetadata(filename, department);
+                if (located[i] == null) {
+                    throw new RemoteException("File not found");
+                }
+            } catch (RemoteException e) {
+                results[i] = BatchResult.failed(filename, e.getMessage());
+                continue;
+            }
+            byte[] cached = contentCache.get(fileKey(department, filename), located[i].getDigest());
+            List<NodeInfo> replicas = replicasInReadOrder(located[i]);
+            if (cached != null) {
+                results[i] = BatchResult.ok(filename, cached);
+            } else if (!replicas.isEmpty()) {
+                downloads.put(i, connectionPool.send(replicas.get(0), NodeProtocol.DOWNLOAD, null, department, filename,
+                        Compression.DEFLATE).orTimeout(nodeTimeoutMillis, TimeUnit.MILLISECONDS));
+            }
+        }
 
-            // 5. Verify node response
-            String response = (String) in.readObject();
-            if (!"OK: File deleted".equals(response)) {
-                throw new RemoteException("Node error: " + response);
+        for (int i = 0; i < filenames.size(); i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            String filename = filenames.get(i);
+            try {
+                NodeFrame response = null;
+                try {
+                    response = downloads.containsKey(i) ? downloads.get(i).join() : null;
+                } catch (CompletionException e) {
+                    // fall back to trying the replicas one by one
+                }
+                if (response == null || response.getStatus() == NodeProtocol.STATUS_NOT_FOUND) {
+                    response = callReplica(located[i], NodeProtocol.DOWNLOAD, department, filename,
+                            Compression.DEFLATE);
+                }
+                if (!response.isOk()) {
+                    throw new IOException("Node error: " + response.getMessage());
+                }
+                byte[] content = rawContent(response);
+                String digest = located[i].getDigest();
+                if (digest != null && contentCache.isEnabled() && digest.equals(Digests.sha256(content))) {
+                    contentCache.put(fileKey(department, filename), digest, content);
+                }
+                results[i] = BatchResult.ok(filename, content);
+            } catch (IOException e) {
+                results[i] = BatchResult.failed(filename, "Failed to read file from node: " + e.getMessage());
             }
+        }
+        return Arrays.asList(results);
+    }
 
-            // 6. Verify file was actually deleted
-            if (verifyFileOnNode(metadata.getNodeAddress(), metadata.getNodePort(), department, filename)) {
-                throw new RemoteException("Verification failed: File still exists on node");
+    @Override
+    public List<BatchResult> deleteFiles(String token, List<String> filenames, String department)
+            throws RemoteException {
+        User user = tokenToUser.get(token);
+        if (user == null) {
+            throw new RemoteException("Authentication failed: Invalid token");
+        }
+        if (!user.getDepartment().equals(department)) {
+            throw new RemoteException("Permission denied: You can only delete files in your department");
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (String filename : filenames) {
+            keys.add(fileKey(department, filename));
+        }
+        List<ReentrantLock> locked = writeLocks.lockAll(keys);
+        try {
+            return deleteAll(filenames, department);
+        } finally {
+            writeLocks.unlockAll(locked);
+        }
+    }
+
+    private List<BatchResult> deleteAll(List<String> filenames, String department) throws RemoteException {
+        BatchResult[] results = new BatchResult[filenames.size()];
+        QuorumWrite[] deletes = new QuorumWrite[filenames.size()];
+        Tombstone[] deleted = new Tombstone[filenames.size()];
+        List<java.util.function.Supplier<MetadataStore.Record>> records = new ArrayList<>();
+        for (int i = 0; i < filenames.size(); i++) {
+            String filename = filenames.get(i);
+            String key = fileKey(department, filename);
+            deleted[i] = tombstone(department, filename);
+            if (deleted[i] == null) {
+                results[i] = BatchResult.failed(filename, "File not found in index");
+                continue;
+            }
+            lockManager.forget(key);
+            contentCache.invalidate(key);
+            if (indexRebuilder.isRunning()) {
+                deletedDuringRebuild.add(key);
             }
+            records.add(() -> fileRecord(department, filename));
+        }
+        persistAll(records);
 
-            return true;
-        } catch (Exception e) {
-            throw new RemoteException("Failed to delete file: " + e.getMessage());
+        // The tombstones are durable now, so the deletes can go out
+        for (int i = 0; i < filenames.size(); i++) {
+            if (deleted[i] != null) {
+                deletes[i] = deleteReplicas(deleted[i], nodes);
+            }
+        }
+        long deadline = System.currentTimeMillis() + nodeTimeoutMillis;
+        for (int i = 0; i < filenames.size(); i++) {
+            if (deletes[i] == null) {
+                continue;
+            }
+            String filename = filenames.get(i);
+            try {
+                deletes[i].await(deadline);
+            } catch (IOException e) {
+                System.err.println("Delete of " + filename + " not yet confirmed, will retry: " + e.getMessage());
+            }
+            results[i] = BatchResult.ok(filename);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Reads every node's inventory in the background and adds the files found
+     * there to the index. Lookups keep working meanwhile: an index miss asks
+     * the nodes directly until the rebuild has finished.
+     */
+    public CompletableFuture<Void> rebuildIndex() {
+        CompletableFuture<Void> done = indexRebuilder.start(new ArrayList<>(nodes));
+        return done.whenComplete((v, e) -> {
+            if (!indexRebuilder.isRunning()) {
+                rebuiltVersions.clear();
+                deletedDuringRebuild.clear();
+            }
+        });
+    }
+
+    /*
+     * One inventory page from a node. A file the index doesn't know is added with that node as its
+     * replica; a node holding the indexed version becomes another replica. A different version only
+     * wins if the rebuild itself indexed the file and this copy is newer; otherwise it is a stale copy
+     * that sync or rebalancing will overwrite.
+     */
+    private void mergeInventory(NodeInfo node, List<IndexRebuilder.Entry> entries) {
+        List<java.util.function.Supplier<MetadataStore.Record>> changes = new ArrayList<>();
+        for (IndexRebuilder.Entry entry : entries) {
+            String department = entry.getDepartment();
+            String filename = entry.getFilename();
+            String key = fileKey(department, filename);
+            if (deletedDuringRebuild.contains(key)) {
+                continue;
+            }
+            Tombstone tombstone = tombstones.get(key);
+            if (tombstone != null) {
+                tombstone.nodeIds.add(node.getNodeId()); // a leftover copy; the next retry deletes it
+                continue;
+            }
+            boolean[] changed = new boolean[1];
+            fileIndex.compute(key, (k, metadata) -> {
+                if (metadata == null) {
+                    metadata = new FileMetadata(filename, department, Collections.singletonList(node));
+                    metadata.setDigest(entry.getDigest());
+                    rebuiltVersions.put(key, entry.getModifiedMillis());
+                    changed[0] = true;
+                    return metadata;
+                }
+                if (metadata.getDigest() == null) {
+                    metadata.setDigest(entry.getDigest()); // found by a lookup that didn't learn the digest
+                }
+                if (entry.getDigest().equals(metadata.getDigest())) {
+                    if (!metadata.hasReplica(node)) {
+                        metadata.addReplica(node);
+                        changed[0] = true;
+                    }
+                    return metadata;
+                }
+                Long indexedVersion = rebuiltVersions.get(key);
+                if (indexedVersion != null && entry.getModifiedMillis() > indexedVersion) {
+                    metadata = new FileMetadata(filename, department, Collections.singletonList(node));
+                    metadata.setDigest(entry.getDigest());
+                    rebuiltVersions.put(key, entry.getModifiedMillis());
+                    contentCache.invalidate(key);
+                    changed[0] = true;
+                }
+                return metadata;
+            });
+            if (changed[0]) {
+                changes.add(() -> fileRecord(department, filename));
+            }
+        }
+        if (!changes.isEmpty()) {
+            try {
+                metadataStore.appendAll(changes);
+            } catch (IOException e) {
+                System.err.println("Failed to persist rebuilt index entries: " + e.getMessage());
+            }
         }
     }
 
-    private boolean verifyFileOnNode(String nodeAddress, int nodePort, String department, String filename) {
-        try (Socket socket = new Socket(nodeAddress, nodePort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    /*
+     * Metadata persistence. Every mutation is applied in memory first and then logged as a record of
+     * the key's current state, built under the log's ordering lock, so the log's last record for a key
+     * always matches memory and replaying records in any snapshot/tail combination is idempotent.
+     */
+    private void persist(java.util.function.Supplier<MetadataStore.Record> record) throws RemoteException {
+        try {
+            metadataStore.append(record);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to persist metadata: " + e.getMessage());
+        }
+    }
 
-            out.writeObject("VERIFY");
-            out.writeObject(department);
-            out.writeObject(filename);
+    private void persistAll(List<java.util.function.Supplier<MetadataStore.Record>> records)
+            throws RemoteException {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            metadataStore.appendAll(records);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to persist metadata: " + e.getMessage());
+        }
+    }
 
-            return (boolean) in.readObject();
-        } catch (Exception e) {
-            return false;
+    private void persistFile(String department, String filename) throws RemoteException {
+        persist(() -> fileRecord(department, filename));
+    }
+
+    private void persistQuietly(String department, String filename) {
+        try {
+            persistFile(department, filename);
+        } catch (RemoteException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private void persistUser(User user) throws RemoteException {
+        persist(() -> new MetadataStore.Record(RECORD_USER, user.getUsername(), user.getPassword(),
+                user.getDepartment(), String.join(",", user.getPermissions())));
+    }
+
+    private MetadataStore.Record fileRecord(String department, String filename) {
+        FileMetadata metadata = fileIndex.get(fileKey(department, filename));
+        if (metadata == null) {
+            Tombstone tombstone = tombstones.get(fileKey(department, filename));
+            return tombstone == null ? new MetadataStore.Record(RECORD_FILE_REMOVED, department, filename)
+                    : new MetadataStore.Record(RECORD_TOMBSTONE, department, filename,
+                            String.join(",", tombstone.nodeIds));
+        }
+        List<String> replicaIds = new ArrayList<>();
+        for (NodeInfo node : metadata.getReplicas()) {
+            replicaIds.add(node.getNodeId());
+        }
+        return new MetadataStore.Record(RECORD_FILE, department, filename, metadata.getDigest(),
+                String.join(",", replicaIds));
+    }
+
+    private static MetadataStore.Record nodeRecord(NodeInfo node) {
+        return new MetadataStore.Record(RECORD_NODE, node.getNodeId(), node.getAddress(),
+                String.valueOf(node.getPort()));
+    }
+
+    private void applyRecord(MetadataStore.Record record) {
+        switch (record.getType()) {
+            case RECORD_NODE: {
+                NodeInfo node = new NodeInfo(record.field(0), record.field(1), Integer.parseInt(record.field(2)));
+                nodes.removeIf(existing -> existing.getNodeId().equals(node.getNodeId()));
+                nodes.add(node);
+                ring.add(node);
+                break;
+            }
+            case RECORD_NODE_REMOVED:
+                nodes.removeIf(existing -> existing.getNodeId().equals(record.field(0)));
+                ring.remove(record.field(0));
+                break;
+            case RECORD_USER: {
+                User user = new User(record.field(0), record.field(1), record.field(2));
+                for (String permission : record.field(3).split(",")) {
+                    if (!permission.isEmpty()) {
+                        user.addPermission(permission);
+                    }
+                }
+                users.put(user.getUsername(), user);
+                break;
+            }
+            case RECORD_TOKEN: {
+                User user = users.get(record.field(1));
+                if (user != null) {
+                    user.setToken(record.field(0));
+                    tokenToUser.put(record.field(0), user);
+                }
+                break;
+            }
+            case RECORD_FILE: {
+                List<NodeInfo> replicas = new ArrayList<>();
+                for (String nodeId : record.field(3).split(",")) {
+                    for (NodeInfo node : nodes) {
+                        if (node.getNodeId().equals(nodeId)) {
+                            replicas.add(node);
+                        }
+                    }
+                }
+                FileMetadata metadata = new FileMetadata(record.field(1), record.field(0), replicas);
+                metadata.setDigest(record.field(2));
+                fileIndex.put(fileKey(record.field(0), record.field(1)), metadata);
+                tombstones.remove(fileKey(record.field(0), record.field(1)));
+                break;
+            }
+            case RECORD_FILE_REMOVED:
+                fileIndex.remove(fileKey(record.field(0), record.field(1)));
+                tombstones.remove(fileKey(record.field(0), record.field(1)));
+                break;
+            case RECORD_TOMBSTONE: {
+                List<String> nodeIds = new ArrayList<>();
+                for (String nodeId : record.field(2).split(",")) {
+                    if (!nodeId.isEmpty()) {
+                        nodeIds.add(nodeId);
+                    }
+                }
+                fileIndex.remove(fileKey(record.field(0), record.field(1)));
+                tombstones.put(fileKey(record.field(0), record.field(1)),
+                        new Tombstone(record.field(0), record.field(1), nodeIds));
+                break;
+            }
+            case RECORD_REPLICATION:
+                replicationFactors.put(record.field(0), Integer.parseInt(record.field(1)));
+                break;
+            default:
+                System.err.println("Skipping unknown metadata record type " + record.getType());
+        }
+    }
+
+    // Nodes and users before the files and tokens that refer to them
+    private void dumpState(java.util.function.Consumer<MetadataStore.Record> sink) {
+        for (NodeInfo node : nodes) {
+            sink.accept(nodeRecord(node));
+        }
+        for (User user : users.values()) {
+            sink.accept(new MetadataStore.Record(RECORD_USER, user.getUsername(), user.getPassword(),
+                    user.getDepartment(), String.join(",", user.getPermissions())));
+        }
+        for (Map.Entry<String, User> entry : tokenToUser.entrySet()) {
+            if (!entry.getKey().equals(managerToken)) {
+                sink.accept(new MetadataStore.Record(RECORD_TOKEN, entry.getKey(), entry.getValue().getUsername()));
+            }
+        }
+        for (Map.Entry<String, Integer> entry : replicationFactors.entrySet()) {
+            sink.accept(new MetadataStore.Record(RECORD_REPLICATION, entry.getKey(), String.valueOf(entry.getValue())));
+        }
+        for (FileMetadata metadata : fileIndex.values()) {
+            sink.accept(fileRecord(metadata.getDepartment(), metadata.getFilename()));
+        }
+        for (Tombstone tombstone : tombstones.values()) {
+            sink.accept(fileRecord(tombstone.department, tombstone.filename));
         }
     }
 
@@ -3,21 +3,54 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 public interface CoordinatorInterface extends Remote {
+    // Preferred chunk size for the streaming upload/read calls
+    int CHUNK_SIZE = 1024 * 1024;
+
     String login(String username, String password) throws RemoteException;
     boolean registerUser(String managerToken, User user) throws RemoteException;
     FileMetadata searchFile(String token, String filename, String department) throws RemoteException;
     boolean uploadFile(String token, FileData file) throws RemoteException;
     boolean createFile(String token, FileData file) throws RemoteException;
     byte[] readFile(String token, String filename, String department) throws RemoteException;
+    // Returns not-modified when knownDigest (the SHA-256 of the caller's copy) is still current
+    VersionedContent readFileIfModified(String token, String filename, String department, String knownDigest)
+            throws RemoteException;
 
     List<NodeInfo> getActiveNodes() throws RemoteException;
     boolean addNode(String managerToken, NodeInfo node) throws RemoteException;
+    boolean removeNode(String managerToken, String nodeId) throws RemoteException;
+    List<NodeHealth> getNodeHealth(String managerToken) throws RemoteException;
+    CacheStats getCacheStats(String managerToken) throws RemoteException;
     boolean updateFile(String token, FileData file) throws RemoteException;
-    boolean syncAllNodes(String managerToken) throws RemoteException;
+    // Delta updates: send only the edit, computed against the signature of the stored version
+    FileSignature getFileSignature(String token, String filename, String department) throws RemoteException;
+    boolean updateFileDelta(String token, String filename, String department, FileDelta delta)
+            throws RemoteException;
+    String syncAllNodes(String managerToken) throws RemoteException;
+    String syncAllNodes(String managerToken, int concurrency, long bandwidthBytesPerSecond)
+            throws RemoteException;
+    SyncStatus getSyncStatus(String managerToken, String jobId) throws RemoteException;
+    boolean setReplicationFactor(String managerToken, String department, int factor) throws RemoteException;
     User getUserByToken(String token) throws RemoteException;
     boolean deleteFile(String token, String filename, String department) throws RemoteException;
     boolean lockFile(String token, String filename, String department) throws RemoteException;
+    boolean lockFile(String token, String filename, String department, long timeoutMillis) throws RemoteException;
     boolean unlockFile(String token, String filename, String department) throws RemoteException;
     boolean isFileLocked(String token, String filename, String department) throws RemoteException;
 
+    // Batch calls: many small files in one round trip, with one result per item in request order
+    List<BatchResult> createFiles(String token, List<FileData> files) throws RemoteException;
+    List<BatchResult> readFiles(String token, List<String> filenames, String department) throws RemoteException;
+    List<BatchResult> deleteFiles(String token, List<String> filenames, String department) throws RemoteException;
+
+    // Streaming transfers: files of any size, moved CHUNK_SIZE bytes at a time
+    String beginUpload(String token, String filename, String department) throws RemoteException;
+    long uploadChunk(String token, String uploadId, long offset, byte[] chunk) throws RemoteException;
+    long getUploadOffset(String token, String uploadId) throws RemoteException;
+    boolean completeUpload(String token, String uploadId) throws RemoteException;
+    boolean abortUpload(String token, String uploadId) throws RemoteException;
+    long getFileSize(String token, String filename, String department) throws RemoteException;
+    byte[] readFileChunk(String token, String filename, String department, long offset, int length)
+            throws RemoteException;
+
 }
\ No newline at end of file
@@ -21,9 +21,12 @@ public class CoordinatorServer {
             initializeTestNodes();
 
             // Start the coordinator with test nodes
-            CoordinatorInterface coordinator = new CoordinatorImpl();
+            CoordinatorImpl coordinator = new CoordinatorImpl();
             addTestNodesToCoordinator(coordinator);
 
+            // Pick up files already on the nodes; lookups are served while this runs
+            coordinator.rebuildIndex();
+
             Naming.rebind("Coordinator", coordinator);
             System.out.println("Coordinator server is running...");
 
@@ -0,0 +1,59 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Downloads a file straight from a NodeServer into a local file.
+ *
+ * Uses the DOWNLOAD_STREAM command on a dedicated connection: the node sends the
+ * file with sendfile and the bytes are written to the target through a
+ * FileChannel, so neither side holds the file contents on the heap.
+ *
+ * The socket is a plain one read through its InputStream, where SO_TIMEOUT
+ * applies to every read, so a node that stops sending fails the download
+ * after timeoutMillis instead of blocking it forever.
+ */
+public class DirectDownload {
+    private DirectDownload() {
+    }
+
+    public static long download(String address, int port, String department, String filename, Path target,
+                                int timeoutMillis) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            NodeProtocol.writePreamble(out);
+            NodeProtocol.writeFrame(out, NodeFrame.request(NodeProtocol.DOWNLOAD_STREAM, null, department, filename));
+            out.flush();
+
+            // Unbuffered on purpose: a read-ahead buffer would swallow the start of the raw file bytes
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte version = NodeProtocol.readPreamble(in);
+            if (version != NodeProtocol.VERSION) {
+                throw new IOException("Node speaks protocol version " + version);
+            }
+            NodeFrame response = NodeProtocol.readFrame(in);
+            if (!response.isOk()) {
+                throw new FileNotFoundException(response.getMessage());
+            }
+
+            long size = Long.parseLong(response.field(0));
+            try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ReadableByteChannel source = Channels.newChannel(in);
+                long position = 0;
+                while (position < size) {
+                    long n = file.transferFrom(source, position, size - position);
+                    if (n <= 0) {
+                        throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                    }
+                    position += n;
+                }
+                return position;
+            }
+        }
+    }
+}
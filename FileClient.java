@@ -1,13 +1,23 @@
 import java.io.*;
 import java.net.*;
 import java.rmi.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.*;
 
 public class FileClient {
+    private static final long LOCK_WAIT_MILLIS = 30_000;
+    private static final int NODE_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int UPLOAD_RETRIES = 3;
+    // Smaller files are sent whole: the signature round trip would cost more than it saves
+    private static final int DELTA_MIN_BYTES = 16 * 1024;
+
     private CoordinatorInterface coordinator;
     private String token;
     private Scanner scanner = new Scanner(System.in);
+    private String syncJobId; // last sync started from this client
+    private final ClientFileCache cache = ClientFileCache.fromSystemProperties();
 
     public FileClient() {
         try {
@@ -125,22 +135,36 @@ public class FileClient {
     private void showManagerMenu() throws RemoteException {
         while (true) {
             System.out.println("\nManager Menu:");
-            System.out.println("1. Sync all nodes");
-            System.out.println("2. Back to main menu");
+            System.out.println("1. Start sync of all nodes");
+            System.out.println("2. Sync status");
+            System.out.println("3. Node health");
+            System.out.println("4. Cache stats");
+            System.out.println("5. Back to main menu");
 
             int option = scanner.nextInt();
             scanner.nextLine(); // consume newline
 
             switch (option) {
                 case 1:
-                    System.out.println("Starting full node synchronization...");
-                    if (coordinator.syncAllNodes(token)) {
-                        System.out.println("Synchronization completed successfully");
+                    syncJobId = coordinator.syncAllNodes(token);
+                    System.out.println("Synchronization running as job " + syncJobId);
+                    break;
+                case 2:
+                    if (syncJobId == null) {
+                        System.out.println("No sync started yet");
                     } else {
-                        System.out.println("Synchronization failed");
+                        System.out.println(coordinator.getSyncStatus(token, syncJobId));
                     }
                     break;
-                case 2:
+                case 3:
+                    for (NodeHealth health : coordinator.getNodeHealth(token)) {
+                        System.out.println(health);
+                    }
+                    break;
+                case 4:
+                    System.out.println(coordinator.getCacheStats(token));
+                    break;
+                case 5:
                     return;
                 default:
                     System.out.println("Invalid option");
@@ -157,6 +181,7 @@ public class FileClient {
             String department = scanner.nextLine();
 
             if (coordinator.deleteFile(token, filename, department)) {
+                cache.remove(department, filename);
                 System.out.println("File deleted successfully");
             } else {
                 System.out.println("Failed to delete file");
@@ -174,7 +199,7 @@ public class FileClient {
             System.out.print("Department: ");
             String department = scanner.nextLine();
 
-            byte[] content = coordinator.readFile(token, filename, department);
+            byte[] content = readThroughCache(filename, department);
             System.out.println("\nFile content:");
             System.out.println(new String(content));
             System.out.println("\n--- End of file ---");
@@ -184,6 +209,18 @@ public class FileClient {
     }
 
 
+    // Unchanged files cost one small round trip: the coordinator only sends content if our version is stale
+    private byte[] readThroughCache(String filename, String department) throws RemoteException {
+        ClientFileCache.Entry cached = cache.get(department, filename);
+        VersionedContent result = coordinator.readFileIfModified(token, filename, department,
+                cached == null ? null : cached.getDigest());
+        if (!result.isModified()) {
+            return cached.getContent();
+        }
+        cache.put(department, filename, result.getDigest(), result.getContent());
+        return result.getContent();
+    }
+
     private void updateFile() {
         try {
             System.out.print("File name to update: ");
@@ -191,15 +228,16 @@ public class FileClient {
             System.out.print("Department: ");
             String department = scanner.nextLine();
 
-            // Try to lock the file first
-            if (!coordinator.lockFile(token, filename, department)) {
+            // Lock the file first, waiting in line if another user is editing it
+            System.out.println("Waiting for file lock...");
+            if (!coordinator.lockFile(token, filename, department, LOCK_WAIT_MILLIS)) {
                 System.out.println("File is currently locked by another user. Try again later.");
                 return;
             }
 
             try {
                 // First read the current file to show to user
-                byte[] currentContent = coordinator.readFile(token, filename, department);
+                byte[] currentContent = readThroughCache(filename, department);
                 System.out.println("\nCurrent file content:");
                 System.out.println(new String(currentContent));
                 System.out.println("\n--- End of current content ---");
@@ -219,7 +257,8 @@ public class FileClient {
                 byte[] newContent = contentBuilder.toString().getBytes();
                 FileData fileData = new FileData(filename, department, newContent, token);
 
-                if (coordinator.updateFile(token, fileData)) {
+                if (sendUpdate(fileData)) {
+                    cache.put(department, filename, Digests.sha256(newContent), newContent);
                     System.out.println("File updated successfully");
                 } else {
                     System.out.println("Failed to update file");
@@ -236,11 +275,36 @@ public class FileClient {
 
 
 
+    // Sends only the edit when the stored version is large and the delta is smaller; otherwise the whole content
+    private boolean sendUpdate(FileData fileData) throws RemoteException {
+        byte[] content = fileData.getContent();
+        if (content.length >= DELTA_MIN_BYTES) {
+            try {
+                FileSignature signature = coordinator.getFileSignature(token, fileData.getFilename(),
+                        fileData.getDepartment());
+                FileDelta delta = FileDelta.compute(signature, content);
+                if (delta.getEncodedSize() < content.length) {
+                    return coordinator.updateFileDelta(token, fileData.getFilename(), fileData.getDepartment(),
+                            delta);
+                }
+            } catch (RemoteException e) {
+                System.out.println("Delta update not possible (" + e.getMessage() + "), sending the whole file");
+            }
+        }
+        return coordinator.updateFile(token, fileData);
+    }
+
     private void uploadFile() throws RemoteException, IOException {
         System.out.print("Enter new file name: ");
         String filename = scanner.nextLine();
         System.out.print("Department: ");
         String department = scanner.nextLine();
+        System.out.print("Local file to upload (leave empty to type content): ");
+        String localPath = scanner.nextLine().trim();
+        if (!localPath.isEmpty()) {
+            uploadLocalFile(Paths.get(localPath), filename, department);
+            return;
+        }
         System.out.println("Enter file content (type 'END' on a new line to finish):");
 
         StringBuilder contentBuilder = new StringBuilder();
@@ -264,6 +328,45 @@ public class FileClient {
         }
     }
 
+    // Streams a local file of any size in CHUNK_SIZE pieces, resuming from the last committed offset on errors
+    private void uploadLocalFile(Path source, String filename, String department) throws IOException {
+        String uploadId = coordinator.beginUpload(token, filename, department);
+        long size = Files.size(source);
+        byte[] buffer = new byte[CoordinatorInterface.CHUNK_SIZE];
+        int failures = 0;
+
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long offset = coordinator.getUploadOffset(token, uploadId);
+            while (offset < size) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, size - offset));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, offset + chunk.position()) < 0) {
+                        throw new EOFException("File shrank while uploading");
+                    }
+                }
+                try {
+                    offset = coordinator.uploadChunk(token, uploadId, offset,
+                            Arrays.copyOf(buffer, chunk.position()));
+                    failures = 0;
+                } catch (RemoteException e) {
+                    if (++failures > UPLOAD_RETRIES) {
+                        throw e;
+                    }
+                    System.err.println("Chunk failed (" + e.getMessage() + "), resuming...");
+                    offset = coordinator.getUploadOffset(token, uploadId);
+                }
+                System.out.print("\rUploaded " + offset + " / " + size + " bytes");
+            }
+        }
+        System.out.println();
+
+        if (coordinator.completeUpload(token, uploadId)) {
+            System.out.println("File created successfully");
+        } else {
+            System.out.println("Failed to create file");
+        }
+    }
+
     private void downloadFile() throws RemoteException {
         System.out.print("File name: ");
         String filename = scanner.nextLine();
@@ -277,32 +380,24 @@ public class FileClient {
                 return;
             }
 
-            System.out.println("Attempting download from: " + 
-                            metadata.getNodeAddress() + ":" + metadata.getNodePort());
-            
-            try (Socket socket = new Socket(metadata.getNodeAddress(), metadata.getNodePort());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                
-                out.writeObject("DOWNLOAD");
-                out.writeObject(department);
-                out.writeObject(filename);
-                
-                Object response = in.readObject();
-                if (response instanceof FileData) {
-                    FileData fileData = (FileData) response;
-                    System.out.print("Save as: ");
-                    String savePath = scanner.nextLine();
-                    Files.write(Paths.get(savePath), fileData.getContent());
-                    System.out.println("Download successful!");
-                } else {
-                    System.out.println("Error: " + response);
+            System.out.print("Save as: ");
+            String savePath = scanner.nextLine();
+
+            // Replicas come in the coordinator's read order; fall through to the next one if a node is down
+            for (NodeInfo node : metadata.getReplicas()) {
+                System.out.println("Attempting download from: " + node.getAddress() + ":" + node.getPort());
+                try {
+                    long bytes = DirectDownload.download(node.getAddress(), node.getPort(),
+                            department, filename, Paths.get(savePath), NODE_CONNECT_TIMEOUT_MILLIS);
+                    System.out.println("Download successful! (" + bytes + " bytes)");
+                    return;
+                } catch (java.net.ConnectException e) {
+                    System.err.println("\u001B[31mNode unavailable\u001B[0m: " + e.getMessage());
+                    System.err.println("Please ensure node " + node.getAddress() +
+                                    " is running on port " + node.getPort());
                 }
-            } catch (java.net.ConnectException e) {
-                System.err.println("\u001B[31mNode unavailable\u001B[0m: " + e.getMessage());
-                System.err.println("Please ensure node " + metadata.getNodeAddress() + 
-                                " is running on port " + metadata.getNodePort());
             }
+            System.err.println("Download failed: no replica reachable");
         } catch (Exception e) {
             System.err.println("Download failed: " + e.getMessage());
         }
@@ -316,7 +411,9 @@ public class FileClient {
         
         FileMetadata metadata = coordinator.searchFile(token, filename, department);
         if (metadata != null) {
-            System.out.println("File found on node: " + metadata.getNodeAddress() + ":" + metadata.getNodePort());
+            for (NodeInfo node : metadata.getReplicas()) {
+                System.out.println("File found on node: " + node.getAddress() + ":" + node.getPort());
+            }
         } else {
             System.out.println("File not found");
         }
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Copies a file from one node to another in CHUNK_SIZE pieces
+ * (READ_CHUNK into UPLOAD_BEGIN/CHUNK/COMMIT), so file size never matters for
+ * memory. Files travel in their stored form, compressed or not (see
+ * Compression). Chunked files (see ChunkStore) are copied as their manifest
+ * plus only the chunks the target doesn't have yet, so a copy to the same
+ * node, or of a file the target mostly holds already, moves next to nothing.
+ * An optional rate limiter caps the bytes per second.
+ */
+public class FileCopier {
+    private final NodeConnectionPool connectionPool;
+    private final RateLimiter bandwidth; // may be null
+
+    public FileCopier(NodeConnectionPool connectionPool, RateLimiter bandwidth) {
+        this.connectionPool = connectionPool;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Copies department/filename on source to department/targetFilename on
+     * target, reporting each chunk's size to progress (if given). Returns the
+     * SHA-256 the target computed while storing the copy.
+     */
+    public String copy(NodeInfo source, NodeInfo target, String department, String filename,
+                       String targetFilename, LongConsumer progress) throws IOException {
+        NodeFrame manifest = connectionPool.call(source, NodeProtocol.MANIFEST_GET, null, department, filename);
+        if (manifest.isOk()) {
+            return copyChunked(source, target, department, targetFilename, manifest.getPayload(), progress);
+        }
+        if (manifest.getStatus() != NodeProtocol.STATUS_BAD_REQUEST) {
+            throw new IOException(source.getNodeId() + ": " + manifest.getMessage());
+        }
+
+        String uploadId = UUID.randomUUID().toString();
+        call(target, NodeProtocol.UPLOAD_BEGIN, uploadId);
+
+        try {
+            long offset = 0;
+            while (true) {
+                NodeFrame chunk = call(source, NodeProtocol.READ_CHUNK, department, filename,
+                        String.valueOf(offset), String.valueOf(CoordinatorInterface.CHUNK_SIZE), "stored");
+                long size = Long.parseLong(chunk.field(0));
+                if (chunk.getPayload().length > 0) {
+                    throttle(chunk.getPayload().length);
+                    call(target, NodeProtocol.UPLOAD_CHUNK, chunk.getPayload(), uploadId, String.valueOf(offset));
+                    offset += chunk.getPayload().length;
+                    if (progress != null) {
+                        progress.accept(chunk.getPayload().length);
+                    }
+                }
+                if (offset >= size || chunk.getPayload().length == 0) {
+                    break;
+                }
+            }
+
+            return call(target, NodeProtocol.UPLOAD_COMMIT, uploadId, department, targetFilename, "stored")
+                    .field(1);
+        } catch (IOException | RuntimeException e) {
+            abort(target, uploadId, e);
+            throw e;
+        }
+    }
+
+    // Whatever failed, the target's upload session and its partial file would otherwise stay behind
+    private void abort(NodeInfo target, String uploadId, Exception failure) {
+        try {
+            connectionPool.call(target, NodeProtocol.UPLOAD_ABORT, null, uploadId);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private String copyChunked(NodeInfo source, NodeInfo target, String department, String targetFilename,
+                               byte[] manifestBytes, LongConsumer progress) throws IOException {
+        List<String> hashes = ChunkManifest.decode(manifestBytes).getHashes();
+        // Chunks can be collected on the target between CHUNK_HAVE and MANIFEST_PUT; ask again if they were
+        for (int attempt = 1; ; attempt++) {
+            for (String hash : missingChunks(target, hashes)) {
+                byte[] chunk = call(source, NodeProtocol.CHUNK_GET, hash).getPayload();
+                throttle(chunk.length);
+                NodeFrame put = connectionPool.call(target, NodeProtocol.CHUNK_PUT, chunk, hash);
+                if (!put.isOk()) {
+                    throw new IOException(target.getNodeId() + ": " + put.getMessage());
+                }
+                if (progress != null) {
+                    progress.accept(chunk.length);
+                }
+            }
+            NodeFrame committed = connectionPool.call(target, NodeProtocol.MANIFEST_PUT, manifestBytes, department,
+                    targetFilename);
+            if (committed.isOk()) {
+                return committed.field(0);
+            }
+            if (committed.getStatus() != NodeProtocol.STATUS_MISMATCH || attempt == 3) {
+                throw new IOException(target.getNodeId() + ": " + committed.getMessage());
+            }
+        }
+    }
+
+    private List<String> missingChunks(NodeInfo node, List<String> hashes) throws IOException {
+        Set<String> distinct = new LinkedHashSet<>(hashes);
+        List<String> batch = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String hash : distinct) {
+            batch.add(hash);
+            if (batch.size() == NodeProtocol.CHUNK_HAVE_BATCH) {
+                missing.addAll(Arrays.asList(call(node, NodeProtocol.CHUNK_HAVE, batch.toArray(new String[0]))
+                        .getFields()));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            missing.addAll(Arrays.asList(call(node, NodeProtocol.CHUNK_HAVE, batch.toArray(new String[0]))
+                    .getFields()));
+        }
+        return missing;
+    }
+
+    private void throttle(long bytes) throws IOException {
+        if (bandwidth == null) {
+            return;
+        }
+        try {
+            bandwidth.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Copy interrupted");
+        }
+    }
+
+    private NodeFrame call(NodeInfo node, byte opcode, String... fields) throws IOException {
+        return call(node, opcode, null, fields);
+    }
+
+    private NodeFrame call(NodeInfo node, byte opcode, byte[] payload, String... fields) throws IOException {
+        NodeFrame response = connectionPool.call(node, opcode, payload, fields);
+        if (!response.isOk()) {
+            throw new IOException(node.getNodeId() + ": " + response.getMessage());
+        }
+        return response;
+    }
+}
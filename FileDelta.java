@@ -0,0 +1,215 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * New content of a file described against a version the nodes already hold:
+ * a list of instructions that either copy a run of that version's blocks or
+ * insert literal bytes. Computed from the old version's FileSignature, so it
+ * grows with the size of the edit rather than the size of the file.
+ *
+ * The instructions travel in Compression's stored form
+ *
+ *   byte COPY,   int first block, int block count
+ *   byte INSERT, int length, bytes
+ *
+ * and the result is checked against its SHA-256 when applied.
+ */
+public class FileDelta implements Serializable {
+    private static final byte COPY = 1;
+    private static final byte INSERT = 2;
+
+    private final String baseDigest;
+    private final String digest;
+    private final long size;
+    private final int blockSize;
+    private final byte[] instructions;
+
+    private FileDelta(String baseDigest, String digest, long size, int blockSize, byte[] instructions) {
+        this.baseDigest = baseDigest;
+        this.digest = digest;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.instructions = instructions;
+    }
+
+    /*
+     * Slides a block-sized window over the new content one byte at a time. A window whose rolling
+     * checksum and then strong checksum match a block of the old version becomes a copy of that block
+     * and the window jumps past it; bytes the window slides over become inserts.
+     */
+    public static FileDelta compute(FileSignature base, byte[] content) {
+        int blockSize = base.getBlockSize();
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        for (int block = 0; block < base.getBlockCount(); block++) {
+            if (base.getBlockLength(block) == blockSize) {
+                blocksByWeak.computeIfAbsent(base.getWeak(block), w -> new ArrayList<>(1)).add(block);
+            }
+        }
+
+        Writer writer = new Writer();
+        int literalStart = 0;
+        int position = 0;
+        int weak = content.length >= blockSize ? FileSignature.weakChecksum(content, 0, blockSize) : 0;
+        while (position + blockSize <= content.length) {
+            int match = -1;
+            List<Integer> candidates = blocksByWeak.get(weak);
+            if (candidates != null) {
+                byte[] strong = FileSignature.strongChecksum(content, position, blockSize);
+                for (int block : candidates) {
+                    if (base.strongMatches(block, strong)) {
+                        match = block;
+                        break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                writer.insert(content, literalStart, position - literalStart);
+                writer.copy(match);
+                position += blockSize;
+                literalStart = position;
+                if (position + blockSize <= content.length) {
+                    weak = FileSignature.weakChecksum(content, position, blockSize);
+                }
+            } else {
+                if (position + blockSize < content.length) {
+                    weak = FileSignature.rollChecksum(weak, blockSize, content[position],
+                            content[position + blockSize]);
+                }
+                position++;
+            }
+        }
+
+        // The old version's short last block can only match the end of the new content
+        int last = base.getBlockCount() - 1;
+        int tail = last >= 0 ? base.getBlockLength(last) : 0;
+        if (tail > 0 && tail < blockSize && content.length - tail >= literalStart
+                && base.strongMatches(last, FileSignature.strongChecksum(content, content.length - tail, tail))) {
+            writer.insert(content, literalStart, content.length - tail - literalStart);
+            writer.copy(last);
+            literalStart = content.length;
+        }
+        writer.insert(content, literalStart, content.length - literalStart);
+
+        return new FileDelta(base.getDigest(), Digests.sha256(content), content.length, blockSize,
+                Compression.encode(writer.finish(), Deflater.BEST_SPEED));
+    }
+
+    /** Rebuilds the new content from the base version, which must be the one the delta was computed against. */
+    public byte[] apply(byte[] base) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Delta result too large: " + size + " bytes");
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int) size);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Compression.decode(instructions)));
+        while (in.available() > 0) {
+            byte op = in.readByte();
+            if (op == COPY) {
+                long offset = (long) in.readInt() * blockSize;
+                long length = (long) in.readInt() * blockSize;
+                if (offset < 0 || offset >= base.length || length <= 0) {
+                    throw new IOException("Delta copies outside the base version");
+                }
+                result.write(base, (int) offset, (int) Math.min(length, base.length - offset));
+            } else if (op == INSERT) {
+                byte[] literal = new byte[in.readInt()];
+                in.readFully(literal);
+                result.write(literal);
+            } else {
+                throw new IOException("Unknown delta instruction: " + op);
+            }
+        }
+        byte[] content = result.toByteArray();
+        if (content.length != size || !digest.equals(Digests.sha256(content))) {
+            throw new IOException("Delta result doesn't match its checksum");
+        }
+        return content;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(160 + instructions.length);
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeUTF(baseDigest);
+            out.writeUTF(digest);
+            out.writeLong(size);
+            out.writeInt(blockSize);
+            out.writeInt(instructions.length);
+            out.write(instructions);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+        }
+        return buffer.toByteArray();
+    }
+
+    public static FileDelta decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        String baseDigest = in.readUTF();
+        String digest = in.readUTF();
+        long size = in.readLong();
+        int blockSize = in.readInt();
+        int length = in.readInt();
+        if (blockSize <= 0 || length < 0 || length > in.available()) {
+            throw new IOException("Corrupt file delta");
+        }
+        byte[] instructions = new byte[length];
+        in.readFully(instructions);
+        return new FileDelta(baseDigest, digest, size, blockSize, instructions);
+    }
+
+    public String getBaseDigest() { return baseDigest; }
+    public String getDigest() { return digest; }
+    public long getSize() { return size; }
+    /** Bytes on the wire, for comparing with sending the whole content. */
+    public int getEncodedSize() { return instructions.length; }
+
+    // Builds the instruction stream, merging copies of consecutive blocks into one
+    private static class Writer {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buffer);
+        private int copyFirst = -1;
+        private int copyCount;
+
+        void copy(int block) {
+            if (copyFirst >= 0 && block == copyFirst + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        void insert(byte[] data, int offset, int length) {
+            if (length <= 0) {
+                return;
+            }
+            flushCopy();
+            try {
+                out.writeByte(INSERT);
+                out.writeInt(length);
+                out.write(data, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+            }
+        }
+
+        byte[] finish() {
+            flushCopy();
+            return buffer.toByteArray();
+        }
+
+        private void flushCopy() {
+            if (copyFirst < 0) {
+                return;
+            }
+            try {
+                out.writeByte(COPY);
+                out.writeInt(copyFirst);
+                out.writeInt(copyCount);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+            }
+            copyFirst = -1;
+        }
+    }
+}
@@ -1,49 +1,66 @@
 import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class FileMetadata implements Serializable {
     private String filename;
     private String department;
     private String nodeAddress;
     private int nodePort;
-    private boolean isLocked;
-    private String lockedBy;  // username of user who locked the file
-    private long lockTimestamp;
+    private volatile String digest;    // SHA-256 of the content, as acknowledged by the node
+    // Every node holding an up-to-date copy; the first one is reported as nodeAddress/nodePort
+    private final List<NodeInfo> replicas = new CopyOnWriteArrayList<>();
+    // Lock state is owned by LockManager on the coordinator, not by the metadata
 
-    // Add these to constructor
     public FileMetadata(String filename, String department, String nodeAddress, int nodePort) {
         this.filename = filename;
         this.department = department;
         this.nodeAddress = nodeAddress;
         this.nodePort = nodePort;
-        this.isLocked = false;
-        this.lockedBy = null;
-        this.lockTimestamp = 0;
     }
 
-    // Add getters and setters
-    public boolean isLocked() { return isLocked; }
-    public String getLockedBy() { return lockedBy; }
-    public long getLockTimestamp() { return lockTimestamp; }
+    public FileMetadata(String filename, String department, List<NodeInfo> replicas) {
+        this.filename = filename;
+        this.department = department;
+        this.replicas.addAll(replicas);
+    }
 
-    public void lock(String username) {
-        this.isLocked = true;
-        this.lockedBy = username;
-        this.lockTimestamp = System.currentTimeMillis();
+    public String getFilename() { return filename; }
+    public String getDepartment() { return department; }
+    public String getDigest() { return digest; }
+    public void setDigest(String digest) { this.digest = digest; }
+
+    public String getNodeAddress() {
+        List<NodeInfo> current = getReplicas();
+        return current.isEmpty() ? nodeAddress : current.get(0).getAddress();
     }
 
-    public void unlock() {
-        this.isLocked = false;
-        this.lockedBy = null;
-        this.lockTimestamp = 0;
+    public int getNodePort() {
+        List<NodeInfo> current = getReplicas();
+        return current.isEmpty() ? nodePort : current.get(0).getPort();
     }
 
-    // Add method to check if lock is expired (e.g., after 5 minutes)
-    public boolean isLockExpired() {
-        return isLocked && (System.currentTimeMillis() - lockTimestamp) > (5 * 60 * 1000);
+    /** Snapshot of the replica locations. */
+    public List<NodeInfo> getReplicas() {
+        return new ArrayList<>(replicas);
     }
 
-    public String getFilename() { return filename; }
-    public String getDepartment() { return department; }
-    public String getNodeAddress() { return nodeAddress; }
-    public int getNodePort() { return nodePort; }
+    public synchronized void addReplica(NodeInfo node) {
+        if (!hasReplica(node)) {
+            replicas.add(node);
+        }
+    }
+
+    public void removeReplica(NodeInfo node) {
+        replicas.removeIf(replica -> replica.getNodeId().equals(node.getNodeId()));
+    }
+
+    public boolean hasReplica(NodeInfo node) {
+        for (NodeInfo replica : replicas) {
+            if (replica.getNodeId().equals(node.getNodeId())) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
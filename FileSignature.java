@@ -0,0 +1,128 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * rsync-style signatures of one version of a file: for every blockSize block
+ * a rolling weak checksum and a strong one (the first STRONG_BYTES of its
+ * SHA-256). Holding only these, a client can describe new content as a
+ * FileDelta against that version (see FileDelta.compute).
+ */
+public class FileSignature implements Serializable {
+    public static final int STRONG_BYTES = 16;
+
+    private final String digest;
+    private final long size;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[] strong; // STRONG_BYTES per block
+
+    private FileSignature(String digest, long size, int blockSize, int[] weak, byte[] strong) {
+        this.digest = digest;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /** About the square root of the size, as rsync does, between 1 KiB and 64 KiB. */
+    public static int blockSizeFor(long size) {
+        int root = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(size)));
+        return Math.max(1024, Math.min(64 * 1024, root));
+    }
+
+    /** Reads raw content of the given size to its end, signing each block. */
+    public static FileSignature compute(InputStream raw, long size, int blockSize) throws IOException {
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_BYTES];
+        MessageDigest whole = Digests.newSha256();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blocks; i++) {
+            int n = raw.readNBytes(block, 0, blockSize);
+            if (n == 0) {
+                throw new EOFException("Content ended at block " + i + " of " + blocks);
+            }
+            whole.update(block, 0, n);
+            weak[i] = weakChecksum(block, 0, n);
+            System.arraycopy(strongChecksum(block, 0, n), 0, strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+        return new FileSignature(Digests.hex(whole.digest()), size, blockSize, weak, strong);
+    }
+
+    // rsync's checksum: a = sum of the bytes, b = sum of the running sums a, each mod 2^16
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    // The checksum of the window one byte further on, from that of the window before it
+    static int rollChecksum(int checksum, int length, byte out, byte in) {
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - length * (out & 0xff) + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    static byte[] strongChecksum(byte[] data, int offset, int length) {
+        MessageDigest digest = Digests.newSha256();
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_BYTES);
+    }
+
+    boolean strongMatches(int block, byte[] checksum) {
+        return Arrays.equals(strong, block * STRONG_BYTES, (block + 1) * STRONG_BYTES, checksum, 0, STRONG_BYTES);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(96 + weak.length * (4 + STRONG_BYTES));
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeUTF(digest);
+            out.writeLong(size);
+            out.writeInt(blockSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong, i * STRONG_BYTES, STRONG_BYTES);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+        }
+        return buffer.toByteArray();
+    }
+
+    public static FileSignature decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        String digest = in.readUTF();
+        long size = in.readLong();
+        int blockSize = in.readInt();
+        int blocks = in.readInt();
+        if (blockSize <= 0 || blocks < 0 || blocks != (size + blockSize - 1) / blockSize) {
+            throw new IOException("Corrupt file signature");
+        }
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_BYTES];
+        for (int i = 0; i < blocks; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+        return new FileSignature(digest, size, blockSize, weak, strong);
+    }
+
+    public String getDigest() { return digest; }
+    public long getSize() { return size; }
+    public int getBlockSize() { return blockSize; }
+    public int getBlockCount() { return weak.length; }
+    int getWeak(int block) { return weak[block]; }
+
+    /** Length of the given block; only the last one can be short. */
+    int getBlockLength(int block) {
+        return (int) Math.min(blockSize, size - (long) block * blockSize);
+    }
+}
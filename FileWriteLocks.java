@@ -0,0 +1,52 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Orders the coordinator's writes to each file. A create, update, delete or
+ * replica change of one file runs holding that file's stripe, so its writes
+ * reach every replica in the order the metadata records them, instead of
+ * overlapping fan-outs landing on each replica in a different order.
+ *
+ * Keys (department + "/" + filename) map onto a fixed set of stripes, as in
+ * LockManager; the stripes are reentrant.
+ */
+public class FileWriteLocks {
+    private static final int STRIPES = 64;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    public FileWriteLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock lockFor(String key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    /** Locks the stripes of all the keys, in stripe order so two batches can't deadlock; see unlockAll. */
+    public List<ReentrantLock> lockAll(Collection<String> keys) {
+        SortedMap<Integer, ReentrantLock> needed = new TreeMap<>();
+        for (String key : keys) {
+            needed.put(stripeIndex(key), lockFor(key));
+        }
+        List<ReentrantLock> locked = new ArrayList<>(needed.values());
+        for (ReentrantLock stripe : locked) {
+            stripe.lock();
+        }
+        return locked;
+    }
+
+    public void unlockAll(List<ReentrantLock> locked) {
+        for (ReentrantLock stripe : locked) {
+            stripe.unlock();
+        }
+    }
+
+    private static int stripeIndex(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+}
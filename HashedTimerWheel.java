@@ -0,0 +1,121 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hashed timer wheel for cheap, coarse-grained timeouts (lock leases and the like).
+ *
+ * Scheduling and cancelling are O(1); a single daemon thread advances the wheel
+ * once per tick and fires every timeout in the current bucket whose round count
+ * has reached zero. Precision is one tick, which is plenty for leases measured
+ * in seconds or minutes.
+ */
+public class HashedTimerWheel {
+    private final long tickMillis;
+    private final int mask;
+    private final List<Set<Timeout>> wheel;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick;
+
+    public HashedTimerWheel(String name, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new HashSet<>());
+        }
+        this.startTime = System.currentTimeMillis();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        if (!running) {
+            throw new IllegalStateException("Timer wheel stopped");
+        }
+        long deadline = System.currentTimeMillis() + Math.max(0, delayMillis);
+        Timeout timeout = new Timeout(task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long nextTickTime = startTime + (tick + 1) * tickMillis;
+            long sleep = nextTickTime - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+                continue;
+            }
+
+            transferPending();
+            Set<Timeout> bucket = wheel.get((int) (tick & mask));
+            Iterator<Timeout> it = bucket.iterator();
+            while (it.hasNext()) {
+                Timeout timeout = it.next();
+                if (timeout.cancelled) {
+                    it.remove();
+                } else if (timeout.remainingRounds <= 0) {
+                    it.remove();
+                    timeout.fire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+            }
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadline - startTime + tickMillis - 1) / tickMillis);
+            timeout.remainingRounds = (ticks - tick) / wheel.size();
+            wheel.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // The bucket entry is dropped lazily by the worker thread
+        public void cancel() { cancelled = true; }
+        public boolean isCancelled() { return cancelled; }
+        public long getDeadline() { return deadline; }
+
+        private void fire() {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Timer task failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Rebuilds the coordinator's file index from what the storage nodes actually
+ * hold, so files written before a restart (or behind the coordinator's back)
+ * become visible again.
+ *
+ * Every node is read in parallel, one thread per node. A node's departments
+ * come from TREE_ROOTS and each department is paged through with LIST, one
+ * page of a Merkle leaf per request and dfs.rebuild.pipelineDepth requests outstanding.
+ * Each page is handed to the sink as soon as it arrives, so the index fills in
+ * progressively while the rebuild runs.
+ */
+public class IndexRebuilder {
+    /** One file as reported by a node's inventory. */
+    public static class Entry {
+        private final String department;
+        private final String filename;
+        private final long size;
+        private final long modifiedMillis;
+        private final String digest;
+
+        Entry(String department, String filename, long size, long modifiedMillis, String digest) {
+            this.department = department;
+            this.filename = filename;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.digest = digest;
+        }
+
+        public String getDepartment() { return department; }
+        public String getFilename() { return filename; }
+        public long getSize() { return size; }
+        public long getModifiedMillis() { return modifiedMillis; }
+        public String getDigest() { return digest; }
+    }
+
+    private final NodeConnectionPool connectionPool;
+    private final long timeoutMillis;
+    private final int pipelineDepth;
+    private final BiConsumer<NodeInfo, List<Entry>> sink;
+    private final AtomicInteger running = new AtomicInteger();
+    // One thread per node being read, each mostly blocked waiting on that node's replies
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public IndexRebuilder(NodeConnectionPool connectionPool, long timeoutMillis, int pipelineDepth,
+                          BiConsumer<NodeInfo, List<Entry>> sink) {
+        this.connectionPool = connectionPool;
+        this.timeoutMillis = timeoutMillis;
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+        this.sink = sink;
+    }
+
+    /** Starts reading every node's inventory; the future completes when all nodes are done or failed. */
+    public CompletableFuture<Void> start(List<NodeInfo> nodes) {
+        long start = System.currentTimeMillis();
+        AtomicLong files = new AtomicLong();
+        AtomicInteger failedNodes = new AtomicInteger();
+        running.incrementAndGet();
+
+        List<CompletableFuture<Void>> perNode = new ArrayList<>();
+        for (NodeInfo node : nodes) {
+            perNode.add(CompletableFuture.runAsync(() -> {
+                try {
+                    files.addAndGet(readNode(node));
+                } catch (Exception e) {
+                    failedNodes.incrementAndGet();
+                    System.err.println("Index rebuild could not read node " + node.getNodeId() + ": " + e.getMessage());
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(perNode.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            running.decrementAndGet();
+            System.out.println("Index rebuild read " + files.get() + " files from " + nodes.size() + " nodes ("
+                    + failedNodes.get() + " failed) in " + (System.currentTimeMillis() - start) + " ms");
+        });
+    }
+
+    public boolean isRunning() {
+        return running.get() > 0;
+    }
+
+    private long readNode(NodeInfo node) throws Exception {
+        NodeFrame roots = connectionPool.call(node, NodeProtocol.TREE_ROOTS, null);
+        if (!roots.isOk()) {
+            throw new IOException(roots.getMessage());
+        }
+        long files = 0;
+        String[] fields = roots.getFields();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            files += readDepartment(node, fields[i]);
+        }
+        return files;
+    }
+
+    private long readDepartment(NodeInfo node, String department) throws Exception {
+        long files = 0;
+        // Requests in flight and the leaf each one lists; a full page asks again for the rest of its leaf
+        Deque<CompletableFuture<NodeFrame>> window = new ArrayDeque<>();
+        Deque<Integer> windowLeaves = new ArrayDeque<>();
+        Deque<String[]> continuations = new ArrayDeque<>();
+        int nextLeaf = 0;
+        while (nextLeaf < MerkleTree.LEAVES || !continuations.isEmpty() || !window.isEmpty()) {
+            while ((nextLeaf < MerkleTree.LEAVES || !continuations.isEmpty()) && window.size() < pipelineDepth) {
+                String[] next = continuations.isEmpty()
+                        ? new String[] {String.valueOf(nextLeaf++), null} : continuations.poll();
+                window.add(connectionPool.send(node, NodeProtocol.LIST, null, department, next[0], next[1])
+                        .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS));
+                windowLeaves.add(Integer.valueOf(next[0]));
+            }
+            int leaf = windowLeaves.poll();
+            NodeFrame page;
+            try {
+                page = window.poll().get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            if (!page.isOk()) {
+                throw new IOException("LIST " + department + " failed: " + page.getMessage());
+            }
+            String[] fields = page.getFields();
+            if (page.field(0) != null) {
+                continuations.add(new String[] {String.valueOf(leaf), page.field(0)});
+            }
+            List<Entry> entries = new ArrayList<>(fields.length / 4);
+            for (int i = 1; i + 3 < fields.length; i += 4) {
+                entries.add(new Entry(department, fields[i], Long.parseLong(fields[i + 1]),
+                        Long.parseLong(fields[i + 2]), fields[i + 3]));
+            }
+            if (!entries.isEmpty()) {
+                sink.accept(node, entries);
+                files += entries.size();
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.*;
+
+/**
+ * Picks the nodes with the fewest requests in flight, breaking ties by recent
+ * latency. Exact for a single coordinator, since its own outstanding count is
+ * read live from the connection pool.
+ */
+public class LeastOutstandingPlacement implements PlacementStrategy {
+    private final NodeLoadMonitor monitor;
+
+    public LeastOutstandingPlacement(NodeLoadMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public List<NodeInfo> select(String department, String filename, List<NodeInfo> candidates, int count) {
+        List<NodeInfo> withSpace = new ArrayList<>();
+        List<NodeInfo> full = new ArrayList<>();
+        for (NodeInfo node : candidates) {
+            (monitor.hasSpace(node) ? withSpace : full).add(node);
+        }
+        // Stable sort keeps round-robin order among equally loaded nodes
+        Comparator<NodeInfo> byLoad = Comparator.<NodeInfo>comparingInt(monitor::outstanding)
+                .thenComparingDouble(monitor::latencyMillis);
+        withSpace.sort(byLoad);
+        full.sort(byLoad);
+
+        List<NodeInfo> ordered = new ArrayList<>(withSpace);
+        ordered.addAll(full);
+        return new ArrayList<>(ordered.subList(0, Math.min(count, ordered.size())));
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Lease-based exclusive file locks for the coordinator.
+ *
+ * Lock state lives in a concurrent map keyed by file, and every key is guarded by
+ * one of a fixed set of lock stripes, so unrelated files never contend on a shared
+ * monitor. Granted locks are leases: a hashed timer wheel expires them eagerly and
+ * hands the lock to the next waiter, instead of waiting for someone to notice.
+ * Callers that want to wait queue up in FIFO order and are granted the lock
+ * directly on release, so a contended file does not turn into a retry storm.
+ */
+public class LockManager {
+    private static final int STRIPES = 64;
+
+    private final long leaseMillis;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final ConcurrentMap<String, LockState> locks = new ConcurrentHashMap<>();
+    private final HashedTimerWheel timer;
+
+    public LockManager(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.timer = new HashedTimerWheel("lock-lease-timer", 100, 512);
+    }
+
+    /** Acquires or renews the lock without waiting. */
+    public boolean tryLock(String key, String username) {
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            LockState state = locks.computeIfAbsent(key, k -> new LockState());
+            if (state.owner == null && state.waiters.isEmpty()) {
+                grant(key, state, username);
+                return true;
+            }
+            if (username.equals(state.owner)) {
+                grant(key, state, username); // renew the lease
+                return true;
+            }
+            return false;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Acquires the lock, waiting in FIFO order for at most timeoutMillis.
+     * Returns false if the lock could not be granted in time.
+     */
+    public boolean lock(String key, String username, long timeoutMillis) throws InterruptedException {
+        if (timeoutMillis <= 0) {
+            return tryLock(key, username);
+        }
+
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            LockState state = locks.computeIfAbsent(key, k -> new LockState());
+            if ((state.owner == null && state.waiters.isEmpty()) || username.equals(state.owner)) {
+                grant(key, state, username);
+                return true;
+            }
+
+            Waiter waiter = new Waiter(username, stripe.newCondition());
+            state.waiters.addLast(waiter);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (!waiter.granted && !waiter.cancelled && remaining > 0) {
+                    remaining = waiter.condition.awaitNanos(remaining);
+                }
+            } finally {
+                if (!waiter.granted) {
+                    state.waiters.remove(waiter);
+                    removeIfIdle(key, state);
+                }
+            }
+            return waiter.granted;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /** Releases the lock if it is held by username. */
+    public boolean unlock(String key, String username) {
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            LockState state = locks.get(key);
+            if (state == null || !username.equals(state.owner)) {
+                return false;
+            }
+            release(key, state);
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /** Returns the current lock holder, or null if the file is not locked. */
+    public String getOwner(String key) {
+        LockState state = locks.get(key);
+        return state == null ? null : state.owner;
+    }
+
+    /** Drops all lock state for a deleted file and fails any waiters. */
+    public void forget(String key) {
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            LockState state = locks.remove(key);
+            if (state == null) {
+                return;
+            }
+            if (state.lease != null) {
+                state.lease.cancel();
+            }
+            for (Waiter waiter : state.waiters) {
+                waiter.cancelled = true;
+                waiter.condition.signal();
+            }
+            state.waiters.clear();
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public void shutdown() {
+        timer.stop();
+    }
+
+    // Caller must hold the stripe lock
+    private void grant(String key, LockState state, String username) {
+        if (state.lease != null) {
+            state.lease.cancel();
+        }
+        state.owner = username;
+        long generation = ++state.generation;
+        state.lease = timer.schedule(() -> expire(key, state, generation), leaseMillis);
+    }
+
+    // Caller must hold the stripe lock
+    private void release(String key, LockState state) {
+        if (state.lease != null) {
+            state.lease.cancel();
+            state.lease = null;
+        }
+        state.owner = null;
+
+        Waiter next = state.waiters.pollFirst();
+        if (next != null) {
+            grant(key, state, next.username);
+            next.granted = true;
+            next.condition.signal();
+        } else {
+            removeIfIdle(key, state);
+        }
+    }
+
+    private void expire(String key, LockState state, long generation) {
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            // Only expire the lease we scheduled; a renewal or handoff bumps the generation
+            if (state.generation == generation && state.owner != null) {
+                System.out.println("Lock lease expired for " + key + " (held by " + state.owner + ")");
+                release(key, state);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private void removeIfIdle(String key, LockState state) {
+        if (state.owner == null && state.waiters.isEmpty()) {
+            locks.remove(key, state);
+        }
+    }
+
+    private ReentrantLock stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    private static class LockState {
+        private volatile String owner;
+        private long generation;
+        private HashedTimerWheel.Timeout lease;
+        private final Deque<Waiter> waiters = new ArrayDeque<>();
+    }
+
+    private static class Waiter {
+        private final String username;
+        private final Condition condition;
+        private boolean granted;
+        private boolean cancelled;
+
+        private Waiter(String username, Condition condition) {
+            this.username = username;
+            this.condition = condition;
+        }
+    }
+}
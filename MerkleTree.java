@@ -0,0 +1,122 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Fixed-shape Merkle tree over the file digests of one department on one node.
+ *
+ * Files are hashed by name into LEAVES buckets. Each leaf's hash covers its
+ * sorted (filename, digest) pairs, each interior hash covers its FANOUT
+ * children, and the root covers everything. Two nodes with equal roots hold
+ * identical departments; otherwise comparing children top-down narrows the
+ * difference to a few leaves without looking at unchanged files.
+ *
+ * Levels are numbered from the root: level 0 is the root, level DEPTH holds the
+ * leaves. Hashes are recomputed lazily, only along dirty paths.
+ */
+public class MerkleTree {
+    public static final int FANOUT = 16;
+    public static final int DEPTH = 2;
+    public static final int LEAVES = 256; // FANOUT ^ DEPTH
+
+    private static final String EMPTY = Digests.hex(Digests.newSha256().digest());
+
+    private final List<TreeMap<String, String>> leaves = new ArrayList<>(LEAVES);
+    // hashes[level][index]; null means dirty
+    private final String[][] hashes = new String[DEPTH + 1][];
+
+    public MerkleTree() {
+        for (int i = 0; i < LEAVES; i++) {
+            leaves.add(new TreeMap<>());
+        }
+        for (int level = 0, width = 1; level <= DEPTH; level++, width *= FANOUT) {
+            hashes[level] = new String[width];
+        }
+    }
+
+    public static int leafFor(String filename) {
+        return Math.floorMod(filename.hashCode(), LEAVES);
+    }
+
+    public synchronized void put(String filename, String digest) {
+        int leaf = leafFor(filename);
+        if (!digest.equals(leaves.get(leaf).put(filename, digest))) {
+            invalidate(leaf);
+        }
+    }
+
+    public synchronized void remove(String filename) {
+        int leaf = leafFor(filename);
+        if (leaves.get(leaf).remove(filename) != null) {
+            invalidate(leaf);
+        }
+    }
+
+    public synchronized String getDigest(String filename) {
+        return leaves.get(leafFor(filename)).get(filename);
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (TreeMap<String, String> leaf : leaves) {
+            size += leaf.size();
+        }
+        return size;
+    }
+
+    public synchronized String rootHash() {
+        return hash(0, 0);
+    }
+
+    /** Hashes of the FANOUT children of the given interior node. */
+    public synchronized String[] childHashes(int level, int index) {
+        if (level < 0 || level >= DEPTH || index < 0 || index >= hashes[level].length) {
+            throw new IllegalArgumentException("No interior node at level " + level + " index " + index);
+        }
+        String[] children = new String[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            children[i] = hash(level + 1, index * FANOUT + i);
+        }
+        return children;
+    }
+
+    /** Sorted (filename -> digest) entries of one leaf. */
+    public synchronized SortedMap<String, String> leafEntries(int leaf) {
+        return new TreeMap<>(leaves.get(leaf));
+    }
+
+    private void invalidate(int leaf) {
+        int index = leaf;
+        for (int level = DEPTH; level >= 0; level--) {
+            hashes[level][index] = null;
+            index /= FANOUT;
+        }
+    }
+
+    private String hash(int level, int index) {
+        String cached = hashes[level][index];
+        if (cached != null) {
+            return cached;
+        }
+
+        MessageDigest digest = Digests.newSha256();
+        if (level == DEPTH) {
+            TreeMap<String, String> leaf = leaves.get(index);
+            if (leaf.isEmpty()) {
+                cached = EMPTY;
+            } else {
+                for (Map.Entry<String, String> entry : leaf.entrySet()) {
+                    digest.update((entry.getKey() + "\t" + entry.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                cached = Digests.hex(digest.digest());
+            }
+        } else {
+            for (int i = 0; i < FANOUT; i++) {
+                digest.update(hash(level + 1, index * FANOUT + i).getBytes(StandardCharsets.UTF_8));
+            }
+            cached = Digests.hex(digest.digest());
+        }
+        hashes[level][index] = cached;
+        return cached;
+    }
+}
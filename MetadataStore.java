@@ -0,0 +1,401 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record log for the coordinator's metadata: an append-only
+ * write-ahead log plus periodic snapshots.
+ *
+ * Records are framed as {int length, int crc32, byte type, short field count,
+ * fields} and written by a single writer thread. Appenders queue a record and
+ * wait; the writer writes everything queued since its last flush and fsyncs
+ * once, so concurrent writers share one fsync (group commit).
+ *
+ * Every snapshotEveryRecords records the log is rotated to a new segment and
+ * the caller's state is dumped into a snapshot that names that segment. The
+ * dump runs while writes continue, so records must be idempotent "current
+ * state of X" records: replaying the newer segments over the snapshot then
+ * always ends in the right state. Recovery loads the snapshot and replays the
+ * segments after it, stopping at the first torn or corrupt record.
+ *
+ * Files in the data directory: snapshot.dat and wal-<segment>.log.
+ */
+public class MetadataStore implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x44465353; // "DFSS"
+    private static final String SNAPSHOT = "snapshot.dat";
+
+    /** One log record: a type chosen by the caller and nullable string fields. */
+    public static class Record {
+        private final byte type;
+        private final String[] fields;
+        private int encodedSize; // bytes on disk including the header, set when read back
+
+        public Record(byte type, String... fields) {
+            this.type = type;
+            this.fields = fields;
+        }
+
+        public byte getType() { return type; }
+        public String[] getFields() { return fields; }
+        public String field(int index) { return fields[index]; }
+    }
+
+    /** Writes the complete current state as records into the given sink. */
+    public interface StateDumper {
+        void dump(Consumer<Record> sink);
+    }
+
+    private final Path directory;
+    private final long snapshotEveryRecords;
+    private StateDumper dumper;
+
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean rotateRequested;
+    private long segment;
+    private IOException failure;
+    private FileChannel channel;
+    private long recordsSinceSnapshot;
+    private boolean closed;
+
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "metadata-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MetadataStore(Path directory, long snapshotEveryRecords) {
+        this.directory = directory;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+    }
+
+    /**
+     * Replays the snapshot and log into apply, then opens a fresh segment and
+     * starts the writer. Must be called once before append.
+     */
+    public void recover(Consumer<Record> apply, StateDumper dumper) throws IOException {
+        this.dumper = dumper;
+        Files.createDirectories(directory);
+        long start = System.currentTimeMillis();
+        long records = 0;
+
+        long firstSegment = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(snapshot), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a metadata snapshot: " + snapshot);
+                }
+                firstSegment = in.readLong();
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    apply.accept(record);
+                    records++;
+                }
+            }
+        }
+
+        long lastSegment = firstSegment - 1;
+        for (long id : segmentIds()) {
+            if (id < firstSegment) {
+                continue;
+            }
+            Path file = segmentPath(id);
+            long validBytes = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(file), 1 << 16))) {
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    apply.accept(record);
+                    records++;
+                    validBytes += record.encodedSize;
+                }
+            }
+            if (validBytes < Files.size(file)) {
+                // Torn tail from a crash mid-write; those records were never acknowledged
+                System.err.println("Truncating " + file + " at byte " + validBytes);
+                try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    truncate.truncate(validBytes);
+                }
+            }
+            lastSegment = id;
+        }
+
+        synchronized (lock) {
+            segment = lastSegment + 1;
+            channel = openSegment(segment);
+            recordsSinceSnapshot = records;
+        }
+        Thread writer = new Thread(this::writeLoop, "metadata-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        System.out.println("Recovered " + records + " metadata records in "
+                + (System.currentTimeMillis() - start) + " ms");
+        maybeSnapshot();
+    }
+
+    /**
+     * Appends the record produced by the supplier and returns once it is on
+     * disk. The supplier runs under the log's ordering lock, so records built
+     * from current state are logged in the order that state was observed.
+     */
+    public void append(Supplier<Record> supplier) throws IOException {
+        appendAll(Collections.singletonList(supplier));
+    }
+
+    /** Appends several records in order and waits once for all of them. */
+    public void appendAll(List<? extends Supplier<Record>> suppliers) throws IOException {
+        long seq;
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+            DataOutputStream out = new DataOutputStream(pending);
+            for (Supplier<Record> supplier : suppliers) {
+                encode(out, supplier.get());
+            }
+            appendedSeq += suppliers.size();
+            seq = appendedSeq;
+            recordsSinceSnapshot += suppliers.size();
+            lock.notifyAll();
+
+            while (durableSeq < seq && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for log flush");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        maybeSnapshot();
+    }
+
+    /** Rotates the log and writes a snapshot now, on the calling thread. */
+    public void snapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        long snapshotSegment = rotate();
+
+        Path temp = directory.resolve(SNAPSHOT + ".tmp");
+        long[] count = new long[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotSegment);
+            dumper.dump(record -> {
+                try {
+                    encode(out, record);
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        try (FileChannel sync = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            sync.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (long id : segmentIds()) {
+            if (id < snapshotSegment) {
+                Files.deleteIfExists(segmentPath(id));
+            }
+        }
+        System.out.println("Metadata snapshot of " + count[0] + " records written in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        snapshotExecutor.shutdown();
+    }
+
+    private void maybeSnapshot() {
+        synchronized (lock) {
+            if (recordsSinceSnapshot < snapshotEveryRecords) {
+                return;
+            }
+        }
+        if (snapshotRunning.compareAndSet(false, true)) {
+            snapshotExecutor.execute(() -> {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    System.err.println("Metadata snapshot failed: " + e.getMessage());
+                } finally {
+                    snapshotRunning.set(false);
+                }
+            });
+        }
+    }
+
+    // Asks the writer to switch to a new segment and waits for it; returns the new segment id
+    private long rotate() throws IOException {
+        synchronized (lock) {
+            long before = segment;
+            rotateRequested = true;
+            lock.notifyAll();
+            while (segment == before && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for log rotation");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            recordsSinceSnapshot = 0;
+            return segment;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                byte[] batch;
+                long batchSeq;
+                boolean rotate;
+                synchronized (lock) {
+                    while (pending.size() == 0 && !rotateRequested && !closed) {
+                        lock.wait();
+                    }
+                    if (closed && pending.size() == 0) {
+                        channel.close();
+                        return;
+                    }
+                    batch = pending.toByteArray();
+                    pending.reset();
+                    batchSeq = appendedSeq;
+                    rotate = rotateRequested;
+                }
+
+                if (batch.length > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(batch);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+
+                FileChannel next = rotate ? openSegment(segment + 1) : null;
+                synchronized (lock) {
+                    durableSeq = batchSeq;
+                    if (rotate) {
+                        channel.close();
+                        channel = next;
+                        segment++;
+                        rotateRequested = false;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                failure = e;
+                lock.notifyAll();
+            }
+            System.err.println("Metadata log writer failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("wal-%016d.log", id));
+    }
+
+    private List<Long> segmentIds() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static void encode(DataOutputStream out, Record record) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(body);
+        data.writeByte(record.type);
+        data.writeShort(record.fields.length);
+        for (String field : record.fields) {
+            data.writeBoolean(field != null);
+            if (field != null) {
+                data.writeUTF(field);
+            }
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+    }
+
+    // Null at a clean end of file, or at a torn or corrupt record
+    private static Record readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            int expectedCrc = in.readInt();
+            if (length < 3 || length > NodeProtocol.MAX_FRAME_BYTES) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != expectedCrc) {
+                return null;
+            }
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            byte type = data.readByte();
+            String[] fields = new String[data.readShort()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = data.readBoolean() ? data.readUTF() : null;
+            }
+            Record record = new Record(type, fields);
+            record.encodedSize = 8 + length;
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
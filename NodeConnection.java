@@ -0,0 +1,212 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A long-lived, multiplexed connection to a NodeServer speaking the binary
+ * NodeProtocol.
+ *
+ * Every request frame carries an id; a reader thread matches replies back to
+ * the waiting caller, so any number of commands can be in flight on one socket.
+ *
+ * Requests are written by a writer thread from a queue, so callers never block
+ * on a full socket and call()'s timeout covers the send too. Small frames
+ * (PINGs, reads, stats) go ahead of queued ones carrying a large payload, so
+ * a bulk transfer holds them up for at most the one frame being written. A
+ * write stalled for longer than a caller's timeout closes the connection.
+ */
+public class NodeConnection implements Closeable {
+    private static final int SMALL_FRAME_BYTES = 64 * 1024;
+
+    private final String address;
+    private final int port;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final ConcurrentMap<Long, CompletableFuture<NodeFrame>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    // Requests waiting for the writer; guarded by the queues' own monitor, small ones first
+    private final Deque<NodeFrame> smallRequests = new ArrayDeque<>();
+    private final Deque<NodeFrame> bulkRequests = new ArrayDeque<>();
+    private volatile long writeStartedNanos; // 0 while the writer isn't in the middle of a frame
+    private volatile boolean closed;
+
+    /** Connects, exchanges preambles and starts the reader and writer threads. */
+    public static NodeConnection open(String address, int port, int connectTimeoutMillis) throws IOException {
+        NodeConnection connection = new NodeConnection(address, port, connectTimeoutMillis);
+        Thread reader = new Thread(connection::readResponses, "node-conn-" + address + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(connection::writeRequests, "node-conn-writer-" + address + ":" + port);
+        writer.setDaemon(true);
+        writer.start();
+        return connection;
+    }
+
+    private NodeConnection(String address, int port, int connectTimeoutMillis) throws IOException {
+        this.address = address;
+        this.port = port;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(connectTimeoutMillis); // for the preamble only; replies may take any time
+
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            NodeProtocol.writePreamble(out);
+            out.flush();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            byte version = NodeProtocol.readPreamble(in);
+            if (version != NodeProtocol.VERSION) {
+                throw new IOException("Node " + address + ":" + port + " speaks protocol version " + version);
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public CompletableFuture<NodeFrame> send(NodeFrame request) {
+        long requestId = nextRequestId.incrementAndGet();
+        request.setRequestId(requestId);
+        CompletableFuture<NodeFrame> future = new CompletableFuture<>();
+        pending.put(requestId, future);
+
+        synchronized (smallRequests) {
+            if (!closed) {
+                (request.getPayloadLength() < SMALL_FRAME_BYTES ? smallRequests : bulkRequests).add(request);
+                smallRequests.notifyAll();
+                return future;
+            }
+        }
+        pending.remove(requestId);
+        future.completeExceptionally(new IOException("Connection to " + address + ":" + port + " is closed"));
+        return future;
+    }
+
+    public NodeFrame call(long timeoutMillis, NodeFrame request) throws IOException {
+        CompletableFuture<NodeFrame> future = send(request);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            pending.remove(request.getRequestId());
+            closeIfStalled(timeoutMillis);
+            throw new SocketTimeoutException("Request " + request.getOpcode() + " timed out on " + address + ":" + port);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request " + request.getOpcode() + " interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** Closes the connection if one frame has been stuck writing for longer than the timeout. */
+    public boolean closeIfStalled(long timeoutMillis) {
+        long writing = writeStartedNanos;
+        if (writing == 0 || System.nanoTime() - writing <= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            return false;
+        }
+        System.err.println("Write to " + address + ":" + port + " stalled, closing the connection");
+        close();
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    private void writeRequests() {
+        try {
+            while (true) {
+                NodeFrame request;
+                boolean more;
+                synchronized (smallRequests) {
+                    while (!closed && smallRequests.isEmpty() && bulkRequests.isEmpty()) {
+                        smallRequests.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    request = !smallRequests.isEmpty() ? smallRequests.poll() : bulkRequests.poll();
+                    more = !smallRequests.isEmpty() || !bulkRequests.isEmpty();
+                }
+                writeStartedNanos = System.nanoTime();
+                try {
+                    NodeProtocol.writeFrame(out, request);
+                    if (!more) {
+                        out.flush();
+                    }
+                } catch (NodeProtocol.FrameTooLargeException e) {
+                    // nothing was written, the connection is fine
+                    CompletableFuture<NodeFrame> future = pending.remove(request.getRequestId());
+                    if (future != null) {
+                        future.completeExceptionally(e);
+                    }
+                } finally {
+                    writeStartedNanos = 0;
+                }
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                System.err.println("Connection to " + address + ":" + port + " lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (!closed) {
+                NodeFrame response = NodeProtocol.readFrame(in);
+                CompletableFuture<NodeFrame> future = pending.remove(response.getRequestId());
+                if (future != null) {
+                    future.complete(response);
+                }
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                System.err.println("Connection to " + address + ":" + port + " lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (smallRequests) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            smallRequests.clear();
+            bulkRequests.clear();
+            smallRequests.notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closing
+        }
+        IOException failure = new IOException("Connection to " + address + ":" + port + " closed");
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<NodeFrame> future = pending.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps a few long-lived multiplexed connections per node and spreads calls
+ * across them. Broken connections, and ones whose writes have stalled for
+ * longer than the request timeout, are replaced on the next call.
+ */
+public class NodeConnectionPool implements Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final int connectionsPerNode;
+    private final long requestTimeoutMillis;
+    private final ConcurrentMap<String, NodeSlots> pools = new ConcurrentHashMap<>();
+
+    public NodeConnectionPool(int connectionsPerNode, long requestTimeoutMillis) {
+        this.connectionsPerNode = connectionsPerNode;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public NodeFrame call(NodeInfo node, byte opcode, byte[] payload, String... fields) throws IOException {
+        return call(node.getAddress(), node.getPort(), opcode, payload, fields);
+    }
+
+    public NodeFrame call(String address, int port, byte opcode, byte[] payload, String... fields)
+            throws IOException {
+        return get(address, port).call(requestTimeoutMillis, NodeFrame.request(opcode, payload, fields));
+    }
+
+    public CompletableFuture<NodeFrame> send(NodeInfo node, byte opcode, byte[] payload, String... fields) {
+        try {
+            return get(node.getAddress(), node.getPort()).send(NodeFrame.request(opcode, payload, fields));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /** Requests this pool has sent to the node and not yet seen answered. */
+    public int getInFlight(NodeInfo node) {
+        NodeSlots slots = pools.get(node.getAddress() + ":" + node.getPort());
+        return slots == null ? 0 : slots.inFlight();
+    }
+
+    public NodeConnection get(String address, int port) throws IOException {
+        NodeSlots slots = pools.computeIfAbsent(address + ":" + port,
+                k -> new NodeSlots(address, port, connectionsPerNode));
+        return slots.next(requestTimeoutMillis);
+    }
+
+    @Override
+    public void close() {
+        for (NodeSlots slots : pools.values()) {
+            slots.closeAll();
+        }
+        pools.clear();
+    }
+
+    private static class NodeSlots {
+        private final String address;
+        private final int port;
+        private final AtomicReferenceArray<NodeConnection> connections;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private NodeSlots(String address, int port, int size) {
+            this.address = address;
+            this.port = port;
+            this.connections = new AtomicReferenceArray<>(Math.max(1, size));
+        }
+
+        // Connects without holding anything, so callers to a dead node don't queue behind one connect
+        private NodeConnection next(long requestTimeoutMillis) throws IOException {
+            int slot = Math.floorMod(next.getAndIncrement(), connections.length());
+            while (true) {
+                NodeConnection current = connections.get(slot);
+                if (current != null && !current.isClosed() && !current.closeIfStalled(requestTimeoutMillis)) {
+                    return current;
+                }
+                NodeConnection opened = NodeConnection.open(address, port, CONNECT_TIMEOUT_MILLIS);
+                if (connections.compareAndSet(slot, current, opened)) {
+                    return opened;
+                }
+                opened.close(); // another caller replaced it first; use theirs
+            }
+        }
+
+        private int inFlight() {
+            int total = 0;
+            for (int i = 0; i < connections.length(); i++) {
+                NodeConnection connection = connections.get(i);
+                if (connection != null && !connection.isClosed()) {
+                    total += connection.getInFlight();
+                }
+            }
+            return total;
+        }
+
+        private void closeAll() {
+            for (int i = 0; i < connections.length(); i++) {
+                NodeConnection connection = connections.get(i);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs NodeServer connections and requests with bounded concurrency.
+ *
+ * Two modes are available:
+ *  - VIRTUAL: one virtual thread per connection and per request, so tens of
+ *    thousands of mostly idle connections cost almost nothing;
+ *  - POOLED: fixed-size platform thread pools.
+ *
+ * Either way the number of open connections and in-flight requests is capped
+ * by semaphores. When the connection cap is reached the accept loop stops
+ * accepting, and further clients wait in the kernel backlog instead of making
+ * the node spawn more threads.
+ *
+ * Configured with system properties: dfs.node.mode (virtual|pooled),
+ * dfs.node.maxConnections, dfs.node.maxInFlight, dfs.node.poolThreads and
+ * dfs.node.backlog.
+ */
+public class NodeExecutionEngine {
+    public enum Mode { VIRTUAL, POOLED }
+
+    private final Mode mode;
+    private final int backlog;
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final ExecutorService connectionExecutor;
+    private final ExecutorService requestExecutor;
+    private final Semaphore connectionPermits;
+    private final Semaphore requestPermits;
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong completedRequests = new AtomicLong();
+    private final AtomicLong acceptStalls = new AtomicLong();
+    private final AtomicLong acceptStallNanos = new AtomicLong();
+    private volatile double serviceMicros; // moving average of request service time
+
+    public NodeExecutionEngine(Mode mode, int backlog, int maxConnections, int maxInFlight, int poolThreads) {
+        this.mode = mode;
+        this.backlog = backlog;
+        this.maxConnections = maxConnections;
+        this.maxInFlight = maxInFlight;
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.requestPermits = new Semaphore(maxInFlight);
+
+        if (mode == Mode.VIRTUAL) {
+            this.connectionExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.requestExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            // Connection handlers are long-lived, so that pool must be able to hold every permitted connection
+            this.connectionExecutor = Executors.newFixedThreadPool(maxConnections);
+            this.requestExecutor = Executors.newFixedThreadPool(poolThreads);
+        }
+    }
+
+    public static NodeExecutionEngine fromSystemProperties() {
+        Mode mode = "pooled".equalsIgnoreCase(System.getProperty("dfs.node.mode")) ? Mode.POOLED : Mode.VIRTUAL;
+        int defaultMaxConnections = mode == Mode.VIRTUAL ? 50_000 : 512;
+        return new NodeExecutionEngine(
+                mode,
+                Integer.getInteger("dfs.node.backlog", 1024),
+                Integer.getInteger("dfs.node.maxConnections", defaultMaxConnections),
+                Integer.getInteger("dfs.node.maxInFlight", 4096),
+                Integer.getInteger("dfs.node.poolThreads", Runtime.getRuntime().availableProcessors() * 8));
+    }
+
+    /**
+     * Runs a connection handler once a connection slot is free. Blocks the
+     * accept loop while the node is at its connection limit.
+     */
+    public void acceptConnection(Runnable handler) throws InterruptedException {
+        if (!connectionPermits.tryAcquire()) {
+            long start = System.nanoTime();
+            acceptStalls.incrementAndGet();
+            connectionPermits.acquire();
+            acceptStallNanos.addAndGet(System.nanoTime() - start);
+        }
+        acceptedConnections.incrementAndGet();
+        updatePeak(peakConnections, activeConnections.incrementAndGet());
+
+        try {
+            connectionExecutor.execute(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    activeConnections.decrementAndGet();
+                    connectionPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeConnections.decrementAndGet();
+            connectionPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs one request. Blocks the calling connection reader while the node is
+     * at its in-flight limit, which pushes back on that client through TCP.
+     */
+    public void submitRequest(Runnable task) throws InterruptedException {
+        requestPermits.acquire();
+        updatePeak(peakInFlight, inFlightRequests.incrementAndGet());
+        try {
+            requestExecutor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    recordServiceTime(System.nanoTime() - start);
+                    inFlightRequests.decrementAndGet();
+                    completedRequests.incrementAndGet();
+                    requestPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightRequests.decrementAndGet();
+            requestPermits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        connectionExecutor.shutdownNow();
+        requestExecutor.shutdownNow();
+    }
+
+    public Mode getMode() { return mode; }
+    public int getBacklog() { return backlog; }
+    public int getMaxConnections() { return maxConnections; }
+    public int getMaxInFlight() { return maxInFlight; }
+    public long getAcceptedConnections() { return acceptedConnections.get(); }
+    public int getActiveConnections() { return activeConnections.get(); }
+    public int getInFlightRequests() { return inFlightRequests.get(); }
+    public long getCompletedRequests() { return completedRequests.get(); }
+    public long getAcceptStalls() { return acceptStalls.get(); }
+    public long getServiceMicros() { return (long) serviceMicros; }
+
+    public String metricsSummary() {
+        return "mode=" + mode
+                + " connections=" + activeConnections.get() + "/" + maxConnections
+                + " (peak " + peakConnections.get() + ", accepted " + acceptedConnections.get() + ")"
+                + " inFlight=" + inFlightRequests.get() + "/" + maxInFlight
+                + " (peak " + peakInFlight.get() + ", completed " + completedRequests.get() + ")"
+                + " serviceTime=" + (long) serviceMicros + " us"
+                + " acceptStalls=" + acceptStalls.get()
+                + " (" + TimeUnit.NANOSECONDS.toMillis(acceptStallNanos.get()) + " ms waiting)";
+    }
+
+    // Exponentially weighted, so a node that slows down shows it within a few dozen requests
+    private synchronized void recordServiceTime(long nanos) {
+        double micros = nanos / 1000.0;
+        serviceMicros = serviceMicros == 0 ? micros : serviceMicros * 0.9 + micros * 0.1;
+    }
+
+    private static void updatePeak(AtomicInteger peak, int value) {
+        peak.accumulateAndGet(value, Math::max);
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * One message of the binary node protocol: an opcode, a status, the request id
+ * it belongs to, a few short string header fields and a raw payload.
+ * See NodeProtocol for the wire layout.
+ *
+ * A reply's payload can also be a shared, read-only ByteBuffer (such as a
+ * NodeReadCache entry), which is written out without being copied to a heap
+ * array first.
+ */
+public class NodeFrame {
+    private static final String[] NO_FIELDS = new String[0];
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final byte opcode;
+    private final byte status;
+    private long requestId;
+    private final String[] fields;
+    private final byte[] payload;
+    private final ByteBuffer payloadBuffer; // read with absolute gets only, it may be shared
+
+    public NodeFrame(byte opcode, byte status, long requestId, String[] fields, byte[] payload) {
+        this(opcode, status, requestId, fields, payload, null);
+    }
+
+    private NodeFrame(byte opcode, byte status, long requestId, String[] fields, byte[] payload,
+                      ByteBuffer payloadBuffer) {
+        this.opcode = opcode;
+        this.status = status;
+        this.requestId = requestId;
+        this.fields = fields == null ? NO_FIELDS : fields;
+        this.payload = payload == null ? NO_PAYLOAD : payload;
+        this.payloadBuffer = payloadBuffer;
+    }
+
+    public static NodeFrame request(byte opcode, byte[] payload, String... fields) {
+        return new NodeFrame(opcode, NodeProtocol.STATUS_OK, 0, fields, payload);
+    }
+
+    public NodeFrame reply(byte status, byte[] payload, String... fields) {
+        return new NodeFrame(opcode, status, requestId, fields, payload);
+    }
+
+    public NodeFrame replyShared(byte status, ByteBuffer payload, String... fields) {
+        return new NodeFrame(opcode, status, requestId, fields, null, payload);
+    }
+
+    public NodeFrame error(byte status, String message) {
+        return reply(status, null, message);
+    }
+
+    public byte getOpcode() { return opcode; }
+    public byte getStatus() { return status; }
+    public long getRequestId() { return requestId; }
+    public void setRequestId(long requestId) { this.requestId = requestId; }
+    public String[] getFields() { return fields; }
+
+    /** The payload as an array; a buffer payload is copied, so prefer writePayload for those. */
+    public byte[] getPayload() {
+        if (payloadBuffer == null) {
+            return payload;
+        }
+        byte[] copy = new byte[payloadBuffer.remaining()];
+        payloadBuffer.get(payloadBuffer.position(), copy);
+        return copy;
+    }
+
+    public int getPayloadLength() {
+        return payloadBuffer == null ? payload.length : payloadBuffer.remaining();
+    }
+
+    /** Writes the payload, moving a buffer payload through the caller's scratch array (one is made if null). */
+    public void writePayload(DataOutputStream out, byte[] scratch) throws IOException {
+        if (payloadBuffer == null) {
+            out.write(payload);
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[Math.max(1, Math.min(64 * 1024, payloadBuffer.remaining()))];
+        }
+        for (int offset = 0; offset < payloadBuffer.remaining(); ) {
+            int n = Math.min(scratch.length, payloadBuffer.remaining() - offset);
+            payloadBuffer.get(payloadBuffer.position() + offset, scratch, 0, n);
+            out.write(scratch, 0, n);
+            offset += n;
+        }
+    }
+
+    public boolean isOk() {
+        return status == NodeProtocol.STATUS_OK;
+    }
+
+    public String field(int index) {
+        return index < fields.length ? fields[index] : null;
+    }
+
+    /** Error text carried by a non-OK reply. */
+    public String getMessage() {
+        return isOk() ? "OK" : NodeProtocol.statusName(status) + (fields.length > 0 ? ": " + fields[0] : "");
+    }
+}
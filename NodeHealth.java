@@ -0,0 +1,40 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of one storage node's health as seen by the coordinator's
+ * heartbeat monitor.
+ */
+public class NodeHealth implements Serializable {
+    private final String nodeId;
+    private final boolean active;
+    private final double phi;
+    private final long lastHeartbeatAgoMillis;
+    private final double meanIntervalMillis;
+    private final long failedPings;
+
+    public NodeHealth(String nodeId, boolean active, double phi, long lastHeartbeatAgoMillis,
+                      double meanIntervalMillis, long failedPings) {
+        this.nodeId = nodeId;
+        this.active = active;
+        this.phi = phi;
+        this.lastHeartbeatAgoMillis = lastHeartbeatAgoMillis;
+        this.meanIntervalMillis = meanIntervalMillis;
+        this.failedPings = failedPings;
+    }
+
+    public String getNodeId() { return nodeId; }
+    public boolean isActive() { return active; }
+    public double getPhi() { return phi; }
+    public long getLastHeartbeatAgoMillis() { return lastHeartbeatAgoMillis; }
+    public double getMeanIntervalMillis() { return meanIntervalMillis; }
+    public long getFailedPings() { return failedPings; }
+
+    @Override
+    public String toString() {
+        return nodeId + (active ? " ACTIVE" : " INACTIVE")
+                + String.format(" phi=%.2f", phi)
+                + " last heartbeat " + lastHeartbeatAgoMillis + " ms ago"
+                + String.format(" (mean interval %.0f ms)", meanIntervalMillis)
+                + " failedPings=" + failedPings;
+    }
+}
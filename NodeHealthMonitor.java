@@ -0,0 +1,141 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+/**
+ * Pings every storage node in the background and decides which ones are
+ * active.
+ *
+ * Each node has a PhiAccrualDetector fed by PING replies. A node whose phi
+ * rises above dfs.health.phiThreshold is marked inactive; an inactive node is
+ * marked active again after dfs.health.recoveryHeartbeats consecutive
+ * replies. Nodes that callers deactivated after an I/O error therefore come
+ * back on their own once they answer again.
+ *
+ * Configured with dfs.health.intervalMillis, dfs.health.phiThreshold,
+ * dfs.health.recoveryHeartbeats and dfs.health.minStdDevMillis.
+ */
+public class NodeHealthMonitor {
+    private final List<NodeInfo> nodes;
+    private final NodeConnectionPool connectionPool;
+    private final long intervalMillis;
+    private final double phiThreshold;
+    private final int recoveryHeartbeats;
+    private final double minStdDevMillis;
+    private final ConcurrentMap<String, NodeState> states = new ConcurrentHashMap<>();
+    private final List<Consumer<NodeInfo>> reactivationListeners = new CopyOnWriteArrayList<>();
+    // Pings to a dead node can block in connect, so they never run on the scheduler thread. At most one
+    // ping per node is in flight, so the pool never grows past the node count.
+    private final ExecutorService pingExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "node-health-ping");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private class NodeState {
+        final PhiAccrualDetector detector = new PhiAccrualDetector(100, minStdDevMillis, intervalMillis);
+        final AtomicBoolean pingInFlight = new AtomicBoolean();
+        final AtomicInteger consecutiveReplies = new AtomicInteger();
+        final AtomicLong failedPings = new AtomicLong();
+
+        NodeState() {
+            // Start the clock when monitoring starts, so a node that never answers is still suspected
+            detector.heartbeat(System.currentTimeMillis());
+        }
+    }
+
+    public NodeHealthMonitor(List<NodeInfo> nodes, NodeConnectionPool connectionPool, long intervalMillis,
+                             double phiThreshold, int recoveryHeartbeats, double minStdDevMillis) {
+        this.nodes = nodes;
+        this.connectionPool = connectionPool;
+        this.intervalMillis = intervalMillis;
+        this.phiThreshold = phiThreshold;
+        this.recoveryHeartbeats = Math.max(1, recoveryHeartbeats);
+        this.minStdDevMillis = minStdDevMillis;
+    }
+
+    public static NodeHealthMonitor fromSystemProperties(List<NodeInfo> nodes, NodeConnectionPool connectionPool) {
+        return new NodeHealthMonitor(nodes, connectionPool,
+                Long.getLong("dfs.health.intervalMillis", 1000),
+                Double.parseDouble(System.getProperty("dfs.health.phiThreshold", "8")),
+                Integer.getInteger("dfs.health.recoveryHeartbeats", 2),
+                Double.parseDouble(System.getProperty("dfs.health.minStdDevMillis", "200")));
+    }
+
+    public void start() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "node-health-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Called, on a ping thread, whenever a node is marked active again. */
+    public void addReactivationListener(Consumer<NodeInfo> listener) {
+        reactivationListeners.add(listener);
+    }
+
+    public List<NodeHealth> getHealth() {
+        long now = System.currentTimeMillis();
+        List<NodeHealth> health = new ArrayList<>();
+        for (NodeInfo node : nodes) {
+            NodeState state = stateFor(node);
+            health.add(new NodeHealth(node.getNodeId(), node.isActive(), state.detector.phi(now),
+                    now - state.detector.getLastHeartbeatMillis(), state.detector.getMeanIntervalMillis(),
+                    state.failedPings.get()));
+        }
+        return health;
+    }
+
+    private NodeState stateFor(NodeInfo node) {
+        return states.computeIfAbsent(node.getNodeId(), id -> new NodeState());
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (NodeInfo node : nodes) {
+            NodeState state = stateFor(node);
+            if (node.isActive() && state.detector.phi(now) > phiThreshold) {
+                node.setActive(false);
+                state.consecutiveReplies.set(0);
+                System.err.println(String.format("Node %s suspected down (phi %.1f), deactivating",
+                        node.getNodeId(), state.detector.phi(now)));
+            }
+            if (state.pingInFlight.compareAndSet(false, true)) {
+                pingExecutor.execute(() -> ping(node, state));
+            }
+        }
+    }
+
+    private void ping(NodeInfo node, NodeState state) {
+        try {
+            NodeFrame response = connectionPool.send(node, NodeProtocol.PING, null)
+                    .get(Math.max(intervalMillis * 5, 1000), TimeUnit.MILLISECONDS);
+            if (!response.isOk()) {
+                throw new IllegalStateException(response.getMessage());
+            }
+            if (node.isActive()) {
+                state.detector.heartbeat(System.currentTimeMillis());
+            } else {
+                state.detector.restart(System.currentTimeMillis());
+            }
+            if (!node.isActive() && state.consecutiveReplies.incrementAndGet() >= recoveryHeartbeats) {
+                node.setActive(true);
+                state.consecutiveReplies.set(0);
+                System.out.println("Node " + node.getNodeId() + " is answering heartbeats again, reactivating");
+                for (Consumer<NodeInfo> listener : reactivationListeners) {
+                    listener.accept(node);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            state.failedPings.incrementAndGet();
+            state.consecutiveReplies.set(0);
+        } finally {
+            state.pingInFlight.set(false);
+        }
+    }
+}
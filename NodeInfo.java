@@ -4,7 +4,7 @@ public class NodeInfo implements Serializable {
     private String nodeId;
     private String address;
     private int port;
-    private boolean active;
+    private volatile boolean active; // flipped by the coordinator's health monitor
 
     public NodeInfo(String nodeId, String address, int port) {
         this.nodeId = nodeId;
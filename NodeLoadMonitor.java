@@ -0,0 +1,106 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Live load figures per storage node, used by the placement strategies.
+ *
+ * Requests outstanding from this coordinator are read straight from the
+ * connection pool, so they are exact at selection time. The node's own
+ * in-flight count, service time and free disk space come from a STATS poll
+ * every dfs.placement.statsIntervalMillis, whose round trip also feeds a
+ * latency average.
+ */
+public class NodeLoadMonitor {
+    private static final double UNKNOWN_LATENCY_MILLIS = 1.0;
+
+    private final List<NodeInfo> nodes;
+    private final NodeConnectionPool connectionPool;
+    private final long minFreeBytes;
+    private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<>();
+
+    /** Last report from one node. */
+    public static class Load {
+        private final int nodeInFlight;
+        private final double latencyMillis;
+        private final long freeBytes;
+
+        Load(int nodeInFlight, double latencyMillis, long freeBytes) {
+            this.nodeInFlight = nodeInFlight;
+            this.latencyMillis = latencyMillis;
+            this.freeBytes = freeBytes;
+        }
+
+        public int getNodeInFlight() { return nodeInFlight; }
+        public double getLatencyMillis() { return latencyMillis; }
+        public long getFreeBytes() { return freeBytes; }
+    }
+
+    public NodeLoadMonitor(List<NodeInfo> nodes, NodeConnectionPool connectionPool, long minFreeBytes) {
+        this.nodes = nodes;
+        this.connectionPool = connectionPool;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    public void start(long intervalMillis) {
+        ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "node-load-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::pollAll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Requests in flight to the node, counting both ours and what the node reports. */
+    public int outstanding(NodeInfo node) {
+        Load load = loads.get(node.getNodeId());
+        return connectionPool.getInFlight(node) + (load == null ? 0 : load.nodeInFlight);
+    }
+
+    public double latencyMillis(NodeInfo node) {
+        Load load = loads.get(node.getNodeId());
+        return load == null ? UNKNOWN_LATENCY_MILLIS : load.latencyMillis;
+    }
+
+    /** Expected wait for one more request: queue length times recent latency. */
+    public double cost(NodeInfo node) {
+        return (outstanding(node) + 1) * Math.max(latencyMillis(node), 0.01);
+    }
+
+    /** False when the node last reported less than dfs.placement.minFreeBytes free. */
+    public boolean hasSpace(NodeInfo node) {
+        Load load = loads.get(node.getNodeId());
+        return load == null || load.freeBytes >= minFreeBytes;
+    }
+
+    public Load getLoad(NodeInfo node) {
+        return loads.get(node.getNodeId());
+    }
+
+    private void pollAll() {
+        for (NodeInfo node : new ArrayList<>(nodes)) {
+            if (node.isActive()) {
+                poll(node);
+            }
+        }
+    }
+
+    private void poll(NodeInfo node) {
+        try {
+            long start = System.nanoTime();
+            NodeFrame response = connectionPool.call(node, NodeProtocol.STATS, null);
+            double roundTripMillis = (System.nanoTime() - start) / 1_000_000.0;
+            if (!response.isOk()) {
+                return;
+            }
+
+            double serviceMillis = Long.parseLong(response.field(2)) / 1000.0;
+            double sample = Math.max(roundTripMillis, serviceMillis);
+            Load previous = loads.get(node.getNodeId());
+            double latency = previous == null ? sample : previous.latencyMillis * 0.7 + sample * 0.3;
+            loads.put(node.getNodeId(), new Load(Integer.parseInt(response.field(0)), latency,
+                    Long.parseLong(response.field(3))));
+        } catch (Exception e) {
+            // Health is someone else's job; keep the last figures until the node answers again
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.*;
+
+/**
+ * Binary wire protocol spoken between the coordinator, clients and NodeServer.
+ *
+ * A connection starts with a preamble (4-byte magic, 1-byte version) and then
+ * carries any number of length-prefixed frames in both directions:
+ *
+ *   int    frame length (bytes that follow)
+ *   byte   opcode
+ *   byte   status (always OK in requests)
+ *   long   request id, echoed in the reply
+ *   short  field count, then each field as a presence flag + modified UTF-8
+ *   int    payload length, then the raw payload bytes
+ *
+ * Connections whose first bytes are a Java serialization header are served
+ * with the old ObjectStream protocol instead.
+ */
+public final class NodeProtocol {
+    public static final int MAGIC = 0x4446534E; // "DFSN"
+    public static final byte VERSION = 1;
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    public static final int MAX_CHUNK_BYTES = 4 * 1024 * 1024;
+    public static final int MAX_FIELDS = 0xFFFF;
+    // Largest file one DOWNLOAD reply carries; bigger ones are read with READ_CHUNK or DOWNLOAD_STREAM
+    public static final int MAX_DOWNLOAD_BYTES = MAX_FRAME_BYTES - 1024 * 1024;
+
+    // Opcodes
+    // Writes reply with the SHA-256 of the stored bytes so the sender can verify without reading them back
+    // File payloads of UPLOAD/UPDATE may be in the compressed stored form (see Compression); the reply
+    // sha256 is always that of the raw content. An optional 4th field gives the compression level for the
+    // chunks of a file large enough to be chunked
+    public static final byte UPLOAD = 1;          // fields: department, filename, owner; payload: content; reply fields: sha256
+    // fields: department, filename[, "deflate" to accept the stored form]; reply fields: ["deflate" if stored form]
+    public static final byte DOWNLOAD = 2;
+    public static final byte VERIFY = 3;          // fields: department, filename
+    public static final byte SYNC = 4;            // fields: department, filename
+    public static final byte UPDATE = 5;          // fields: department, filename, owner; payload: content; reply fields: sha256
+    public static final byte VERIFY_CONTENT = 6;  // fields: department, filename; payload: expected content
+    public static final byte DELETE = 7;          // fields: department, filename
+    public static final byte UPLOAD_BEGIN = 8;    // fields: uploadId; reply fields: current size
+    public static final byte UPLOAD_CHUNK = 9;    // fields: uploadId, offset; payload: chunk; reply fields: new size
+    // fields: uploadId, department, filename[, compression level, or "stored" if the chunks were the stored form
+    // read with READ_CHUNK]; reply fields: size, sha256
+    public static final byte UPLOAD_COMMIT = 10;
+    public static final byte UPLOAD_ABORT = 11;   // fields: uploadId
+    // fields: department, filename, offset, length[, "stored" for the stored form]; reply fields: file size
+    public static final byte READ_CHUNK = 12;
+    public static final byte STAT = 13;           // fields: department, filename; reply fields: size
+    // fields: department, filename; reply fields: size, followed by exactly size raw bytes outside the frame
+    public static final byte DOWNLOAD_STREAM = 14;
+    // Merkle anti-entropy (see MerkleTree)
+    public static final byte TREE_ROOTS = 15;     // reply fields: department, root hash, department, root hash, ...
+    public static final byte TREE_NODE = 16;      // fields: department, level, index; reply fields: child hashes
+    public static final byte TREE_LEAF = 17;      // fields: department, leaf; reply fields: filename, sha256, size, ...
+    // Load report for coordinator placement; reply fields: in-flight requests, open connections,
+    // average service time in microseconds, usable bytes, total bytes
+    public static final byte STATS = 18;
+    // Heartbeat for the coordinator's failure detector; answered inline, ahead of queued requests
+    public static final byte PING = 19;
+    // Inventory of one Merkle leaf of a department, for rebuilding the coordinator's index; departments
+    // come from TREE_ROOTS. fields: department, leaf[, after filename]; reply fields: the filename to ask
+    // after for the next page (null on the last one), then filename, size, mtime millis, sha256, ... for
+    // at most LIST_PAGE_FILES files
+    public static final byte LIST = 20;
+    public static final int LIST_PAGE_FILES = 4096;
+    // Content-addressed chunks (see ChunkStore). Chunks are named by the SHA-256 of their raw content and
+    // travel in their stored form. Senders ask which chunks are missing, send only those, then the manifest
+    // fields: sha256, ... (at most CHUNK_HAVE_BATCH); reply fields: the ones not stored here
+    public static final byte CHUNK_HAVE = 21;
+    public static final byte CHUNK_PUT = 22;      // fields: sha256; payload: stored chunk
+    public static final byte CHUNK_GET = 23;      // fields: sha256; reply payload: stored chunk
+    // fields: department, filename; reply payload: ChunkManifest, or BAD_REQUEST if the file is stored whole
+    public static final byte MANIFEST_GET = 24;
+    // fields: department, filename; payload: ChunkManifest; reply fields: sha256. Creates or replaces the file;
+    // MISMATCH if chunks went missing since CHUNK_HAVE, in which case the sender asks again
+    public static final byte MANIFEST_PUT = 25;
+
+    // rsync-style delta updates (see FileSignature and FileDelta)
+    // fields: department, filename[, block size]; reply payload: FileSignature of the stored version
+    public static final byte SIGNATURE = 26;
+    // fields: department, filename, owner[, compression level]; payload: FileDelta; reply fields: sha256.
+    // MISMATCH if the stored version isn't the delta's base
+    public static final byte DELTA_UPDATE = 27;
+
+    public static final int CHUNK_HAVE_BATCH = 1024;
+
+    // Status codes
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_MISMATCH = 2;
+    public static final byte STATUS_BAD_REQUEST = 3;
+    public static final byte STATUS_ERROR = 4;
+
+    /**
+     * A frame over MAX_FRAME_BYTES or MAX_FIELDS. Thrown before any of it is
+     * written, so the stream is still usable.
+     */
+    public static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private NodeProtocol() {
+    }
+
+    public static void writePreamble(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /** Reads the preamble and returns the peer's protocol version. */
+    public static byte readPreamble(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a node protocol stream (magic " + Integer.toHexString(magic) + ")");
+        }
+        return in.readByte();
+    }
+
+    public static void writeFrame(DataOutputStream out, NodeFrame frame) throws IOException {
+        writeFrame(out, frame, null);
+    }
+
+    /** Writes a frame, copying a buffer payload through scratch (the caller's, such as one per connection). */
+    public static void writeFrame(DataOutputStream out, NodeFrame frame, byte[] scratch) throws IOException {
+        String[] fields = frame.getFields();
+        // The count goes out as an unsigned short; a larger one would wrap and desynchronize the stream
+        if (fields.length > MAX_FIELDS) {
+            throw new FrameTooLargeException("Frame has " + fields.length + " fields, at most " + MAX_FIELDS
+                    + " fit");
+        }
+        byte[][] encodedFields = new byte[fields.length][];
+        long length = 1 + 1 + 8 + 2 + 4 + frame.getPayloadLength();
+        for (int i = 0; i < fields.length; i++) {
+            encodedFields[i] = encodeField(fields[i]);
+            length += encodedFields[i].length;
+        }
+        // The peer would reject it and drop the connection, failing everything else in flight on it
+        if (length > MAX_FRAME_BYTES) {
+            throw new FrameTooLargeException("Frame of " + length + " bytes exceeds " + MAX_FRAME_BYTES);
+        }
+
+        out.writeInt((int) length);
+        out.writeByte(frame.getOpcode());
+        out.writeByte(frame.getStatus());
+        out.writeLong(frame.getRequestId());
+        out.writeShort(fields.length);
+        for (byte[] field : encodedFields) {
+            out.write(field);
+        }
+        out.writeInt(frame.getPayloadLength());
+        frame.writePayload(out, scratch);
+    }
+
+    public static NodeFrame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 16 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte opcode = in.readByte();
+        byte status = in.readByte();
+        long requestId = in.readLong();
+        String[] fields = new String[in.readUnsignedShort()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        int payloadLength = in.readInt();
+        if (payloadLength < 0 || payloadLength > length) {
+            throw new IOException("Invalid payload length: " + payloadLength);
+        }
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        return new NodeFrame(opcode, status, requestId, fields, payload);
+    }
+
+    public static String statusName(byte status) {
+        switch (status) {
+            case STATUS_OK: return "OK";
+            case STATUS_NOT_FOUND: return "NOT_FOUND";
+            case STATUS_MISMATCH: return "MISMATCH";
+            case STATUS_BAD_REQUEST: return "BAD_REQUEST";
+            default: return "ERROR";
+        }
+    }
+
+    // A presence flag followed by writeUTF's own length-prefixed encoding, so null fields survive
+    private static byte[] encodeField(String value) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(value == null ? 1 : value.length() + 3);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Off-heap LRU cache of the raw content of small, hot files on a node, so
+ * repeated DOWNLOAD, SYNC and VERIFY_CONTENT requests for them need neither
+ * file system calls nor a fresh heap array per request.
+ *
+ * Files up to dfs.node.readCache.maxEntryBytes (256 KiB) are cached once they
+ * have been asked for dfs.node.readCache.minHits times (2) by the
+ * FrequencySketch's count, so one-off reads don't churn the cache; the whole
+ * cache holds up to dfs.node.readCache.maxBytes (64 MiB, 0 disables it).
+ * Each entry is a read-only direct buffer that replies share and write out
+ * with absolute reads. An evicted buffer stays valid for replies still being
+ * written and is freed with the last of them.
+ *
+ * ChunkStore invalidates a file whenever it replaces or deletes it. Content
+ * read before an invalidation is never admitted after it (see stamp).
+ */
+public class NodeReadCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final int minHits;
+    private final FrequencySketch sketch;
+
+    // Access-ordered, so the first entry is always the least recently used
+    private final LinkedHashMap<Path, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public NodeReadCache(long maxBytes, long maxEntryBytes, int minHits) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.minHits = minHits;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 4096)));
+    }
+
+    public static NodeReadCache fromSystemProperties() {
+        return new NodeReadCache(Long.getLong("dfs.node.readCache.maxBytes", 64L * 1024 * 1024),
+                Long.getLong("dfs.node.readCache.maxEntryBytes", 256 * 1024),
+                Integer.getInteger("dfs.node.readCache.minHits", 2));
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /** Cached raw content of the file, read-only and shared, or null. Counts as an access. */
+    public synchronized ByteBuffer get(Path file) {
+        if (!isEnabled()) {
+            return null;
+        }
+        sketch.increment(file);
+        ByteBuffer content = entries.get(file);
+        if (content == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return content;
+    }
+
+    /** True if the file is read often enough that its next read should fill the cache. */
+    public synchronized boolean isHot(Path file) {
+        return isEnabled() && sketch.frequency(file) >= minHits;
+    }
+
+    /** Taken before reading a file and handed to put, which drops the content if a write came in between. */
+    public synchronized long stamp() {
+        return generation;
+    }
+
+    public void put(Path file, byte[] content, long stamp) {
+        if (content.length > maxEntryBytes || !isHot(file)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length).put(content).flip().asReadOnlyBuffer();
+        synchronized (this) {
+            if (stamp != generation) {
+                return;
+            }
+            ByteBuffer previous = entries.put(file, buffer);
+            if (previous != null) {
+                bytes -= previous.capacity();
+            }
+            bytes += buffer.capacity();
+            Iterator<ByteBuffer> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().capacity();
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void invalidate(Path file) {
+        generation++;
+        ByteBuffer removed = entries.remove(file);
+        if (removed != null) {
+            bytes -= removed.capacity();
+        }
+    }
+
+    public synchronized String summary() {
+        return "read cache " + entries.size() + " files, " + bytes + "/" + maxBytes + " bytes, " + hits + " hits, "
+                + misses + " misses, " + evictions + " evictions";
+    }
+}
@@ -1,18 +1,43 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.Deflater;
 
 public class NodeServer {
+    // In-progress streamed uploads live here until committed; not a department
+    static final String UPLOADS_DIR = ".uploads";
+    private static final int WRITE_BLOCK_BYTES = 64 * 1024;
+    private static final int WRITE_STRIPES = 64;
+
     private final String nodeId;
     private final int port;
     private final String storagePath;
-    private boolean running = true;
+    private volatile boolean running = true;
+    // Bounded thread model for connections and for requests on multiplexed connections
+    private final Map<String, MessageDigest> uploadDigests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MerkleTree> merkleTrees = new ConcurrentHashMap<>();
+    private final NodeExecutionEngine engine = NodeExecutionEngine.fromSystemProperties();
+    private final NodeReadCache readCache = NodeReadCache.fromSystemProperties();
+    private final ChunkStore chunks;
+    // Writes to one file run one at a time, so a delta lands on the version it was checked against
+    private final ReentrantLock[] writeStripes = new ReentrantLock[WRITE_STRIPES];
+    // Larger files are updated with their whole content; a delta needs both versions in memory
+    private final long maxDeltaBytes = Long.getLong("dfs.node.maxDeltaBytes", 64L * 1024 * 1024);
 
     public NodeServer(String nodeId, int port) {
         this.nodeId = nodeId;
         this.port = port;
         this.storagePath = "node_storage_" + nodeId;
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            writeStripes[i] = new ReentrantLock();
+        }
+        this.chunks = new ChunkStore(Paths.get(storagePath), readCache);
         initializeStorage();
     }
 
@@ -22,6 +47,7 @@ public class NodeServer {
             if (!Files.exists(path)) {
                 Files.createDirectories(path);
             }
+            chunks.load();
             System.out.println("[" + nodeId + "] Storage initialized at: " + 
                             path.toAbsolutePath());
         } catch (IOException e) {
@@ -32,215 +58,861 @@ public class NodeServer {
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"))) {
+        // Accept through a channel so client sockets have a SocketChannel for zero-copy transfers
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port), engine.getBacklog());
             System.out.println("[" + nodeId + "] Started on " + 
-                            serverSocket.getLocalSocketAddress());
+                            serverChannel.getLocalAddress() + " (" + engine.metricsSummary() + ")");
+            startMetricsReporter();
             
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = serverChannel.accept().socket();
                     System.out.println("[" + nodeId + "] Connection from: " + 
                                     clientSocket.getInetAddress());
-                    new Thread(() -> handleClient(clientSocket)).start();
+                    engine.acceptConnection(() -> handleClient(clientSocket));
                 } catch (IOException e) {
                     System.err.println("[" + nodeId + "] Accept error: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
                 }
             }
         } catch (IOException e) {
             System.err.println("[" + nodeId + "] Server error: " + e.getMessage());
+        } finally {
+            engine.shutdown();
         }
     }
 
     private void handleClient(Socket clientSocket) {
-        try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-             ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())) {
-            
+        try {
+            BufferedInputStream input = new BufferedInputStream(clientSocket.getInputStream(), 64 * 1024);
+            input.mark(2);
+            int first = input.read();
+            int second = input.read();
+            input.reset();
+
+            if (((first << 8) | second) == 0xACED) {
+                // Java serialization stream header: old ObjectStream client
+                serveLegacy(clientSocket, input);
+            } else {
+                serveBinary(clientSocket, input);
+            }
+        } catch (EOFException e) {
+            // client went away
+        } catch (Exception e) {
+            System.err.println("[" + nodeId + "] Client handling error: " + e.getMessage());
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("[" + nodeId + "] Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serveBinary(Socket clientSocket, InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024));
+        byte[] scratch = new byte[64 * 1024]; // for cached replies; guarded by out like the stream itself
+
+        byte version = NodeProtocol.readPreamble(in);
+        NodeProtocol.writePreamble(out);
+        out.flush();
+        if (version != NodeProtocol.VERSION) {
+            System.err.println("[" + nodeId + "] Unsupported protocol version " + version);
+            return;
+        }
+
+        // Multiplexed: keep reading frames and answer each one as it completes
+        while (running) {
+            NodeFrame request = NodeProtocol.readFrame(in);
+            if (request.getOpcode() == NodeProtocol.DOWNLOAD_STREAM) {
+                submit(() -> streamDownload(request, clientSocket, out));
+                continue;
+            }
+            if (request.getOpcode() == NodeProtocol.PING) {
+                // Liveness, not load: don't let a full request queue make a busy node look dead
+                synchronized (out) {
+                    NodeProtocol.writeFrame(out, request.reply(NodeProtocol.STATUS_OK, null));
+                    out.flush();
+                }
+                continue;
+            }
+            submit(() -> {
+                NodeFrame response = executeSafely(request);
+                try {
+                    synchronized (out) {
+                        try {
+                            NodeProtocol.writeFrame(out, response, scratch);
+                        } catch (NodeProtocol.FrameTooLargeException e) {
+                            // Nothing was written, so the caller can still be told instead of timing out
+                            NodeProtocol.writeFrame(out, request.error(NodeProtocol.STATUS_ERROR, e.getMessage()));
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    System.err.println("[" + nodeId + "] Failed to send response: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void submit(Runnable task) throws IOException {
+        try {
+            engine.submitRequest(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request slot");
+        }
+    }
+
+    private void startMetricsReporter() {
+        long intervalSeconds = Long.getLong("dfs.node.metricsIntervalSeconds", 60);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, nodeId + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println("[" + nodeId + "] " + engine.metricsSummary() + ", "
+                        + readCache.summary()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Sends the reply frame and then the raw file bytes straight from the page cache to the
+     * socket with FileChannel.transferTo (sendfile), without copying them through the heap.
+     * The connection's output lock is held for the whole transfer so no other reply interleaves.
+     */
+    private void streamDownload(NodeFrame request, Socket clientSocket, DataOutputStream out) {
+        String department = request.field(0);
+        String filename = request.field(1);
+        Path filePath = Paths.get(storagePath, department, filename);
+        System.out.println("[" + nodeId + "] Stream download request: " + department + "/" + filename);
+
+        try {
+            synchronized (out) {
+                if (!chunks.exists(filePath)) {
+                    NodeProtocol.writeFrame(out, request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found"));
+                    out.flush();
+                    return;
+                }
+
+                if (!chunks.isPlain(filePath)) {
+                    // Stored compressed or chunked: no sendfile, the raw bytes have to be assembled on the way out
+                    try (InputStream raw = chunks.openRaw(filePath)) {
+                        long size = chunks.rawSize(filePath);
+                        NodeProtocol.writeFrame(out, request.reply(NodeProtocol.STATUS_OK, null, String.valueOf(size)));
+                        long sent = raw.transferTo(out);
+                        out.flush();
+                        System.out.println("[" + nodeId + "] Streamed file: " + filename + " (" + sent + " bytes)");
+                    }
+                    return;
+                }
+
+                try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                    long size = file.size();
+                    NodeProtocol.writeFrame(out, request.reply(NodeProtocol.STATUS_OK, null, String.valueOf(size)));
+                    out.flush();
+
+                    SocketChannel socketChannel = clientSocket.getChannel();
+                    long position = 0;
+                    if (socketChannel != null) {
+                        while (position < size) {
+                            position += file.transferTo(position, size - position, socketChannel);
+                        }
+                    } else {
+                        // Plain socket: fall back to a bounded buffered copy
+                        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                        while (position < size) {
+                            buffer.clear();
+                            int n = file.read(buffer, position);
+                            if (n < 0) break;
+                            out.write(buffer.array(), 0, n);
+                            position += n;
+                        }
+                        out.flush();
+                    }
+                    System.out.println("[" + nodeId + "] Streamed file: " + filename + " (" + position + " bytes)");
+                }
+            }
+        } catch (IOException e) {
+            // The byte count is already on the wire, so the only safe recovery is dropping the connection
+            System.err.println("[" + nodeId + "] Stream download failed: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Compatibility path for clients still using the ObjectStream protocol: one command per socket
+    private void serveLegacy(Socket clientSocket, InputStream input) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(input);
+             ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))) {
+            out.flush();
+
             String command = (String) in.readObject();
-            System.out.println("[" + nodeId + "] Received command: " + command);
-            
+            System.out.println("[" + nodeId + "] Received legacy command: " + command);
+
             switch (command) {
                 case "UPLOAD":
-                    handleUpload(in, out);
-                    break;
-                case "DOWNLOAD":
-                    handleDownload(in, out);
+                case "UPDATE": {
+                    FileData fileData = (FileData) in.readObject();
+                    byte opcode = "UPLOAD".equals(command) ? NodeProtocol.UPLOAD : NodeProtocol.UPDATE;
+                    NodeFrame response = executeSafely(NodeFrame.request(opcode, fileData.getContent(),
+                            fileData.getDepartment(), fileData.getFilename(), fileData.getOwner()));
+                    out.writeObject(response.isOk()
+                            ? ("UPLOAD".equals(command) ? "OK: File created" : "OK: File updated")
+                            : "ERROR: " + response.field(0));
                     break;
-                case "VERIFY":
-                    handleVerify(in, out);
+                }
+                case "DOWNLOAD": {
+                    String department = (String) in.readObject();
+                    String filename = (String) in.readObject();
+                    NodeFrame response = executeSafely(NodeFrame.request(NodeProtocol.DOWNLOAD, null, department, filename));
+                    out.writeObject(response.isOk()
+                            ? new FileData(filename, department, response.getPayload(), "system")
+                            : "ERROR: " + response.field(0));
                     break;
-                case "SYNC":
-                    handleSync(in, out);
+                }
+                case "VERIFY": {
+                    String department = (String) in.readObject();
+                    String filename = (String) in.readObject();
+                    out.writeObject(executeSafely(NodeFrame.request(NodeProtocol.VERIFY, null, department, filename)).isOk());
                     break;
-                case "UPDATE":
-                    handleUpdate(in, out);
+                }
+                case "SYNC": {
+                    String department = (String) in.readObject();
+                    String filename = (String) in.readObject();
+                    NodeFrame response = executeSafely(NodeFrame.request(NodeProtocol.SYNC, null, department, filename));
+                    out.writeObject(response.isOk() ? response.getPayload() : null);
                     break;
-                case "VERIFY_CONTENT":
-                    handleVerifyContent(in, out);
+                }
+                case "VERIFY_CONTENT": {
+                    String department = (String) in.readObject();
+                    String filename = (String) in.readObject();
+                    byte[] expectedContent = (byte[]) in.readObject();
+                    out.writeObject(executeSafely(NodeFrame.request(NodeProtocol.VERIFY_CONTENT, expectedContent,
+                            department, filename)).isOk());
                     break;
-                case "DELETE":
-                    handleDelete(in, out);
+                }
+                case "DELETE": {
+                    String department = (String) in.readObject();
+                    String filename = (String) in.readObject();
+                    NodeFrame response = executeSafely(NodeFrame.request(NodeProtocol.DELETE, null, department, filename));
+                    out.writeObject(response.isOk() ? "OK: File deleted" : "ERROR: " + response.field(0));
                     break;
-
-
+                }
                 default:
                     out.writeObject("ERROR: Unknown command: " + command);
             }
+        }
+    }
+
+    private NodeFrame executeSafely(NodeFrame request) {
+        try {
+            return execute(request);
         } catch (Exception e) {
-            System.err.println("[" + nodeId + "] Client handling error: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("[" + nodeId + "] Error closing socket: " + e.getMessage());
-            }
+            System.err.println("[" + nodeId + "] Request " + request.getOpcode() + " failed: " + e.getMessage());
+            return request.error(NodeProtocol.STATUS_ERROR, String.valueOf(e.getMessage()));
         }
     }
 
-    private void handleUpdate(ObjectInputStream in, ObjectOutputStream out)
-            throws IOException, ClassNotFoundException {
-        FileData fileData = (FileData) in.readObject();
-        System.out.println("[" + nodeId + "] Updating: " + fileData.getFilename() +
-                " in " + fileData.getDepartment());
+    private NodeFrame execute(NodeFrame request) throws IOException {
+        switch (request.getOpcode()) {
+            case NodeProtocol.UPLOAD:
+                return whileWriting(request.field(0), request.field(1), () -> handleUpload(request));
+            case NodeProtocol.DOWNLOAD:
+                return handleDownload(request);
+            case NodeProtocol.VERIFY:
+                return handleVerify(request);
+            case NodeProtocol.SYNC:
+                return handleSync(request);
+            case NodeProtocol.UPDATE:
+                return whileWriting(request.field(0), request.field(1), () -> handleUpdate(request));
+            case NodeProtocol.VERIFY_CONTENT:
+                return handleVerifyContent(request);
+            case NodeProtocol.DELETE:
+                return whileWriting(request.field(0), request.field(1), () -> handleDelete(request));
+            case NodeProtocol.UPLOAD_BEGIN:
+                return handleUploadBegin(request);
+            case NodeProtocol.UPLOAD_CHUNK:
+                return handleUploadChunk(request);
+            case NodeProtocol.UPLOAD_COMMIT:
+                return whileWriting(request.field(1), request.field(2), () -> handleUploadCommit(request));
+            case NodeProtocol.UPLOAD_ABORT:
+                return handleUploadAbort(request);
+            case NodeProtocol.READ_CHUNK:
+                return handleReadChunk(request);
+            case NodeProtocol.STAT:
+                return handleStat(request);
+            case NodeProtocol.TREE_ROOTS:
+                return handleTreeRoots(request);
+            case NodeProtocol.TREE_NODE:
+                return handleTreeNode(request);
+            case NodeProtocol.TREE_LEAF:
+                return handleTreeLeaf(request);
+            case NodeProtocol.LIST:
+                return handleList(request);
+            case NodeProtocol.STATS:
+                return handleStats(request);
+            case NodeProtocol.CHUNK_HAVE:
+                return handleChunkHave(request);
+            case NodeProtocol.CHUNK_PUT:
+                return handleChunkPut(request);
+            case NodeProtocol.CHUNK_GET:
+                return handleChunkGet(request);
+            case NodeProtocol.MANIFEST_GET:
+                return handleManifestGet(request);
+            case NodeProtocol.MANIFEST_PUT:
+                return whileWriting(request.field(0), request.field(1), () -> handleManifestPut(request));
+            case NodeProtocol.SIGNATURE:
+                return handleSignature(request);
+            case NodeProtocol.DELTA_UPDATE:
+                return whileWriting(request.field(0), request.field(1), () -> handleDeltaUpdate(request));
 
-        Path deptPath = Paths.get(storagePath, fileData.getDepartment());
-        Path filePath = deptPath.resolve(fileData.getFilename());
 
-        if (!Files.exists(filePath)) {
-            out.writeObject("ERROR: File not found");
-            return;
+            default:
+                return request.error(NodeProtocol.STATUS_BAD_REQUEST, "Unknown opcode: " + request.getOpcode());
         }
+    }
 
-        Files.write(filePath, fileData.getContent(),
-                StandardOpenOption.TRUNCATE_EXISTING,
-                StandardOpenOption.WRITE);
+    private interface Write {
+        NodeFrame run() throws IOException;
+    }
 
-        System.out.println("[" + nodeId + "] Updated: " + filePath.toAbsolutePath());
-        out.writeObject("OK: File updated");
+    // Runs a request that replaces or removes department/filename under that file's write stripe
+    private NodeFrame whileWriting(String department, String filename, Write write) throws IOException {
+        int h = Paths.get(storagePath, department, filename).hashCode();
+        ReentrantLock stripe = writeStripes[(h ^ (h >>> 16)) & (WRITE_STRIPES - 1)];
+        stripe.lock();
+        try {
+            return write.run();
+        } finally {
+            stripe.unlock();
+        }
     }
 
-    private void handleDelete(ObjectInputStream in, ObjectOutputStream out)
-            throws IOException, ClassNotFoundException {
+    private NodeFrame handleUpdate(NodeFrame request) throws IOException {
+        String department = request.field(0);
+        String filename = request.field(1);
+        System.out.println("[" + nodeId + "] Updating: " + filename + " in " + department);
 
-        String department = (String) in.readObject();
-        String filename = (String) in.readObject();
+        Path filePath = Paths.get(storagePath, department, filename);
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+
+        String digest = storeContent(filePath, request);
+
+        treeFor(department).put(filename, digest);
+
+        System.out.println("[" + nodeId + "] Updated: " + filePath.toAbsolutePath());
+        return request.reply(NodeProtocol.STATUS_OK, null, digest);
+    }
+
+    private NodeFrame handleDelete(NodeFrame request) {
+        String department = request.field(0);
+        String filename = request.field(1);
         System.out.println("[" + nodeId + "] Delete request: " + department + "/" + filename);
 
         Path filePath = Paths.get(storagePath, department, filename);
-        if (!Files.exists(filePath)) {
-            out.writeObject("ERROR: File not found");
-            return;
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
         }
 
         try {
-            Files.delete(filePath);
-            out.writeObject("OK: File deleted");
+            chunks.delete(filePath);
+            treeFor(department).remove(filename);
             System.out.println("[" + nodeId + "] Deleted: " + filePath);
+            return request.reply(NodeProtocol.STATUS_OK, null);
         } catch (IOException e) {
             System.err.println("[" + nodeId + "] Delete error: " + e.getMessage());
-            out.writeObject("ERROR: Could not delete file");
+            return request.error(NodeProtocol.STATUS_ERROR, "Could not delete file");
         }
     }
 
 
-    private void handleVerifyContent(ObjectInputStream in, ObjectOutputStream out)
-            throws IOException, ClassNotFoundException {
-        String department = (String) in.readObject();
-        String filename = (String) in.readObject();
-        byte[] expectedContent = (byte[]) in.readObject();
-
-        Path filePath = Paths.get(storagePath, department, filename);
-        if (!Files.exists(filePath)) {
-            out.writeObject(false);
-            return;
+    private NodeFrame handleVerifyContent(NodeFrame request) throws IOException {
+        Path filePath = Paths.get(storagePath, request.field(0), request.field(1));
+        ByteBuffer cached = readCache.get(filePath);
+        if (cached != null) {
+            return ByteBuffer.wrap(request.getPayload()).equals(cached)
+                    ? request.reply(NodeProtocol.STATUS_OK, null)
+                    : request.error(NodeProtocol.STATUS_MISMATCH, "Content differs");
+        }
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
         }
 
-        byte[] actualContent = Files.readAllBytes(filePath);
-        out.writeObject(Arrays.equals(expectedContent, actualContent));
+        byte[] actualContent = chunks.readRaw(filePath);
+        return Arrays.equals(request.getPayload(), actualContent)
+                ? request.reply(NodeProtocol.STATUS_OK, null)
+                : request.error(NodeProtocol.STATUS_MISMATCH, "Content differs");
     }
 
 
-    private void handleUpload(ObjectInputStream in, ObjectOutputStream out)
-            throws IOException, ClassNotFoundException {
-
-        FileData fileData = (FileData) in.readObject();
-        System.out.println("[" + nodeId + "] Creating: " + fileData.getFilename() +
-                " in " + fileData.getDepartment());
+    private NodeFrame handleUpload(NodeFrame request) throws IOException {
+        String department = request.field(0);
+        String filename = request.field(1);
+        System.out.println("[" + nodeId + "] Creating: " + filename + " in " + department);
 
-        Path deptPath = Paths.get(storagePath, fileData.getDepartment());
+        Path deptPath = Paths.get(storagePath, department);
         if (!Files.exists(deptPath)) {
             Files.createDirectories(deptPath);
         }
 
-        Path filePath = deptPath.resolve(fileData.getFilename());
-        Files.write(filePath, fileData.getContent(),
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING);
+        Path filePath = deptPath.resolve(filename);
+        String digest = storeContent(filePath, request);
+
+        treeFor(department).put(filename, digest);
 
         System.out.println("[" + nodeId + "] Created: " + filePath.toAbsolutePath());
-        out.writeObject("OK: File created");  // Make sure this matches exactly
+        return request.reply(NodeProtocol.STATUS_OK, null, digest);
+    }
+
+    /*
+     * Stores the payload, which may be in the compressed stored form (see Compression), and returns the
+     * SHA-256 of the raw content. Large files are chunked, compressing each chunk at the requested level
+     * or, if none was given, at the fastest level when the payload itself came compressed.
+     */
+    private String storeContent(Path filePath, NodeFrame request) throws IOException {
+        byte[] payload = request.getPayload();
+        int level = request.field(3) != null ? Compression.parseLevel(request.field(3))
+                : Compression.isEncoded(payload) ? Deflater.BEST_SPEED : Compression.NONE;
+        return chunks.write(filePath, payload, level);
     }
 
 
-    private void handleDownload(ObjectInputStream in, ObjectOutputStream out) 
-        throws IOException, ClassNotFoundException {
-        
-        String department = (String) in.readObject();
-        String filename = (String) in.readObject();
-        System.out.println("[" + nodeId + "] Download request: " + 
+    private NodeFrame handleDownload(NodeFrame request) {
+        String department = request.field(0);
+        String filename = request.field(1);
+        System.out.println("[" + nodeId + "] Download request: " +
                          department + "/" + filename);
-        
+
         Path filePath = Paths.get(storagePath, department, filename);
-        if (!Files.exists(filePath)) {
+        // Hot files come from memory and always raw: for small files, saving the read beats saving bytes
+        ByteBuffer cached = readCache.get(filePath);
+        if (cached != null) {
+            return request.replyShared(NodeProtocol.STATUS_OK, cached);
+        }
+        if (!chunks.exists(filePath)) {
             System.err.println("[" + nodeId + "] File not found: " + filePath);
-            out.writeObject("ERROR: File not found");
-            return;
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
         }
-        
+
         try {
-            byte[] content = Files.readAllBytes(filePath);
-            FileData fileData = new FileData(filename, department, content, "system");
-            out.writeObject(fileData);
-            System.out.println("[" + nodeId + "] Sent file: " + filename + 
+            // Callers that can inflate themselves get the stored bytes as they are, unless the file is
+            // hot enough to be read raw into the cache
+            boolean sendStored = Compression.DEFLATE.equals(request.field(2)) && !readCache.isHot(filePath)
+                    && chunks.isCompressed(filePath);
+            long size = sendStored ? chunks.storedSize(filePath) : chunks.rawSize(filePath);
+            if (size > NodeProtocol.MAX_DOWNLOAD_BYTES) {
+                return request.error(NodeProtocol.STATUS_BAD_REQUEST, "File too large for one download ("
+                        + size + " bytes), read it with readFileChunk or DirectDownload");
+            }
+            if (sendStored) {
+                byte[] stored = chunks.readStored(filePath);
+                System.out.println("[" + nodeId + "] Sent file: " + filename +
+                                " (" + stored.length + " bytes compressed)");
+                return request.reply(NodeProtocol.STATUS_OK, stored, Compression.DEFLATE);
+            }
+            byte[] content = chunks.readRaw(filePath);
+            System.out.println("[" + nodeId + "] Sent file: " + filename +
                             " (" + content.length + " bytes)");
+            return request.reply(NodeProtocol.STATUS_OK, content);
         } catch (IOException e) {
             System.err.println("[" + nodeId + "] Read error: " + e.getMessage());
-            out.writeObject("ERROR: Could not read file");
+            return request.error(NodeProtocol.STATUS_ERROR, "Could not read file");
         }
     }
 
-    private void handleVerify(ObjectInputStream in, ObjectOutputStream out) 
-        throws IOException, ClassNotFoundException {
-        
-        String department = (String) in.readObject();
-        String filename = (String) in.readObject();
-        System.out.println("[" + nodeId + "] Verifying: " + 
+    private NodeFrame handleVerify(NodeFrame request) {
+        String department = request.field(0);
+        String filename = request.field(1);
+        System.out.println("[" + nodeId + "] Verifying: " +
                          department + "/" + filename);
-        
+
         Path filePath = Paths.get(storagePath, department, filename);
-        boolean exists = Files.exists(filePath);
-        
+        boolean exists = chunks.exists(filePath);
+
         System.out.println("[" + nodeId + "] Verification result: " + exists);
-        out.writeObject(exists);
+        return exists
+                ? request.reply(NodeProtocol.STATUS_OK, null)
+                : request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
     }
 
-    private void handleSync(ObjectInputStream in, ObjectOutputStream out) 
-        throws IOException, ClassNotFoundException {
-        
-        String department = (String) in.readObject();
-        String filename = (String) in.readObject();
-        System.out.println("[" + nodeId + "] Sync request: " + 
+    private NodeFrame handleSync(NodeFrame request) throws IOException {
+        String department = request.field(0);
+        String filename = request.field(1);
+        System.out.println("[" + nodeId + "] Sync request: " +
                          department + "/" + filename);
-        
+
         Path filePath = Paths.get(storagePath, department, filename);
-        if (Files.exists(filePath)) {
-            byte[] content = Files.readAllBytes(filePath);
-            out.writeObject(content);
-            System.out.println("[" + nodeId + "] Sent sync data: " + 
+        ByteBuffer cached = readCache.get(filePath);
+        if (cached != null) {
+            return request.replyShared(NodeProtocol.STATUS_OK, cached);
+        }
+        if (chunks.exists(filePath)) {
+            byte[] content = chunks.readRaw(filePath);
+            System.out.println("[" + nodeId + "] Sent sync data: " +
                               filename + " (" + content.length + " bytes)");
+            return request.reply(NodeProtocol.STATUS_OK, content);
         } else {
-            out.writeObject(null);
             System.out.println("[" + nodeId + "] No file to sync");
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+    }
+
+    private Path uploadPath(String uploadId) throws IOException {
+        if (uploadId == null || !uploadId.matches("[A-Za-z0-9-]+")) {
+            throw new IOException("Invalid upload id: " + uploadId);
+        }
+        return Paths.get(storagePath, UPLOADS_DIR, uploadId);
+    }
+
+    private NodeFrame handleUploadBegin(NodeFrame request) throws IOException {
+        Path partPath = uploadPath(request.field(0));
+        Files.createDirectories(partPath.getParent());
+        if (!Files.exists(partPath)) {
+            Files.createFile(partPath);
+        }
+        long size = Files.size(partPath);
+        System.out.println("[" + nodeId + "] Upload session " + request.field(0) + " at offset " + size);
+        return request.reply(NodeProtocol.STATUS_OK, null, String.valueOf(size));
+    }
+
+    // Appends one chunk at the given offset; a mismatched offset returns the real size so the sender can resume
+    private NodeFrame handleUploadChunk(NodeFrame request) throws IOException {
+        Path partPath = uploadPath(request.field(0));
+        long offset = Long.parseLong(request.field(1));
+        if (!Files.exists(partPath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "Unknown upload session");
+        }
+
+        try (FileChannel channel = FileChannel.open(partPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (offset != size) {
+                return request.reply(NodeProtocol.STATUS_MISMATCH, null, "Expected offset " + size, String.valueOf(size));
+            }
+            MessageDigest digest = uploadDigest(request.field(0), channel);
+            ByteBuffer buffer = ByteBuffer.wrap(request.getPayload());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            digest.update(request.getPayload());
+            return request.reply(NodeProtocol.STATUS_OK, null, String.valueOf(channel.size()));
+        }
+    }
+
+    /*
+     * Running digest of a streamed upload. It only lives in memory, so after a node
+     * restart it is rebuilt from the bytes already in the part file.
+     */
+    private MessageDigest uploadDigest(String uploadId, FileChannel partChannel) throws IOException {
+        MessageDigest digest = uploadDigests.get(uploadId);
+        if (digest != null) {
+            return digest;
+        }
+        digest = Digests.newSha256();
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BLOCK_BYTES);
+        long position = 0;
+        while (true) {
+            buffer.clear();
+            int n = partChannel.read(buffer, position);
+            if (n <= 0) break;
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+        uploadDigests.put(uploadId, digest);
+        return digest;
+    }
+
+    private NodeFrame handleUploadCommit(NodeFrame request) throws IOException {
+        Path partPath = uploadPath(request.field(0));
+        String department = request.field(1);
+        String filename = request.field(2);
+        if (!Files.exists(partPath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "Unknown upload session");
         }
+
+        Path deptPath = Paths.get(storagePath, department);
+        Files.createDirectories(deptPath);
+        Path filePath = deptPath.resolve(filename);
+        String digest;
+        try (FileChannel channel = FileChannel.open(partPath, StandardOpenOption.READ)) {
+            digest = Digests.hex(uploadDigest(request.field(0), channel).digest());
+        }
+        uploadDigests.remove(request.field(0));
+
+        // A node-to-node copy ("stored") arrives in stored form, so its digest is recomputed over the raw
+        // content; anything else is raw content, compressed here at the requested level
+        boolean stored = "stored".equals(request.field(3));
+        int level = !stored ? Compression.parseLevel(request.field(3))
+                : Compression.isEncoded(partPath) ? Deflater.BEST_SPEED : Compression.NONE;
+        long rawSize = stored ? Compression.rawSize(partPath) : Files.size(partPath);
+        if (chunks.shouldChunk(rawSize)) {
+            try (InputStream raw = stored ? Compression.openRaw(partPath) : Files.newInputStream(partPath)) {
+                digest = chunks.writeChunked(filePath, raw, level);
+            }
+            Files.delete(partPath);
+        } else {
+            if (!stored) {
+                Compression.encodeFile(partPath, level);
+            } else if (Compression.isEncoded(partPath)) {
+                digest = chunks.rawDigest(partPath);
+            }
+            chunks.replace(partPath, filePath);
+        }
+        treeFor(department).put(filename, digest);
+
+        System.out.println("[" + nodeId + "] Created (streamed): " + filePath.toAbsolutePath());
+        return request.reply(NodeProtocol.STATUS_OK, null, String.valueOf(rawSize), digest);
+    }
+
+    private NodeFrame handleUploadAbort(NodeFrame request) throws IOException {
+        Files.deleteIfExists(uploadPath(request.field(0)));
+        uploadDigests.remove(request.field(0));
+        return request.reply(NodeProtocol.STATUS_OK, null);
+    }
+
+    private NodeFrame handleReadChunk(NodeFrame request) throws IOException {
+        Path filePath = Paths.get(storagePath, request.field(0), request.field(1));
+        long offset = Long.parseLong(request.field(2));
+        int length = Math.min(Integer.parseInt(request.field(3)), NodeProtocol.MAX_CHUNK_BYTES);
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+
+        boolean stored = "stored".equals(request.field(4));
+        if (stored && chunks.manifestOf(filePath) != null) {
+            return request.error(NodeProtocol.STATUS_BAD_REQUEST, "File is chunked; copy it with MANIFEST_GET");
+        }
+        if (!stored && !chunks.isPlain(filePath)) {
+            // Raw range of a compressed or chunked file
+            long size = chunks.rawSize(filePath);
+            try (InputStream raw = chunks.openRaw(filePath, offset)) {
+                byte[] chunk = raw.readNBytes((int) Math.max(0, Math.min(length, size - offset)));
+                return request.reply(NodeProtocol.STATUS_OK, chunk, String.valueOf(size));
+            }
+        }
+
+        long size = chunks.storedSize(filePath);
+        return request.reply(NodeProtocol.STATUS_OK, chunks.readStored(filePath, offset, length), String.valueOf(size));
+    }
+
+    private NodeFrame handleStat(NodeFrame request) throws IOException {
+        Path filePath = Paths.get(storagePath, request.field(0), request.field(1));
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+        return request.reply(NodeProtocol.STATUS_OK, null, String.valueOf(chunks.rawSize(filePath)));
+    }
+
+    private NodeFrame handleStats(NodeFrame request) throws IOException {
+        FileStore store = Files.getFileStore(Paths.get(storagePath));
+        return request.reply(NodeProtocol.STATUS_OK, null,
+                String.valueOf(engine.getInFlightRequests()),
+                String.valueOf(engine.getActiveConnections()),
+                String.valueOf(engine.getServiceMicros()),
+                String.valueOf(store.getUsableSpace()),
+                String.valueOf(store.getTotalSpace()));
+    }
+
+    /*
+     * Merkle tree of a department's file digests. Built from disk the first time the
+     * department is touched, then kept current by every write and delete on this node.
+     */
+    private MerkleTree treeFor(String department) {
+        return merkleTrees.computeIfAbsent(department, this::buildTree);
+    }
+
+    private MerkleTree buildTree(String department) {
+        MerkleTree tree = new MerkleTree();
+        Path deptPath = Paths.get(storagePath, department);
+        try {
+            for (String filename : chunks.filenames(department)) {
+                tree.put(filename, chunks.rawDigest(deptPath.resolve(filename)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not index department " + department, e);
+        }
+        System.out.println("[" + nodeId + "] Indexed " + tree.size() + " files in " + department);
+        return tree;
+    }
+
+    private NodeFrame handleTreeRoots(NodeFrame request) throws IOException {
+        List<String> fields = new ArrayList<>();
+        for (String department : chunks.departments()) {
+            fields.add(department);
+            fields.add(treeFor(department).rootHash());
+        }
+        return request.reply(NodeProtocol.STATUS_OK, null, fields.toArray(new String[0]));
+    }
+
+    private NodeFrame handleTreeNode(NodeFrame request) {
+        int level = Integer.parseInt(request.field(1));
+        int index = Integer.parseInt(request.field(2));
+        return request.reply(NodeProtocol.STATUS_OK, null, treeFor(request.field(0)).childHashes(level, index));
+    }
+
+    private NodeFrame handleTreeLeaf(NodeFrame request) throws IOException {
+        int leaf = Integer.parseInt(request.field(1));
+        List<String> fields = new ArrayList<>();
+        for (Map.Entry<String, String> entry : treeFor(request.field(0)).leafEntries(leaf).entrySet()) {
+            Path filePath = Paths.get(storagePath, request.field(0), entry.getKey());
+            fields.add(entry.getKey());
+            fields.add(entry.getValue());
+            fields.add(String.valueOf(chunks.exists(filePath) ? chunks.rawSize(filePath) : 0));
+        }
+        return request.reply(NodeProtocol.STATUS_OK, null, fields.toArray(new String[0]));
+    }
+
+    private NodeFrame handleList(NodeFrame request) throws IOException {
+        int leaf = Integer.parseInt(request.field(1));
+        SortedMap<String, String> entries = treeFor(request.field(0)).leafEntries(leaf);
+        if (request.field(2) != null) {
+            entries = entries.tailMap(request.field(2) + "\0"); // strictly after the previous page
+        }
+        List<String> fields = new ArrayList<>();
+        fields.add(null); // cursor for the next page, set below if there is one
+        int listed = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (listed == NodeProtocol.LIST_PAGE_FILES) {
+                fields.set(0, fields.get(fields.size() - 4));
+                break;
+            }
+            Path filePath = Paths.get(storagePath, request.field(0), entry.getKey());
+            long modified;
+            try {
+                modified = chunks.lastModified(filePath);
+            } catch (NoSuchFileException e) {
+                continue; // deleted since the tree was read
+            }
+            listed++;
+            fields.add(entry.getKey());
+            fields.add(String.valueOf(chunks.rawSize(filePath)));
+            fields.add(String.valueOf(modified));
+            fields.add(entry.getValue());
+        }
+        return request.reply(NodeProtocol.STATUS_OK, null, fields.toArray(new String[0]));
+    }
+
+    private NodeFrame handleChunkHave(NodeFrame request) {
+        List<String> hashes = Arrays.asList(request.getFields());
+        for (String hash : hashes) {
+            if (!ChunkStore.isValidHash(hash)) {
+                return request.error(NodeProtocol.STATUS_BAD_REQUEST, "Invalid chunk hash: " + hash);
+            }
+        }
+        return request.reply(NodeProtocol.STATUS_OK, null, chunks.missing(hashes).toArray(new String[0]));
+    }
+
+    private NodeFrame handleChunkPut(NodeFrame request) throws IOException {
+        String hash = request.field(0);
+        if (!ChunkStore.isValidHash(hash)) {
+            return request.error(NodeProtocol.STATUS_BAD_REQUEST, "Invalid chunk hash: " + hash);
+        }
+        if (!hash.equals(Digests.sha256(Compression.decode(request.getPayload())))) {
+            return request.error(NodeProtocol.STATUS_MISMATCH, "Chunk content doesn't match its hash");
+        }
+        chunks.putChunk(hash, request.getPayload());
+        return request.reply(NodeProtocol.STATUS_OK, null);
+    }
+
+    private NodeFrame handleChunkGet(NodeFrame request) throws IOException {
+        String hash = request.field(0);
+        if (!ChunkStore.isValidHash(hash)) {
+            return request.error(NodeProtocol.STATUS_BAD_REQUEST, "Invalid chunk hash: " + hash);
+        }
+        try {
+            return request.reply(NodeProtocol.STATUS_OK, chunks.readChunk(hash));
+        } catch (NoSuchFileException e) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "Chunk not found");
+        }
+    }
+
+    private NodeFrame handleManifestGet(NodeFrame request) throws IOException {
+        Path filePath = Paths.get(storagePath, request.field(0), request.field(1));
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+        ChunkManifest manifest = chunks.manifestOf(filePath);
+        if (manifest == null) {
+            return request.error(NodeProtocol.STATUS_BAD_REQUEST, "File is stored whole");
+        }
+        return request.reply(NodeProtocol.STATUS_OK, manifest.encode());
+    }
+
+    // Commits a file whose chunks the sender has already made sure are here
+    private NodeFrame handleManifestPut(NodeFrame request) throws IOException {
+        String department = request.field(0);
+        String filename = request.field(1);
+        ChunkManifest manifest = ChunkManifest.decode(request.getPayload());
+        if (!chunks.missing(manifest.getHashes()).isEmpty()) {
+            return request.error(NodeProtocol.STATUS_MISMATCH, "Missing chunks");
+        }
+        chunks.verify(manifest);
+
+        Path deptPath = Paths.get(storagePath, department);
+        Files.createDirectories(deptPath);
+        Path filePath = deptPath.resolve(filename);
+        try {
+            chunks.commit(filePath, manifest);
+        } catch (NoSuchFileException e) {
+            return request.error(NodeProtocol.STATUS_MISMATCH, "Missing chunks");
+        }
+        treeFor(department).put(filename, manifest.getDigest());
+
+        System.out.println("[" + nodeId + "] Created (" + manifest.getHashes().size() + " chunks): "
+                + filePath.toAbsolutePath());
+        return request.reply(NodeProtocol.STATUS_OK, null, manifest.getDigest());
+    }
+
+    private NodeFrame handleSignature(NodeFrame request) throws IOException {
+        Path filePath = Paths.get(storagePath, request.field(0), request.field(1));
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+        long size = chunks.rawSize(filePath);
+        int blockSize = request.field(2) != null ? Integer.parseInt(request.field(2))
+                : FileSignature.blockSizeFor(size);
+        if (blockSize <= 0) {
+            return request.error(NodeProtocol.STATUS_BAD_REQUEST, "Invalid block size: " + blockSize);
+        }
+        try (InputStream raw = chunks.openRaw(filePath)) {
+            return request.reply(NodeProtocol.STATUS_OK, FileSignature.compute(raw, size, blockSize).encode());
+        }
+    }
+
+    // Rebuilds the new version from the stored one plus the delta's inserts
+    private NodeFrame handleDeltaUpdate(NodeFrame request) throws IOException {
+        String department = request.field(0);
+        String filename = request.field(1);
+        Path filePath = Paths.get(storagePath, department, filename);
+        if (!chunks.exists(filePath)) {
+            return request.error(NodeProtocol.STATUS_NOT_FOUND, "File not found");
+        }
+
+        FileDelta delta = FileDelta.decode(request.getPayload());
+        if (Math.max(chunks.rawSize(filePath), delta.getSize()) > maxDeltaBytes) {
+            return request.error(NodeProtocol.STATUS_BAD_REQUEST,
+                    "File too large for a delta update, send the whole content");
+        }
+        byte[] base = chunks.readRaw(filePath);
+        if (!delta.getBaseDigest().equals(Digests.sha256(base))) {
+            return request.error(NodeProtocol.STATUS_MISMATCH, "Stored version is not the delta's base");
+        }
+        byte[] content = delta.apply(base);
+        String digest = chunks.writeRaw(filePath, content, Compression.parseLevel(request.field(3)));
+        treeFor(department).put(filename, digest);
+
+        System.out.println("[" + nodeId + "] Updated (delta, " + delta.getEncodedSize() + " bytes for "
+                + content.length + "): " + filePath.toAbsolutePath());
+        return request.reply(NodeProtocol.STATUS_OK, null, digest);
     }
 
     public static void main(String[] args) {
@@ -1,102 +1,183 @@
 import java.io.*;
-import java.net.*;
-import java.nio.file.*;
 import java.util.*;
 
+/**
+ * Pushes one node's files to its peers using Merkle-tree anti-entropy.
+ *
+ * For each department the local and remote root hashes are compared first;
+ * only when they differ does the client walk down the tree, and only into the
+ * subtrees whose hashes differ. Files are transferred only when they are
+ * missing on the peer (or conflict), so a sync of unchanged nodes costs a
+ * handful of small requests regardless of how much data they hold.
+ *
+ * All access, including to the local node, goes through the node protocol.
+ */
 public class NodeSyncClient {
     private List<NodeInfo> nodes;
     private String nodeId;
-    private String storagePath;
+    private NodeConnectionPool connectionPool;
+    private SyncJob job; // progress and bandwidth accounting, may be null
+    private FileCopier copier;
 
-    public NodeSyncClient(String nodeId, List<NodeInfo> nodes) {
+    public NodeSyncClient(String nodeId, List<NodeInfo> nodes, NodeConnectionPool connectionPool) {
+        this(nodeId, nodes, connectionPool, null);
+    }
+
+    public NodeSyncClient(String nodeId, List<NodeInfo> nodes, NodeConnectionPool connectionPool, SyncJob job) {
         this.nodeId = nodeId;
         this.nodes = nodes;
-        this.storagePath = "node_storage_" + nodeId;
+        this.connectionPool = connectionPool;
+        this.job = job;
+        this.copier = new FileCopier(connectionPool, job == null ? null : job.getBandwidth());
     }
 
     public void sync() {
         for (NodeInfo node : nodes) {
             if (!node.getNodeId().equals(nodeId)) { // Don't sync with self
-                syncWithNode(node);
+                syncWith(node);
+            }
+        }
+    }
+
+    /** Pushes this node's missing or conflicting files to one peer. */
+    public void syncWith(NodeInfo node) {
+        NodeInfo self = findSelf();
+        if (self == null) {
+            System.err.println("Sync error: node " + nodeId + " is not registered");
+            return;
+        }
+        syncWithNode(self, node);
+    }
+
+    private NodeInfo findSelf() {
+        for (NodeInfo node : nodes) {
+            if (node.getNodeId().equals(nodeId)) {
+                return node;
             }
         }
+        return null;
     }
 
-    private void syncWithNode(NodeInfo node) {
+    private void syncWithNode(NodeInfo self, NodeInfo node) {
         try {
-            // Get list of departments
-            File storageDir = new File(storagePath);
-            if (!storageDir.exists()) return;
-            
-            for (File deptDir : storageDir.listFiles(File::isDirectory)) {
-                String department = deptDir.getName();
-                
-                for (File file : deptDir.listFiles()) {
-                    syncFile(node, department, file.getName());
+            Map<String, String> localRoots = fetchRoots(self);
+            Map<String, String> remoteRoots = fetchRoots(node);
+
+            for (Map.Entry<String, String> entry : localRoots.entrySet()) {
+                String department = entry.getKey();
+                if (!entry.getValue().equals(remoteRoots.get(department))) {
+                    syncSubtree(self, node, department, 0, 0);
                 }
             }
         } catch (Exception e) {
             System.err.println("Sync error with node " + node.getNodeId() + ": " + e.getMessage());
+            if (job != null) job.recordError();
         }
     }
 
-    private void syncFile(NodeInfo node, String department, String filename) {
-        try (Socket socket = new Socket(node.getAddress(), node.getPort());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            
-            out.writeObject("SYNC");
-            out.writeObject(department);
-            out.writeObject(filename);
-            
-            byte[] remoteContent = (byte[]) in.readObject();
-            byte[] localContent = Files.readAllBytes(Paths.get(storagePath, department, filename));
-            
-            if (remoteContent == null) {
-                // File doesn't exist on remote node, send our copy
-                sendFile(node, department, filename);
-            } else if (!Arrays.equals(remoteContent, localContent)) {
-                // Files are different, implement conflict resolution
-                // For simplicity, we'll just keep both versions with timestamps
-                resolveConflict(node, department, filename, remoteContent, localContent);
+    // Descends only into children whose hashes differ between the two nodes
+    private void syncSubtree(NodeInfo self, NodeInfo node, String department, int level, int index)
+            throws IOException {
+        if (level == MerkleTree.DEPTH) {
+            syncLeaf(self, node, department, index);
+            return;
+        }
+
+        String[] localChildren = call(self, NodeProtocol.TREE_NODE, department,
+                String.valueOf(level), String.valueOf(index)).getFields();
+        String[] remoteChildren = call(node, NodeProtocol.TREE_NODE, department,
+                String.valueOf(level), String.valueOf(index)).getFields();
+
+        for (int i = 0; i < MerkleTree.FANOUT; i++) {
+            if (!localChildren[i].equals(remoteChildren[i])) {
+                syncSubtree(self, node, department, level + 1, index * MerkleTree.FANOUT + i);
             }
-        } catch (Exception e) {
-            System.err.println("Error syncing file " + filename + ": " + e.getMessage());
         }
     }
 
-    private void sendFile(NodeInfo node, String department, String filename) throws IOException {
-        try (Socket socket = new Socket(node.getAddress(), node.getPort());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            
-            byte[] content = Files.readAllBytes(Paths.get(storagePath, department, filename));
-            FileData fileData = new FileData(filename, department, content, "sync");
-            
-            out.writeObject("UPLOAD");
-            out.writeObject(fileData);
-            
-            String response = (String) in.readObject();
-            if (!"OK: File uploaded".equals(response)) {
-                System.err.println("Failed to sync file " + filename + ": " + response);
+    private void syncLeaf(NodeInfo self, NodeInfo node, String department, int leaf) throws IOException {
+        Map<String, String[]> localFiles = leafEntries(self, department, leaf);
+        Map<String, String[]> remoteFiles = leafEntries(node, department, leaf);
+        if (job != null) {
+            long bytes = 0;
+            for (String[] entry : localFiles.values()) {
+                bytes += Long.parseLong(entry[1]);
+            }
+            job.recordScanned(localFiles.size(), bytes);
+        }
+
+        for (Map.Entry<String, String[]> entry : localFiles.entrySet()) {
+            String filename = entry.getKey();
+            String localDigest = entry.getValue()[0];
+            String remoteDigest = remoteFiles.containsKey(filename) ? remoteFiles.get(filename)[0] : null;
+            try {
+                if (remoteDigest == null) {
+                    // File doesn't exist on remote node, send our copy
+                    sendFile(self, node, department, filename);
+                } else if (!remoteDigest.equals(localDigest)) {
+                    // Files are different, implement conflict resolution
+                    // For simplicity, we'll just keep both versions with timestamps
+                    resolveConflict(self, department, filename);
+                }
+            } catch (Exception e) {
+                System.err.println("Error syncing file " + filename + ": " + e.getMessage());
+                if (job != null) job.recordError();
             }
-        } catch (Exception e) {
-            throw new IOException(e);
         }
     }
 
+    private void sendFile(NodeInfo self, NodeInfo node, String department, String filename) throws IOException {
+        copyFile(self, node, department, filename, filename);
+    }
+
     public String getNodeId() {
         return nodeId;
     }
 
 
-    private void resolveConflict(NodeInfo node, String department, String filename, 
-                               byte[] remoteContent, byte[] localContent) throws IOException {
+    private void resolveConflict(NodeInfo self, String department, String filename) throws IOException {
         // Simple conflict resolution - keep both versions with timestamps
         String timestamp = String.valueOf(System.currentTimeMillis());
         String newFilename = filename + "_conflict_" + timestamp;
-        
-        Files.write(Paths.get(storagePath, department, newFilename), localContent);
+
+        copyFile(self, self, department, filename, newFilename);
         System.out.println("Resolved conflict for " + filename + " by creating " + newFilename);
     }
-}
\ No newline at end of file
+
+    private void copyFile(NodeInfo source, NodeInfo target, String department, String filename,
+                          String targetFilename) throws IOException {
+        copier.copy(source, target, department, filename, targetFilename,
+                job == null ? null : job::recordBytes);
+        if (job != null) job.recordFileTransferred(department, targetFilename);
+    }
+
+    private Map<String, String> fetchRoots(NodeInfo node) throws IOException {
+        return pairs(call(node, NodeProtocol.TREE_ROOTS).getFields());
+    }
+
+    // filename -> { sha256, size }
+    private Map<String, String[]> leafEntries(NodeInfo node, String department, int leaf) throws IOException {
+        String[] fields = call(node, NodeProtocol.TREE_LEAF, department, String.valueOf(leaf)).getFields();
+        Map<String, String[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i + 2 < fields.length; i += 3) {
+            entries.put(fields[i], new String[] { fields[i + 1], fields[i + 2] });
+        }
+        return entries;
+    }
+
+    private NodeFrame call(NodeInfo node, byte opcode, String... fields) throws IOException {
+        NodeFrame response = connectionPool.call(node, opcode, null, fields);
+        if (!response.isOk()) {
+            throw new IOException(node.getNodeId() + ": " + response.getMessage());
+        }
+        return response;
+    }
+
+    private static Map<String, String> pairs(String[] fields) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            map.put(fields[i], fields[i + 1]);
+        }
+        return map;
+    }
+}
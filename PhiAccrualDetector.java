@@ -0,0 +1,74 @@
+import java.util.*;
+
+/**
+ * Phi-accrual failure detector for one monitored node (Hayashibara et al.).
+ *
+ * Instead of a yes/no timeout it keeps a window of recent heartbeat
+ * inter-arrival times and reports phi = -log10(P(a heartbeat arrives this
+ * late)). Phi 1 means a 10% chance the node is merely slow, phi 8 means
+ * 1 in 10^8, and the threshold adapts on its own to each node's jitter.
+ */
+public class PhiAccrualDetector {
+    private final int windowSize;
+    private final double minStdDevMillis;
+    private final Deque<Long> intervals = new ArrayDeque<>();
+    private double sum;
+    private double sumOfSquares;
+    private long lastHeartbeatMillis = -1;
+
+    public PhiAccrualDetector(int windowSize, double minStdDevMillis, long firstIntervalEstimateMillis) {
+        this.windowSize = Math.max(2, windowSize);
+        this.minStdDevMillis = minStdDevMillis;
+        // Seed with the expected interval so phi is meaningful from the second heartbeat on
+        add(firstIntervalEstimateMillis - firstIntervalEstimateMillis / 4);
+        add(firstIntervalEstimateMillis + firstIntervalEstimateMillis / 4);
+    }
+
+    public synchronized void heartbeat(long nowMillis) {
+        if (lastHeartbeatMillis >= 0) {
+            add(nowMillis - lastHeartbeatMillis);
+        }
+        lastHeartbeatMillis = nowMillis;
+    }
+
+    /** Starts counting from now without recording the gap, e.g. after an outage that would skew the window. */
+    public synchronized void restart(long nowMillis) {
+        lastHeartbeatMillis = nowMillis;
+    }
+
+    public synchronized double phi(long nowMillis) {
+        if (lastHeartbeatMillis < 0) {
+            return 0.0;
+        }
+        double mean = getMeanIntervalMillis();
+        double variance = sumOfSquares / intervals.size() - mean * mean;
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDevMillis);
+
+        // Logistic approximation of the normal CDF, as used by Akka and Cassandra
+        double y = (nowMillis - lastHeartbeatMillis - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (nowMillis - lastHeartbeatMillis > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long getLastHeartbeatMillis() {
+        return lastHeartbeatMillis;
+    }
+
+    public synchronized double getMeanIntervalMillis() {
+        return sum / intervals.size();
+    }
+
+    private void add(long interval) {
+        intervals.addLast(interval);
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+        if (intervals.size() > windowSize) {
+            long oldest = intervals.removeFirst();
+            sum -= oldest;
+            sumOfSquares -= (double) oldest * oldest;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.*;
+
+/**
+ * Chooses which storage nodes receive a new file.
+ *
+ * Selected with -Ddfs.placement=consistent-hash (the default)|power-of-two|
+ * least-outstanding|round-robin. Only consistent-hash placement can be
+ * recomputed from the key and is kept in shape by the Rebalancer.
+ */
+public interface PlacementStrategy {
+    /**
+     * Picks count nodes out of candidates, best first. Candidates are active
+     * nodes in round-robin order, so ties fall back to plain rotation.
+     */
+    List<NodeInfo> select(String department, String filename, List<NodeInfo> candidates, int count);
+
+    static PlacementStrategy fromSystemProperties(NodeLoadMonitor monitor, ConsistentHashRing ring) {
+        String name = System.getProperty("dfs.placement", "consistent-hash");
+        switch (name) {
+            case "consistent-hash":
+                return new ConsistentHashPlacement(ring);
+            case "round-robin":
+                return new RoundRobinPlacement();
+            case "least-outstanding":
+                return new LeastOutstandingPlacement(monitor);
+            case "power-of-two":
+                return new PowerOfTwoChoicesPlacement(monitor);
+            default:
+                throw new IllegalArgumentException("Unknown placement strategy: " + name);
+        }
+    }
+}
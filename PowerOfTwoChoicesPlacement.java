@@ -0,0 +1,48 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * For each replica, samples two random candidates and keeps the one with the
+ * lower expected wait (outstanding requests times latency). Nearly as good as
+ * always picking the least loaded node, but stale load figures cannot make
+ * every write pile onto the same node.
+ */
+public class PowerOfTwoChoicesPlacement implements PlacementStrategy {
+    private final NodeLoadMonitor monitor;
+
+    public PowerOfTwoChoicesPlacement(NodeLoadMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public List<NodeInfo> select(String department, String filename, List<NodeInfo> candidates, int count) {
+        List<NodeInfo> remaining = new ArrayList<>();
+        List<NodeInfo> full = new ArrayList<>();
+        for (NodeInfo node : candidates) {
+            (monitor.hasSpace(node) ? remaining : full).add(node);
+        }
+
+        List<NodeInfo> selected = new ArrayList<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (selected.size() < count && !remaining.isEmpty()) {
+            int first = random.nextInt(remaining.size());
+            int pick = first;
+            if (remaining.size() > 1) {
+                int second = random.nextInt(remaining.size() - 1);
+                if (second >= first) {
+                    second++;
+                }
+                if (monitor.cost(remaining.get(second)) < monitor.cost(remaining.get(first))) {
+                    pick = second;
+                }
+            }
+            selected.add(remaining.remove(pick));
+        }
+
+        // Full nodes only when there is nothing else
+        for (int i = 0; selected.size() < count && i < full.size(); i++) {
+            selected.add(full.get(i));
+        }
+        return selected;
+    }
+}
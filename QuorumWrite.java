@@ -0,0 +1,143 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sends one write to several replicas in parallel and waits until a quorum of
+ * them has acknowledged it with the expected SHA-256.
+ *
+ * When a target fails and spare nodes were given, the write is sent to the
+ * next spare instead, so a dead node costs a retry rather than the write.
+ * Replies that arrive after the quorum is reached are still reported to the
+ * listener, which is how slow replicas end up in the file's metadata.
+ */
+public class QuorumWrite {
+    /** Told about every replica outcome, including late ones. */
+    public interface Listener {
+        void acked(NodeInfo node);
+        void failed(NodeInfo node, String reason);
+    }
+
+    /** Delivers the write to one node; completes with the node's final reply. */
+    public interface Transfer {
+        CompletableFuture<NodeFrame> send(NodeInfo node);
+    }
+
+    private final NodeConnectionPool connectionPool;
+    private final List<NodeInfo> targets;
+    private final Deque<NodeInfo> spares;
+    private final int quorum;
+    private final Listener listener;
+
+    private int acks;
+    private int pending;
+    private final List<String> failures = new ArrayList<>();
+
+    public QuorumWrite(NodeConnectionPool connectionPool, List<NodeInfo> targets, List<NodeInfo> spares,
+                       int quorum, Listener listener) {
+        this.connectionPool = connectionPool;
+        this.targets = new ArrayList<>(targets);
+        this.spares = new ArrayDeque<>(spares);
+        this.quorum = quorum;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns once the quorum is reached; throws if it cannot be reached or
+     * does not arrive within the timeout.
+     */
+    public void execute(byte opcode, byte[] payload, String expectedDigest, long timeoutMillis, String... fields)
+            throws IOException {
+        execute(request(opcode, payload, fields), expectedDigest, timeoutMillis);
+    }
+
+    public void execute(Transfer transfer, String expectedDigest, long timeoutMillis) throws IOException {
+        start(transfer, expectedDigest, timeoutMillis);
+        await(System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /** Sends the write to every target without waiting, so many writes can be in flight at once. */
+    public void start(byte opcode, byte[] payload, String expectedDigest, long timeoutMillis, String... fields) {
+        start(request(opcode, payload, fields), expectedDigest, timeoutMillis);
+    }
+
+    public void start(Transfer transfer, String expectedDigest, long timeoutMillis) {
+        synchronized (this) {
+            pending = targets.size();
+        }
+        for (NodeInfo node : targets) {
+            send(node, transfer, expectedDigest, timeoutMillis);
+        }
+    }
+
+    // The usual transfer: one request per node
+    private Transfer request(byte opcode, byte[] payload, String... fields) {
+        return node -> connectionPool.send(node, opcode, payload, fields);
+    }
+
+    /** Waits for a started write to reach its quorum, until the given wall-clock deadline. */
+    public void await(long deadline) throws IOException {
+        synchronized (this) {
+            while (acks < quorum && pending > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Write quorum timed out: " + summary());
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for write quorum");
+                }
+            }
+            if (acks < quorum) {
+                throw new IOException("Write quorum not reached: " + summary());
+            }
+        }
+    }
+
+    private void send(NodeInfo node, Transfer transfer, String expectedDigest, long timeoutMillis) {
+        transfer.send(node)
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> {
+                    String failure = null;
+                    if (error != null) {
+                        // Transport failure: the node is unreachable, not just unhappy with this write
+                        node.setActive(false);
+                        failure = String.valueOf(error instanceof CompletionException ? error.getCause() : error);
+                    } else if (!response.isOk()) {
+                        failure = response.getMessage();
+                    } else if (expectedDigest != null && !expectedDigest.equals(response.field(0))) {
+                        failure = "checksum mismatch";
+                    }
+
+                    if (failure == null) {
+                        listener.acked(node);
+                    } else {
+                        listener.failed(node, failure);
+                    }
+
+                    NodeInfo spare = null;
+                    synchronized (this) {
+                        if (failure == null) {
+                            acks++;
+                        } else {
+                            failures.add(node.getNodeId() + ": " + failure);
+                            spare = spares.poll();
+                        }
+                        if (spare == null) {
+                            pending--;
+                        }
+                        notifyAll();
+                    }
+                    if (spare != null) {
+                        send(spare, transfer, expectedDigest, timeoutMillis);
+                    }
+                });
+    }
+
+    private String summary() {
+        return acks + "/" + quorum + " acks" + (failures.isEmpty() ? "" : " " + failures);
+    }
+}
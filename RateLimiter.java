@@ -0,0 +1,51 @@
+/**
+ * Token-bucket rate limiter, used to cap the bytes per second a background
+ * job may push through the network. A rate of zero or less means unlimited.
+ */
+public class RateLimiter {
+    private final long permitsPerSecond;
+    private final long maxBurst;
+    private double available;
+    private long lastRefillNanos;
+
+    public RateLimiter(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxBurst = Math.max(1, permitsPerSecond);
+        this.available = maxBurst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public boolean isUnlimited() {
+        return permitsPerSecond <= 0;
+    }
+
+    public long getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Blocks until the given number of permits is available. Requests larger
+     * than one second's worth are allowed but leave the bucket in debt, so the
+     * average rate still holds.
+     */
+    public void acquire(long permits) throws InterruptedException {
+        if (isUnlimited() || permits <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            available -= permits;
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1_000_000_000L / permitsPerSecond);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(maxBurst, available + (now - lastRefillNanos) * (double) permitsPerSecond / 1_000_000_000L);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Moves files to the nodes the consistent-hash ring assigns them after a node
+ * joins or leaves.
+ *
+ * A pass compares each indexed file's replicas with its ring placement; only
+ * files in key ranges that changed owner differ, and only those are touched.
+ * Missing replicas are copied from a current one (throttled by
+ * dfs.rebalance.bandwidthBytesPerSecond), and replicas the ring no longer
+ * assigns are deleted once every assigned node has a copy.
+ *
+ * Copies run without holding anything, but a copy only becomes a replica,
+ * and an unassigned replica is only deleted, under the file's write lock (see
+ * FileWriteLocks), so neither can race a client's write of the same file. A
+ * copy of a version overwritten meanwhile is discarded, and a replica whose
+ * delete fails stays in the metadata until a later pass removes it.
+ *
+ * Ring membership alone decides which replicas belong where. A node that is
+ * only inactive still owns its keys: it is skipped as a copy source or target,
+ * and the replicas standing in for it are kept, until a pass triggered by its
+ * reactivation gives it its copies back.
+ *
+ * Passes run one at a time on a background thread; triggers that arrive
+ * during a pass are folded into one more pass.
+ */
+public class Rebalancer {
+    private final Map<String, FileMetadata> fileIndex;
+    private final ConsistentHashRing ring;
+    private final NodeConnectionPool connectionPool;
+    private final FileCopier copier;
+    private final FileWriteLocks writeLocks;
+    private final ToIntFunction<String> replicationFactor;
+    private final Consumer<FileMetadata> onMoved;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    public Rebalancer(Map<String, FileMetadata> fileIndex, ConsistentHashRing ring,
+                      NodeConnectionPool connectionPool, FileWriteLocks writeLocks, long bandwidthBytesPerSecond,
+                      ToIntFunction<String> replicationFactor, Consumer<FileMetadata> onMoved) {
+        this.fileIndex = fileIndex;
+        this.ring = ring;
+        this.connectionPool = connectionPool;
+        this.copier = new FileCopier(connectionPool, new RateLimiter(bandwidthBytesPerSecond));
+        this.writeLocks = writeLocks;
+        this.replicationFactor = replicationFactor;
+        this.onMoved = onMoved;
+    }
+
+    public void trigger() {
+        if (pending.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                pending.set(false);
+                rebalance();
+            });
+        }
+    }
+
+    private void rebalance() {
+        long start = System.currentTimeMillis();
+        int moved = 0;
+        int failed = 0;
+        AtomicLong bytes = new AtomicLong();
+        for (FileMetadata metadata : fileIndex.values()) {
+            try {
+                if (move(metadata, bytes)) {
+                    moved++;
+                    onMoved.accept(metadata);
+                }
+            } catch (Exception e) {
+                failed++;
+                System.err.println("Rebalance of " + metadata.getDepartment() + "/" + metadata.getFilename()
+                        + " failed: " + e.getMessage());
+            }
+        }
+        System.out.println("Rebalance finished in " + (System.currentTimeMillis() - start) + " ms: " + moved
+                + " files moved (" + bytes.get() + " bytes), " + failed + " failed");
+    }
+
+    private boolean move(FileMetadata metadata, AtomicLong bytes) throws Exception {
+        String department = metadata.getDepartment();
+        String filename = metadata.getFilename();
+        String key = department + "/" + filename;
+        List<NodeInfo> current = metadata.getReplicas();
+        List<NodeInfo> desired = ring.nodesFor(key, replicationFactor.applyAsInt(department));
+
+        List<NodeInfo> missing = new ArrayList<>();
+        for (NodeInfo node : desired) {
+            if (!metadata.hasReplica(node) && node.isActive()) {
+                missing.add(node);
+            }
+        }
+        List<NodeInfo> extra = new ArrayList<>();
+        for (NodeInfo node : current) {
+            if (!containsNode(desired, node)) {
+                extra.add(node);
+            }
+        }
+
+        boolean changed = false;
+        if (!missing.isEmpty()) {
+            NodeInfo source = pickSource(current);
+            if (source == null) {
+                throw new IllegalStateException("no reachable replica to copy from");
+            }
+            for (NodeInfo target : missing) {
+                String digest = copier.copy(source, target, department, filename, filename, bytes::addAndGet);
+                addCopy(key, metadata, target, digest);
+                changed = true;
+            }
+        }
+
+        ReentrantLock writeLock = writeLocks.lockFor(key);
+        writeLock.lock();
+        try {
+            if (fileIndex.get(key) != metadata) {
+                return changed; // deleted or replaced meanwhile; the next pass looks at the new version
+            }
+            // Unassigned replicas go once every assigned node has a copy; until then they stand in for it
+            for (NodeInfo node : desired) {
+                if (!metadata.hasReplica(node)) {
+                    return changed;
+                }
+            }
+            for (NodeInfo node : extra) {
+                if (delete(node, department, filename)) {
+                    metadata.removeReplica(node);
+                    changed = true;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return changed;
+    }
+
+    // Makes a finished copy a replica, unless the file was written or deleted while it was being copied
+    private void addCopy(String key, FileMetadata metadata, NodeInfo target, String digest) {
+        ReentrantLock writeLock = writeLocks.lockFor(key);
+        writeLock.lock();
+        try {
+            boolean indexed = fileIndex.get(key) == metadata;
+            boolean written;
+            synchronized (metadata) {
+                if (indexed && (metadata.getDigest() == null || metadata.getDigest().equals(digest))) {
+                    metadata.addReplica(target);
+                    return;
+                }
+                // a write since then may already have put the new version on the target
+                written = indexed && metadata.hasReplica(target);
+            }
+            if (!written) {
+                delete(target, metadata.getDepartment(), metadata.getFilename()); // nothing tracks the stale copy
+            }
+            throw new IllegalStateException("changed while copying to " + target.getNodeId());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // True once the node no longer holds the file; a failure is logged and left for a later pass
+    private boolean delete(NodeInfo node, String department, String filename) {
+        try {
+            NodeFrame reply = connectionPool.call(node, NodeProtocol.DELETE, null, department, filename);
+            if (reply.isOk() || reply.getStatus() == NodeProtocol.STATUS_NOT_FOUND) {
+                return true;
+            }
+            System.err.println("Could not remove " + filename + " from node " + node.getNodeId()
+                    + ": " + reply.getMessage());
+        } catch (Exception e) {
+            System.err.println("Could not remove " + filename + " from node " + node.getNodeId()
+                    + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    // Prefer a replica still on the ring, since a departing node may already be going away
+    private NodeInfo pickSource(List<NodeInfo> replicas) {
+        NodeInfo fallback = null;
+        for (NodeInfo node : replicas) {
+            if (!node.isActive()) {
+                continue;
+            }
+            if (ring.contains(node)) {
+                return node;
+            }
+            fallback = node;
+        }
+        return fallback;
+    }
+
+    private static boolean containsNode(List<NodeInfo> nodes, NodeInfo node) {
+        for (NodeInfo candidate : nodes) {
+            if (candidate.getNodeId().equals(node.getNodeId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,9 @@
+import java.util.*;
+
+/** The original policy: take candidates in rotation, ignoring load. */
+public class RoundRobinPlacement implements PlacementStrategy {
+    @Override
+    public List<NodeInfo> select(String department, String filename, List<NodeInfo> candidates, int count) {
+        return new ArrayList<>(candidates.subList(0, Math.min(count, candidates.size())));
+    }
+}
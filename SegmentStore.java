@@ -0,0 +1,431 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Haystack-style storage for small files: instead of one OS file each, files
+ * are appended to large segment files under .segments, and an in-memory index
+ * keyed by department and filename says where each one's stored form is. A
+ * read is one positional read on an already open channel, with no lookups in
+ * the file system's directories.
+ *
+ * Every segment is a sequence of records
+ *
+ *   int    MAGIC ("DFSS")
+ *   int    body length
+ *   body:  byte type (PUT or DELETE), long timestamp, UTF department,
+ *          UTF filename, long raw size, UTF raw SHA-256, int stored length,
+ *          stored bytes (see Compression)
+ *   int    CRC32 of the body
+ *
+ * and the index is rebuilt at startup by replaying them in order; a torn
+ * record at the end of a segment is cut off. A delete appends a DELETE record
+ * (a tombstone), and a rewrite a new PUT, leaving the old record as garbage.
+ * Sealed segments whose garbage reaches dfs.node.segments.compactPercent
+ * (50) are compacted in the background: records still in use are appended
+ * again and the segment is deleted. A tombstone only counts as garbage in the
+ * oldest segment, where there is nothing left for it to hide.
+ *
+ * Files up to dfs.node.segments.maxFileBytes (64 KiB) in stored form are
+ * kept here; a segment is sealed at dfs.node.segments.segmentBytes (64 MiB).
+ */
+public class SegmentStore {
+    private static final int MAGIC = 0x44465353; // "DFSS"
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int TRAILER_BYTES = 4;
+
+    private final Path directory;
+    private final int maxFileBytes;
+    private final long segmentBytes;
+    private final int compactPercent;
+    private final long compactIntervalMillis;
+
+    // department -> filename -> where the file's latest PUT is; all guarded by this
+    private final Map<String, Map<String, Entry>> index = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SegmentStore(Path directory, int maxFileBytes, long segmentBytes, int compactPercent,
+                        long compactIntervalMillis) {
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.segmentBytes = segmentBytes;
+        this.compactPercent = compactPercent;
+        this.compactIntervalMillis = compactIntervalMillis;
+    }
+
+    public static SegmentStore fromSystemProperties(Path directory) {
+        return new SegmentStore(directory,
+                Integer.getInteger("dfs.node.segments.maxFileBytes", 64 * 1024),
+                Long.getLong("dfs.node.segments.segmentBytes", 64L * 1024 * 1024),
+                Integer.getInteger("dfs.node.segments.compactPercent", 50),
+                Long.getLong("dfs.node.segments.compactIntervalMillis", 60_000));
+    }
+
+    /** Opens the segments on disk, replays them into the index and starts compacting in the background. */
+    public synchronized void load() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.dat")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+                segments.put(id, new Segment(id, file, FileChannel.open(file, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            long end = scan(segment, (position, record) -> apply(segment, position, record));
+            if (end < segment.channel.size()) {
+                System.err.println("Cutting torn records off " + segment.path + " at " + end);
+                segment.channel.truncate(end);
+            }
+            segment.size = end;
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        compactor.scheduleWithFixedDelay(this::compact, compactIntervalMillis, compactIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public boolean accepts(long storedLength) {
+        return storedLength <= maxFileBytes;
+    }
+
+    public synchronized Entry find(String department, String filename) {
+        Map<String, Entry> files = index.get(department);
+        return files == null ? null : files.get(filename);
+    }
+
+    /** The file's stored form, or null if it isn't kept here. */
+    public byte[] read(String department, String filename) throws IOException {
+        Entry entry = find(department, filename);
+        while (entry != null) {
+            FileChannel channel = entry.segment.channel;
+            try {
+                return entry.read(channel);
+            } catch (ClosedByInterruptException e) {
+                reopen(entry.segment, channel);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // Either its segment was compacted away meanwhile, and the index says where it went, or
+                // another reader's interrupt closed the channel, and it is open again
+                Entry current = find(department, filename);
+                if (current == entry && !reopen(entry.segment, channel)) {
+                    throw e;
+                }
+                entry = current;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void put(String department, String filename, byte[] stored, long rawSize, String digest)
+            throws IOException {
+        byte[] record = record(PUT, System.currentTimeMillis(), department, filename, rawSize, digest, stored);
+        apply(active(record.length), append(record), parse(record));
+    }
+
+    /** Writes a tombstone for the file; false if it isn't kept here. */
+    public synchronized boolean delete(String department, String filename) throws IOException {
+        if (find(department, filename) == null) {
+            return false;
+        }
+        byte[] record = record(DELETE, System.currentTimeMillis(), department, filename, 0, "", new byte[0]);
+        apply(active(record.length), append(record), parse(record));
+        return true;
+    }
+
+    public synchronized Set<String> departments() {
+        Set<String> departments = new TreeSet<>();
+        for (Map.Entry<String, Map<String, Entry>> entry : index.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                departments.add(entry.getKey());
+            }
+        }
+        return departments;
+    }
+
+    public synchronized List<String> filenames(String department) {
+        Map<String, Entry> files = index.get(department);
+        return files == null ? new ArrayList<>() : new ArrayList<>(files.keySet());
+    }
+
+    // Applies a record to the index, counting whatever it supersedes as garbage; callers hold the lock
+    private void apply(Segment segment, long position, Record record) {
+        Map<String, Entry> files = index.computeIfAbsent(record.department, d -> new HashMap<>());
+        Entry previous;
+        if (record.type == PUT) {
+            previous = files.put(record.filename, new Entry(segment, position + record.dataOffset,
+                    record.storedLength, record.bytes.length, record.rawSize, record.digest, record.timestamp,
+                    record.compressed));
+        } else {
+            previous = files.remove(record.filename);
+            segment.tombstones += record.bytes.length;
+        }
+        if (previous != null) {
+            previous.segment.garbage += previous.recordBytes;
+        }
+    }
+
+    // The segment the next record goes to, sealing the current one once it is full
+    private Segment active(int recordBytes) throws IOException {
+        if (active == null || (active.size > 0 && active.size + recordBytes > segmentBytes)) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            Path path = directory.resolve(String.format("segment-%08d.dat", id));
+            active = new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private long append(byte[] record) throws IOException {
+        long position = active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        FileChannel channel = active.channel;
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (ClosedByInterruptException e) {
+            reopen(active, channel); // the next append overwrites the partial record
+            throw e;
+        }
+        active.size += record.length;
+        return position;
+    }
+
+    /*
+     * A thread interrupted in the middle of I/O on a channel closes it for every thread, so the channel
+     * is opened again unless the segment has been compacted away. False if it has.
+     */
+    private synchronized boolean reopen(Segment segment, FileChannel closed) throws IOException {
+        if (segments.get(segment.id) != segment) {
+            return false;
+        }
+        if (segment.channel == closed) {
+            segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return true;
+    }
+
+    private void compact() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                // Tombstones only become garbage once no older segment is left for them to hide records in
+                long garbage = segment.garbage + (segment.id == segments.firstKey() ? segment.tombstones : 0);
+                if (segment != active && garbage * 100 >= segment.size * compactPercent) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                System.err.println("Could not compact " + segment.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Sealed segments never change, so this reads one without the lock and only takes it per record.
+     * A PUT the index still points to is appended again. A tombstone is kept, by appending it again,
+     * only while its file is still deleted and an older segment may hold a PUT it has to hide.
+     */
+    private void compact(Segment segment) throws IOException {
+        int[] moved = new int[1];
+        Set<Segment> written = new HashSet<>();
+        scan(segment, (position, record) -> {
+            synchronized (this) {
+                Entry current = find(record.department, record.filename);
+                boolean keep = record.type == PUT
+                        ? current != null && current.segment == segment
+                                && current.offset == position + record.dataOffset
+                        : current == null && segments.firstKey() < segment.id;
+                if (keep) {
+                    written.add(active(record.bytes.length));
+                    apply(active, append(record.bytes), record);
+                    moved[0]++;
+                }
+            }
+        });
+        // The relocated records must be on disk before the only other durable copy goes
+        for (Segment target : written) {
+            target.channel.force(true);
+        }
+        synchronized (this) {
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.delete(segment.path);
+        }
+        System.out.println("Compacted " + segment.path + ": kept " + moved[0] + " of its records");
+    }
+
+    private interface RecordVisitor {
+        void visit(long position, Record record) throws IOException;
+    }
+
+    // Visits the segment's records in order; returns where the valid ones end
+    private static long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long size = segment.channel.size();
+        long position = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(segment.channel.position(0)), 64 * 1024));
+        while (size - position >= HEADER_BYTES + TRAILER_BYTES) {
+            int magic = in.readInt();
+            int bodyLength = in.readInt();
+            if (magic != MAGIC || bodyLength < 0 || bodyLength > size - position - HEADER_BYTES - TRAILER_BYTES) {
+                break;
+            }
+            byte[] bytes = new byte[HEADER_BYTES + bodyLength + TRAILER_BYTES];
+            ByteBuffer.wrap(bytes).putInt(magic).putInt(bodyLength);
+            in.readFully(bytes, HEADER_BYTES, bodyLength + TRAILER_BYTES);
+            Record record = parse(bytes);
+            if (record == null) {
+                break;
+            }
+            visitor.visit(position, record);
+            position += bytes.length;
+        }
+        return position;
+    }
+
+    private static byte[] record(byte type, long timestamp, String department, String filename, long rawSize,
+                                 String digest, byte[] stored) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_BYTES + 128 + stored.length);
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeInt(MAGIC);
+            out.writeInt(0); // body length, filled in below
+            out.writeByte(type);
+            out.writeLong(timestamp);
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.writeLong(rawSize);
+            out.writeUTF(digest);
+            out.writeInt(stored.length);
+            out.write(stored);
+            out.writeInt(0); // CRC32, filled in below
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+        }
+        byte[] record = buffer.toByteArray();
+        int bodyLength = record.length - HEADER_BYTES - TRAILER_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_BYTES, bodyLength);
+        ByteBuffer.wrap(record).putInt(4, bodyLength).putInt(HEADER_BYTES + bodyLength, (int) crc.getValue());
+        return record;
+    }
+
+    // The record, or null if it is damaged
+    private static Record parse(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int bodyLength = buffer.getInt(4);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_BYTES, bodyLength);
+        if (buffer.getInt(HEADER_BYTES + bodyLength) != (int) crc.getValue()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, HEADER_BYTES, bodyLength));
+            Record record = new Record();
+            record.bytes = bytes;
+            record.type = in.readByte();
+            record.timestamp = in.readLong();
+            record.department = in.readUTF();
+            record.filename = in.readUTF();
+            record.rawSize = in.readLong();
+            record.digest = in.readUTF();
+            record.storedLength = in.readInt();
+            record.dataOffset = HEADER_BYTES + bodyLength - record.storedLength;
+            if ((record.type != PUT && record.type != DELETE) || record.storedLength != in.available()) {
+                return null;
+            }
+            record.compressed = Compression.isEncoded(Arrays.copyOfRange(bytes, record.dataOffset,
+                    record.dataOffset + Math.min(record.storedLength, Compression.HEADER_BYTES)));
+            return record;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Record {
+        byte[] bytes;
+        byte type;
+        long timestamp;
+        String department;
+        String filename;
+        long rawSize;
+        String digest;
+        int storedLength;
+        int dataOffset;
+        boolean compressed;
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        volatile FileChannel channel; // replaced when an interrupted thread closes it
+        long size;    // guarded by the store
+        long garbage;    // bytes of records nothing needs any more; guarded by the store
+        long tombstones; // bytes of DELETE records; guarded by the store
+
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /** Where one file's stored form is, with what the index needs to answer without reading it. */
+    public static class Entry {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final int recordBytes;
+        private final long rawSize;
+        private final String digest;
+        private final long timestamp;
+        private final boolean compressed;
+
+        private Entry(Segment segment, long offset, int length, int recordBytes, long rawSize, String digest,
+                      long timestamp, boolean compressed) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordBytes = recordBytes;
+            this.rawSize = rawSize;
+            this.digest = digest;
+            this.timestamp = timestamp;
+            this.compressed = compressed;
+        }
+
+        private byte[] read(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Segment " + segment.path + " ends inside a record");
+                }
+            }
+            return buffer.array();
+        }
+
+        public int getStoredLength() { return length; }
+        public long getRawSize() { return rawSize; }
+        public String getDigest() { return digest; }
+        public long getTimestamp() { return timestamp; }
+        public boolean isCompressed() { return compressed; }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Background full-cluster sync. Every ordered pair of nodes is synced by a
+ * NodeSyncClient on a bounded executor, optionally capped to a shared byte
+ * rate, while progress counters are kept for getSyncStatus.
+ */
+public class SyncJob implements Runnable {
+    private final String jobId;
+    private final List<NodeInfo> nodes;
+    private final NodeConnectionPool connectionPool;
+    private final int concurrency;
+    private final RateLimiter bandwidth;
+
+    private volatile SyncStatus.State state = SyncStatus.State.RUNNING;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile int pairsTotal;
+    private final AtomicInteger pairsCompleted = new AtomicInteger();
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+    private final AtomicLong filesTransferred = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<FileChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    /** Told whenever the job writes a file onto a node, e.g. so caches can drop it. */
+    public interface FileChangeListener {
+        void fileChanged(String department, String filename);
+    }
+
+    public SyncJob(String jobId, List<NodeInfo> nodes, NodeConnectionPool connectionPool,
+                   int concurrency, long bandwidthBytesPerSecond) {
+        this.jobId = jobId;
+        this.nodes = new ArrayList<>(nodes);
+        this.connectionPool = connectionPool;
+        this.concurrency = Math.max(1, concurrency);
+        this.bandwidth = new RateLimiter(bandwidthBytesPerSecond);
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+        startedAt = System.currentTimeMillis();
+        System.out.println("Starting sync job " + jobId + " over " + nodes.size() + " nodes (concurrency "
+                + concurrency + (bandwidth.isUnlimited() ? "" : ", " + bandwidth.getPermitsPerSecond() + " B/s") + ")");
+
+        List<NodeInfo[]> pairs = new ArrayList<>();
+        for (NodeInfo source : nodes) {
+            for (NodeInfo target : nodes) {
+                if (!source.getNodeId().equals(target.getNodeId())) {
+                    pairs.add(new NodeInfo[] { source, target });
+                }
+            }
+        }
+        pairsTotal = pairs.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "sync-" + jobId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (NodeInfo[] pair : pairs) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        new NodeSyncClient(pair[0].getNodeId(), nodes, connectionPool, this).syncWith(pair[1]);
+                    } finally {
+                        pairsCompleted.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            state = SyncStatus.State.COMPLETED;
+        } catch (Exception e) {
+            System.err.println("Sync job " + jobId + " failed: " + e.getMessage());
+            state = SyncStatus.State.FAILED;
+        } finally {
+            executor.shutdownNow();
+            finishedAt = System.currentTimeMillis();
+            System.out.println(getStatus());
+        }
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void addChangeListener(FileChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /** When the job stopped, or 0 while it runs. */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isRunning() {
+        return state == SyncStatus.State.RUNNING;
+    }
+
+    public SyncStatus getStatus() {
+        int total = pairsTotal;
+        int done = pairsCompleted.get();
+        long eta = -1;
+        if (state == SyncStatus.State.RUNNING && done > 0 && total > 0) {
+            long elapsed = System.currentTimeMillis() - startedAt;
+            eta = elapsed * (total - done) / done;
+        } else if (state != SyncStatus.State.RUNNING) {
+            eta = 0;
+        }
+        return new SyncStatus(jobId, state, total, done, filesScanned.get(), bytesScanned.get(),
+                filesTransferred.get(), bytesTransferred.get(), errors.get(), startedAt, finishedAt, eta);
+    }
+
+    // Callbacks from NodeSyncClient
+
+    void recordScanned(long files, long bytes) {
+        filesScanned.addAndGet(files);
+        bytesScanned.addAndGet(bytes);
+    }
+
+    void recordFileTransferred(String department, String filename) {
+        filesTransferred.incrementAndGet();
+        for (FileChangeListener listener : changeListeners) {
+            listener.fileChanged(department, filename);
+        }
+    }
+
+    void recordBytes(long bytes) {
+        bytesTransferred.addAndGet(bytes);
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    RateLimiter getBandwidth() {
+        return bandwidth;
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of a background sync job's progress, as returned to managers over RMI.
+ */
+public class SyncStatus implements Serializable {
+    public enum State { RUNNING, COMPLETED, FAILED }
+
+    private final String jobId;
+    private final State state;
+    private final int pairsTotal;
+    private final int pairsCompleted;
+    private final long filesScanned;
+    private final long bytesScanned;
+    private final long filesTransferred;
+    private final long bytesTransferred;
+    private final long errors;
+    private final long startedAt;
+    private final long finishedAt;
+    private final long etaMillis;
+
+    public SyncStatus(String jobId, State state, int pairsTotal, int pairsCompleted,
+                      long filesScanned, long bytesScanned, long filesTransferred, long bytesTransferred,
+                      long errors, long startedAt, long finishedAt, long etaMillis) {
+        this.jobId = jobId;
+        this.state = state;
+        this.pairsTotal = pairsTotal;
+        this.pairsCompleted = pairsCompleted;
+        this.filesScanned = filesScanned;
+        this.bytesScanned = bytesScanned;
+        this.filesTransferred = filesTransferred;
+        this.bytesTransferred = bytesTransferred;
+        this.errors = errors;
+        this.startedAt = startedAt;
+        this.finishedAt = finishedAt;
+        this.etaMillis = etaMillis;
+    }
+
+    public String getJobId() { return jobId; }
+    public State getState() { return state; }
+    public int getPairsTotal() { return pairsTotal; }
+    public int getPairsCompleted() { return pairsCompleted; }
+    public long getFilesScanned() { return filesScanned; }
+    public long getBytesScanned() { return bytesScanned; }
+    public long getFilesTransferred() { return filesTransferred; }
+    public long getBytesTransferred() { return bytesTransferred; }
+    public long getErrors() { return errors; }
+    public long getStartedAt() { return startedAt; }
+    public long getFinishedAt() { return finishedAt; }
+    /** Estimated time left in milliseconds, or -1 if not known yet. */
+    public long getEtaMillis() { return etaMillis; }
+
+    @Override
+    public String toString() {
+        return "Sync " + jobId + " " + state
+                + ": pairs " + pairsCompleted + "/" + pairsTotal
+                + ", scanned " + filesScanned + " files (" + bytesScanned + " bytes)"
+                + ", transferred " + filesTransferred + " files (" + bytesTransferred + " bytes)"
+                + ", errors " + errors
+                + (state == State.RUNNING && etaMillis >= 0 ? ", ETA " + (etaMillis / 1000) + "s" : "");
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Coordinator-side state of a resumable, chunked upload. The bytes themselves
+ * are only ever buffered one chunk at a time; this just remembers where they go.
+ */
+public class UploadSession {
+    private final String uploadId;
+    private final String username;
+    private final String filename;
+    private final String department;
+    private final NodeInfo node;
+    private long committedBytes;
+
+    public UploadSession(String uploadId, String username, String filename, String department,
+                         NodeInfo node, long committedBytes) {
+        this.uploadId = uploadId;
+        this.username = username;
+        this.filename = filename;
+        this.department = department;
+        this.node = node;
+        this.committedBytes = committedBytes;
+    }
+
+    public String getUploadId() { return uploadId; }
+    public String getUsername() { return username; }
+    public String getFilename() { return filename; }
+    public String getDepartment() { return department; }
+    public NodeInfo getNode() { return node; }
+    public synchronized long getCommittedBytes() { return committedBytes; }
+    public synchronized void setCommittedBytes(long committedBytes) { this.committedBytes = committedBytes; }
+}
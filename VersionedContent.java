@@ -0,0 +1,28 @@
+import java.io.Serializable;
+
+/**
+ * Answer to a conditional read: either "not modified" (no content) or the
+ * current content. Either way it carries the file's current version, which is
+ * the SHA-256 of its content.
+ */
+public class VersionedContent implements Serializable {
+    private final String digest;
+    private final byte[] content; // null when not modified
+
+    private VersionedContent(String digest, byte[] content) {
+        this.digest = digest;
+        this.content = content;
+    }
+
+    public static VersionedContent notModified(String digest) {
+        return new VersionedContent(digest, null);
+    }
+
+    public static VersionedContent modified(String digest, byte[] content) {
+        return new VersionedContent(digest, content);
+    }
+
+    public boolean isModified() { return content != null; }
+    public String getDigest() { return digest; }
+    public byte[] getContent() { return content; }
+}